@@ -35,15 +35,39 @@
   #define C_START "STR"
   #define C_STOP "STP"
   #define C_CALIBRATE "CAL"
+  #define C_FORMAT "FMT"
+  #define C_BAUD "BAU"
+  #define C_PING "PNG"
+  #define C_RESUME "RSM"
+  /*Formats of the data frames*/
+  #define F_BINARY "BIN"
+  #define F_ASCII "ASC"
   /*Responses*/
   #define R_DATA "DAT"
   #define R_END "END"
   #define R_ACK "ACK"
+  #define R_READY "RDY"
   
   /*Serial communication separator*/
   const String SEPARATOR = ";";
+  const char SEPARATOR_CHAR = ';';
+
+  /*
+     Binary data frame: sync byte, theta steps (uint16 LE), phi steps
+     (uint16 LE), raw value of the sensor (int24 LE) and CRC-8 (polynomial
+     0x07) of the previous 8 bytes
+  */
+  #define FRAME_SYNC 0xA5
+  #define FRAME_LENGTH 9
+  /*Largest raw value of a binary data frame*/
+  const long RAW_LIMIT = 8388607;
 
   const long timeOut = 15000;
 
+  /*Baud rate at start up and after a failed baud rate negotiation*/
+  const long DEFAULT_BAUD_RATE = 9600;
+  /*Time to wait for KNDL to confirm a new baud rate (milliseconds)*/
+  const long BAUD_TIMEOUT = 1000;
+
 #endif
 
@@ -33,11 +33,20 @@ float dps_theta;
 float dps_phi;
 /*Indicates if the first search for the reference is already done*/
 boolean firstRefSearch = false;
+/*Indicates if the data frames are sent in binary format*/
+boolean binaryFrames = false;
+/*Position of the last measure received by KNDL, if resuming a measure*/
+boolean resuming = false;
+int lastThetaSteps;
+int lastPhiSteps;
+byte frame[FRAME_LENGTH];
 
 void setup() {
   Wire.begin();
-  Serial.begin(9600);
+  Serial.begin(DEFAULT_BAUD_RATE);
   pinMode(P_SLED, OUTPUT);
+  /*Tell KNDL that the commands sent from now on will not be lost*/
+  Serial.print(R_READY + SEPARATOR);
 }
 
 /*
@@ -59,6 +68,16 @@ void loop() {
           Serial.print(R_END + SEPARATOR);
           state = S_IDLE;
         } else {
+          if (resuming) {
+            resuming = false;
+            motors.resume(lastThetaSteps, lastPhiSteps);
+            if (motors.getEOM()) {
+              /*KNDL had already received the last measure*/
+              firstRefSearch = false;
+              Serial.print(R_END + SEPARATOR);
+              state = S_IDLE;
+            }
+          }
           delay(1000);
         }
       }
@@ -119,11 +138,15 @@ void take_measure() {
   phi = motors.getPhiSteps() * dps_phi;
 
   /*Send data to serial port*/
-  Serial.print(R_DATA + SEPARATOR);
-  Serial.print(theta + SEPARATOR);
-  Serial.print(phi + SEPARATOR);
-  Serial.print(meas_value, 5);
-  Serial.print(SEPARATOR);
+  if (binaryFrames) {
+    send_frame();
+  } else {
+    Serial.print(R_DATA + SEPARATOR);
+    Serial.print(theta + SEPARATOR);
+    Serial.print(phi + SEPARATOR);
+    Serial.print(meas_value, 5);
+    Serial.print(SEPARATOR);
+  }
 
   /*Move motors to next position*/
   motors.moveMotors();
@@ -135,6 +158,93 @@ void take_measure() {
   }
 }
 
+/*
+   Sends the last measure as a binary data frame. The coordinates are sent as
+   steps of the motors, so KNDL computes them the same way it is done in
+   take_measure(), and the measure as a fixed-point number in units of
+   sensor.getScale() (the scale sent in the answer to the format command).
+   Measures out of the range of the frame are sent as its limits.
+*/
+void send_frame() {
+  int thetaSteps = motors.getThetaSteps();
+  int phiSteps = motors.getPhiSteps();
+  long raw = lround(meas_value / sensor.getScale());
+  raw = constrain(raw, -RAW_LIMIT, RAW_LIMIT);
+  frame[0] = FRAME_SYNC;
+  frame[1] = thetaSteps & 0xFF;
+  frame[2] = (thetaSteps >> 8) & 0xFF;
+  frame[3] = phiSteps & 0xFF;
+  frame[4] = (phiSteps >> 8) & 0xFF;
+  frame[5] = raw & 0xFF;
+  frame[6] = (raw >> 8) & 0xFF;
+  frame[7] = (raw >> 16) & 0xFF;
+  frame[8] = crc8(frame, FRAME_LENGTH - 1);
+  Serial.write(frame, FRAME_LENGTH);
+}
+
+/*
+   CRC-8 with polynomial 0x07 and initial value 0.
+*/
+byte crc8(byte *data, int len) {
+  byte crc = 0;
+  for (int i = 0; i < len; i++) {
+    crc ^= data[i];
+    for (int bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+/*
+   Switches to the baud rate requested by KNDL. The ACK is sent at the current
+   baud rate, and then KNDL must send PNG at the new one within BAUD_TIMEOUT.
+   Otherwise, the device goes back to the default baud rate.
+*/
+void change_baud_rate(long baudRate) {
+  Serial.print(R_ACK);
+  Serial.print(SEPARATOR);
+  Serial.flush();
+  Serial.end();
+  Serial.begin(baudRate);
+  Serial.setTimeout(BAUD_TIMEOUT);
+  /*Bytes received while switching may be garbage*/
+  if (Serial.readStringUntil(SEPARATOR_CHAR).endsWith(C_PING)) {
+    Serial.print(R_ACK);
+    Serial.print(SEPARATOR);
+  } else {
+    Serial.end();
+    Serial.begin(DEFAULT_BAUD_RATE);
+  }
+}
+
+/*
+   Reads the configuration sent along with the start and resume commands.
+*/
+void read_configuration() {
+  dps_theta = Serial.readStringUntil(SEPARATOR_CHAR).toFloat();
+  dps_phi = Serial.readStringUntil(SEPARATOR_CHAR).toFloat();
+  motors.thetaInit(dps_theta, Serial.readStringUntil(SEPARATOR_CHAR).toInt());
+  motors.phiInit(dps_phi, Serial.readStringUntil(SEPARATOR_CHAR).toInt());
+}
+
+/*
+   Acknowledges the start or resume command and starts measuring if the
+   sensor works.
+*/
+void start_measure() {
+  Serial.print(R_ACK);
+  Serial.print(SEPARATOR);
+  delay(1000);
+  sensor.sensorInit();
+  if (sensor.sensorTest()) {
+    state = S_MEASURING;
+  } else {
+    state = S_IDLE;
+    Serial.print("The measure did not start because the communication with the sensing subsystem failed." + SEPARATOR);
+  }
+}
+
 /*
    SerialEvent occurs whenever a new data comes in the
    hardware serial RX.  This routine is run between each
@@ -142,29 +252,47 @@ void take_measure() {
    response.  Multiple bytes of data may be available.
 
    Changes the state of the device depending on the command
-   received.
+   received. Every command and its arguments are sent by KNDL in a
+   single message, with every field terminated by the separator
+   (e.g. "STR;0.5;0.5;1;1;"), so each field is read up to the separator
+   instead of waiting for the serial timeout.
 */
 void serialEvent() {
-  command = Serial.readString();
+  command = Serial.readStringUntil(SEPARATOR_CHAR);
   if  (command.equalsIgnoreCase(C_START)) {
-    dps_theta = Serial.readString().toFloat();
-    dps_phi = Serial.readString().toFloat();
-    motors.thetaInit(dps_theta, Serial.readString().toInt());
-    motors.phiInit(dps_phi, Serial.readString().toInt());
+    read_configuration();
+    resuming = false;
+    start_measure();
+  } else if (command.equalsIgnoreCase(C_RESUME)) {
+    /*Same as start, plus the steps of the motors at the last measure received*/
+    read_configuration();
+    lastThetaSteps = Serial.readStringUntil(SEPARATOR_CHAR).toInt();
+    lastPhiSteps = Serial.readStringUntil(SEPARATOR_CHAR).toInt();
+    resuming = true;
+    /*The motors must be taken to the reference, wherever they are*/
+    firstRefSearch = false;
+    start_measure();
+  } else if (command.equalsIgnoreCase(C_STOP)) {
     Serial.print(R_ACK);
     Serial.print(SEPARATOR);
-    delay(1000);
-    sensor.sensorInit();
-    if (sensor.sensorTest()) {
-      state = S_MEASURING;
+    state = S_IDLE;
+  } else if (command.equalsIgnoreCase(C_FORMAT)) {
+    /*Answer with the format in use and, if binary, the scale of the raw values*/
+    binaryFrames = Serial.readStringUntil(SEPARATOR_CHAR).equalsIgnoreCase(F_BINARY);
+    if (binaryFrames) {
+      Serial.print(F_BINARY + SEPARATOR);
+      Serial.print(sensor.getScale(), 10);
+      Serial.print(SEPARATOR);
     } else {
-      state = S_IDLE;
-      Serial.print("The measure did not start because the communication with the sensing subsystem failed." + SEPARATOR);
+      Serial.print(F_ASCII + SEPARATOR);
     }
-  } else if (command.equalsIgnoreCase(C_STOP)) {
     Serial.print(R_ACK);
     Serial.print(SEPARATOR);
-    state = S_IDLE;
+  } else if (command.equalsIgnoreCase(C_BAUD)) {
+    change_baud_rate(Serial.readStringUntil(SEPARATOR_CHAR).toInt());
+  } else if (command.equalsIgnoreCase(C_PING)) {
+    Serial.print(R_ACK);
+    Serial.print(SEPARATOR);
   } else if (command.equalsIgnoreCase(C_CALIBRATE)) {
     Serial.print(R_ACK);
     Serial.print(SEPARATOR);
@@ -181,4 +309,4 @@ void serialEvent() {
     state = S_IDLE;
   }
 }
-
+
@@ -13,6 +13,7 @@ GPMOTORS::GPMOTORS() {
   pinMode(P_OPTOTHETA, INPUT);
   pinMode(P_OPTOPHI, INPUT);
   eom = false;
+  dryRun = false;
 }
 
 /*
@@ -27,6 +28,7 @@ void GPMOTORS::thetaInit(float dps, int resolution) {
   stepper_theta -> setSpeed(MOTORS_SPEED);
   thetaSteps = 0;
   theta_dir = CLKWISE;//THETA_FIRST_DIRECTION
+  eom = false;
 }
 
 /*
@@ -53,6 +55,28 @@ void GPMOTORS::moveMotors() {
   movePhi();
 }
 
+/*
+   Moves the motors to the position that follows the one of the last measure
+   received by KNDL, as if the measure had been done up to there. The path is
+   followed counting the steps without moving the motors, and then the motors
+   are moved straight from the reference to that position. It must be called
+   right after searching for the reference.
+*/
+void GPMOTORS::resume(int lastThetaSteps, int lastPhiSteps) {
+  dryRun = true;
+  while (!eom && (thetaSteps != lastThetaSteps || phiSteps != lastPhiSteps)) {
+    movePhi();
+  }
+  if (!eom) {
+    movePhi();
+  }
+  dryRun = false;
+  if (!eom) {
+    stepSlow(stepper_theta, thetaSteps, DELAY_AFTER_MOVING_THETA);
+    step(stepper_phi, phiSteps, DELAY_AFTER_MOVING_PHI);
+  }
+}
+
 /*
    Moves the motor corresponding to the azimuth angle. If its time to
    move the motor corresponding to the polar angle, it calls its res-
@@ -74,8 +98,7 @@ void GPMOTORS::movePhi() {
       //Undo the step counted.
       phiSteps -= (phi_dir) * res_phi;
     } else {
-      stepper_phi -> step( phi_dir * res_phi );
-      delay(DELAY_AFTER_MOVING_PHI);
+      step(stepper_phi, phi_dir * res_phi, DELAY_AFTER_MOVING_PHI);
     }
   }
 }
@@ -86,15 +109,15 @@ void GPMOTORS::moveTheta() {
   thetaSteps += theta_dir * res_theta;
   if ( thetaSteps > (int) (POLAR_ANGLE_LIMIT / dps_theta) ) {
     if ( phi_dir == CCLKWISE ) {
-      stepper_phi -> step( phi_dir * spr_phi);
+      step(stepper_phi, phi_dir * spr_phi, 0);
     }
     theta_dir *= -1;
-    stepper_theta -> step(theta_dir * (int) (POLAR_ANGLE_LIMIT / dps_theta));
+    step(stepper_theta, theta_dir * (int) (POLAR_ANGLE_LIMIT / dps_theta), 0);
     theta_dir *= -1;
     eom = true;
   } else if ( thetaSteps == (int) (POLAR_ANGLE_LIMIT / dps_theta) ) {
     if ( phi_dir == CCLKWISE ) {
-      stepper_phi -> step( phi_dir * (spr_phi - res_phi));
+      step(stepper_phi, phi_dir * (spr_phi - res_phi), 0);
       phiSteps += phi_dir * (spr_phi - res_phi);
       phi_dir *= -1;
       stepSlow(stepper_theta, (theta_dir * res_theta), DELAY_AFTER_MOVING_THETA);
@@ -144,6 +167,9 @@ boolean GPMOTORS::search_reference(int coordinate, int dir) {
 void GPMOTORS::stepSlow(Stepper *stepper, int steps, int msPerStep) {
   int i;
   int dir = 1;
+  if (dryRun) {
+    return;
+  }
   if (steps < 0) {
     dir = -1;
     steps *= -1;
@@ -154,6 +180,17 @@ void GPMOTORS::stepSlow(Stepper *stepper, int steps, int msPerStep) {
   }
 }
 
+/*
+   Steps at the speed of the motor and waits afterwards.
+*/
+void GPMOTORS::step(Stepper *stepper, int steps, int msAfter) {
+  if (dryRun) {
+    return;
+  }
+  stepper->step(steps);
+  delay(msAfter);
+}
+
 /*
    Returns the number of steps taken by the motor corresponding to
    the polar angle since the reference angle.
@@ -33,6 +33,7 @@
         void thetaInit(float dps, int res);
         void phiInit(float dps, int res);
         void moveMotors();
+        void resume(int lastThetaSteps, int lastPhiSteps);
         int getThetaSteps();
         int getPhiSteps();
         boolean getEOM();
@@ -59,10 +60,13 @@
         int phi_dir;
         /*End Of Measure*/
         boolean eom;
+        /*Count the steps without moving the motors*/
+        boolean dryRun;
         /*Private functions*/
         void movePhi();
         void moveTheta();
         void stepSlow(Stepper *stepper, int steps,int msPerStep);
+        void step(Stepper *stepper, int steps, int msAfter);
   };
 
 #endif
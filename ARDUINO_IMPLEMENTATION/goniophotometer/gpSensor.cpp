@@ -62,4 +62,18 @@ double GPSENSOR::getValue() {
   }
   return result;
 }
-
+
+/*
+   Returns the value of one unit of the raw values sent in binary data frames.
+   It is the resolution of the ADC, or a fixed fraction of a lux for the
+   TSL2561.
+*/
+double GPSENSOR::getScale() {
+  double result;
+  if (ILLUMINANCE_MEASURE) {
+    result = luxScale;
+  } else {
+    result = stepSize;
+  }
+  return result;
+}
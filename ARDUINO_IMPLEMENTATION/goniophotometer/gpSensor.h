@@ -27,6 +27,13 @@
    */
   #define TSL_ADDR TSL2561_ADDR_FLOAT
 
+  /*
+   * Lux per unit of the raw values sent in binary data frames. The raw
+   * value is a signed 24-bit number, so up to 83886 lux can be sent, above
+   * the range of the TSL2561.
+   */
+  const double luxScale = 0.01;
+
   /* MCP3422 STEP SIZE */
 //  const float stepSize = 0.000015625;  // 18-bit, 1X Gain
   const float stepSize = 0.0000625;  // 16-bit, 1X Gain
@@ -38,6 +45,7 @@
         void sensorInit();
         bool sensorTest();
         double getValue();
+        double getScale();
       private:
         MCP342X *adc;
         TSL2561 *tsl;
@@ -45,4 +53,4 @@
   };
 
 #endif /* _MCP342X_H_ */
-
+
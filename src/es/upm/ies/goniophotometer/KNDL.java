@@ -2,6 +2,8 @@ package es.upm.ies.goniophotometer;
 
 import java.awt.Font;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.regex.PatternSyntaxException;
 
@@ -11,6 +13,13 @@ import javax.swing.plaf.FontUIResource;
 import es.upm.ies.goniophotometer.gui.MainWindow;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
 import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
+import es.upm.ies.goniophotometer.serial.KNDLSerialCommReplay;
+import es.upm.ies.goniophotometer.serial.KNDLSerialCommSim;
+import es.upm.ies.goniophotometer.threads.ConsoleMonitor;
+import es.upm.ies.goniophotometer.threads.DeviceSession;
+import es.upm.ies.goniophotometer.threads.MeasureScheduler;
+import es.upm.ies.goniophotometer.threads.MeasureThread;
+import es.upm.ies.goniophotometer.threads.SampleJournal;
 import es.upm.ies.goniophotometer.utils.CSVWriter;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
 
@@ -39,9 +48,26 @@ import es.upm.ies.goniophotometer.utils.PropsMngr;
  * resultsPrefix=yy_MM_dd-HH'h'mm<br>
  * sensor2sourceDistance=1<br>
  * separator=,<br>
+ * csvDecimals=-1<br>
+ * storeCaptures=false<br>
  * storeLogs=false<br>
  * storeRaws=false<br>
+ * storeBinaryResults=false<br>
+ * exportIES=false<br>
+ * exportEULUMDAT=false<br>
+ * manufacturer=<br>
+ * testLaboratory=<br>
+ * lampDescription=<br>
+ * lampWatts=0<br>
  * volts2luxRelation=1<br>
+ * baudRate=9600<br>
+ * binaryFrames=false<br>
+ * resumeMeasures=false<br>
+ * journalSamples=false<br>
+ * <br>
+ * KNDL can also be run without the GUI, on one or several goniophotometers at
+ * the same time, by passing the sessions and their tasks as arguments (see
+ * <code>main()</code>).<br>
  * <br>
  * 
  * Copyright (C) 2017 Abdon Alejandro Vivas Imparato.<br>
@@ -147,14 +173,87 @@ public class KNDL {
 	 * CSV file.
 	 */
 	public static final String SEPARATOR = "separator";
+	/**
+	 * Name of the property that indicates the number of decimals of the
+	 * angles and luminous intensities written in the CSV files (from 0 to 9).
+	 * If it is -1, they are written with all their decimals.
+	 */
+	public static final String CSVDECIMALS = "csvDecimals";
 	/**
 	 * Name of the property that indicates whether to store log files or not.
 	 */
 	public static final String STORELOGS = "storeLogs";
+	/**
+	 * Name of the property that indicates whether to store capture files of
+	 * the serial communications or not (see
+	 * <code>KNDLSerialCommRecorder</code>).
+	 */
+	public static final String STORECAPTURES = "storeCaptures";
 	/**
 	 * Name of the property that indicates whether to store raw files or not.
 	 */
 	public static final String STORERAWS = "storeRaws";
+	/**
+	 * Name of the property that indicates whether to store the results in
+	 * binary format too, next to the CSV file, or not (see
+	 * <code>BinaryResultsFile</code>).
+	 */
+	public static final String STOREBINARY = "storeBinaryResults";
+	/**
+	 * Name of the property that indicates whether to export the results as
+	 * IES (LM-63) files or not (see <code>PhotometricExporter</code>).
+	 */
+	public static final String EXPORTIES = "exportIES";
+	/**
+	 * Name of the property that indicates whether to export the results as
+	 * EULUMDAT files or not (see <code>PhotometricExporter</code>).
+	 */
+	public static final String EXPORTLDT = "exportEULUMDAT";
+	/**
+	 * Name of the property that indicates the manufacturer of the luminaire
+	 * written in the IES and EULUMDAT files.
+	 */
+	public static final String MANUFACTURER = "manufacturer";
+	/**
+	 * Name of the property that indicates the laboratory written in the IES
+	 * and EULUMDAT files.
+	 */
+	public static final String TESTLAB = "testLaboratory";
+	/**
+	 * Name of the property that indicates the description of the lamp written
+	 * in the IES and EULUMDAT files.
+	 */
+	public static final String LAMP = "lampDescription";
+	/**
+	 * Name of the property that indicates the input power of the luminaire
+	 * (W) written in the IES and EULUMDAT files. If it is 0, it is unknown.
+	 */
+	public static final String LAMPWATTS = "lampWatts";
+	/**
+	 * Name of the property that indicates the baud rate to be negotiated with
+	 * the device when opening the serial port. If the device doesn't support
+	 * it, 9600 bauds are used.
+	 */
+	public static final String BAUDRATE = "baudRate";
+	/**
+	 * Name of the property that indicates whether to ask the device to send
+	 * the data frames in binary format or not. If the device doesn't support
+	 * it, the ASCII format is used anyway.
+	 */
+	public static final String BINARYFRAMES = "binaryFrames";
+	/**
+	 * Name of the property that indicates whether to reconnect to the device
+	 * and resume the measure from the last sample received when the
+	 * communication is lost during a measure or not.
+	 */
+	public static final String RESUMEMEASURES = "resumeMeasures";
+	/**
+	 * Name of the property that indicates whether to store the luminous
+	 * intensities in a journal as they arrive or not, so that the results of
+	 * a measure can be recovered if KNDL is closed unexpectedly (see
+	 * <code>SampleJournal</code>).
+	 */
+	public static final String JOURNALSAMPLES = "journalSamples";
 	/**
 	 * Name of the property that indicates the relation between volts and lux
 	 * ([volts2Lux]=[Lux/V]) for the specific lux meter used in the
@@ -174,16 +273,68 @@ public class KNDL {
 	 * be stored.
 	 */
 	public static final String RAWSDIRECTORY = "//raws//";
+	/**
+	 * Relative path to the directory where the capture files will be stored.
+	 */
+	public static final String CAPTURESDIRECTORY = ".//captures//";
+	/**
+	 * Relative path to the directory where the journals of the measures in
+	 * progress will be stored.
+	 */
+	public static final String JOURNALSDIRECTORY = ".//journals//";
+	/**
+	 * Name of the system property that makes KNDL use a simulated device
+	 * instead of the serial ports. Its value is the luminous intensity
+	 * distribution of the simulated light source (e.g.
+	 * <code>-Dkndl.simulator=LAMBERTIAN</code>, see
+	 * <code>KNDLSerialCommSim.Distribution</code>). Unknown values are
+	 * reported and replaced by <code>LAMBERTIAN</code>.
+	 */
+	public static final String SIMULATOR = "kndl.simulator";
+	/**
+	 * Name of the system property that makes the simulated device take as
+	 * long as the Arduino implementation (e.g.
+	 * <code>-Dkndl.simulator.realTime=true</code>). Otherwise, it runs in
+	 * fast-forward mode.
+	 */
+	public static final String SIMULATOR_REALTIME = "kndl.simulator.realTime";
+	/**
+	 * Name of the system property that makes KNDL play back a capture file
+	 * instead of using the serial ports. Its value is the path to the capture
+	 * file (e.g. <code>-Dkndl.replay=captures/measure.cap</code>).
+	 */
+	public static final String REPLAY = "kndl.replay";
+	/**
+	 * Name of the system property that makes the capture file be played back
+	 * at its original timing (e.g. <code>-Dkndl.replay.realTime=true</code>).
+	 * Otherwise, it is played back as fast as possible.
+	 */
+	public static final String REPLAY_REALTIME = "kndl.replay.realTime";
+
+	// Arguments of the sessions run without the GUI
+	private static final String SESSION_ARG = "-session";
+	private static final String CALIBRATE_ARG = "-calibrate";
+	private static final String MEASURE_ARG = "-measure";
+	private static final String USAGE = "Usage: KNDL [" + SESSION_ARG + " <name> <port> [" + CALIBRATE_ARG + "] ["
+			+ MEASURE_ARG + " <name>]...]...";
 
 	/**
 	 * Main function.
 	 * 
 	 * @param args
-	 *            No arguments are needed to be passed to KNDL.
+	 *            No arguments are needed to be passed to KNDL. If any, KNDL
+	 *            runs without the GUI: every <code>-session name port</code>
+	 *            adds a goniophotometer (see <code>DeviceSession</code>), and
+	 *            it is followed by its tasks, <code>-calibrate</code> and
+	 *            <code>-measure name</code>, which are run in order. The
+	 *            goniophotometers are used at the same time (see
+	 *            <code>MeasureScheduler</code>). For example:
+	 *            <code>-session rig1 COM3 -calibrate -measure lamp1
+	 *            -session rig2 COM4 -measure lamp2</code>.
 	 */
 	public static void main(String[] args) {
 		final PropsMngr propsMngr = PropsMngr.getInstance();
-		final KNDLSerialComm serial = new KNDLSerialCommImpl();
+		final KNDLSerialComm serial = createSerialComm();
 		final Properties developerDefaults = new Properties();
 
 		/*--- SET DEVELOPER DEFAULT PROPERTIES ---*/
@@ -199,9 +350,22 @@ public class KNDL {
 		developerDefaults.setProperty(RESULTSPREFIX, PREFIXDATEFORMAT[1]);
 		developerDefaults.setProperty(SENSORDISTANCE, "1");
 		developerDefaults.setProperty(SEPARATOR, CSVWriter.COMMA);
+		developerDefaults.setProperty(CSVDECIMALS, String.valueOf(CSVWriter.FULL_PRECISION));
+		developerDefaults.setProperty(STORECAPTURES, "false");
 		developerDefaults.setProperty(STORELOGS, "false");
 		developerDefaults.setProperty(STORERAWS, "false");
+		developerDefaults.setProperty(STOREBINARY, "false");
+		developerDefaults.setProperty(EXPORTIES, "false");
+		developerDefaults.setProperty(EXPORTLDT, "false");
+		developerDefaults.setProperty(MANUFACTURER, "");
+		developerDefaults.setProperty(TESTLAB, "");
+		developerDefaults.setProperty(LAMP, "");
+		developerDefaults.setProperty(LAMPWATTS, "0");
 		developerDefaults.setProperty(VOLTS2LUX, String.valueOf(1));
+		developerDefaults.setProperty(BAUDRATE, String.valueOf(KNDLSerialComm.DEFAULT_BAUD_RATE));
+		developerDefaults.setProperty(BINARYFRAMES, "false");
+		developerDefaults.setProperty(RESUMEMEASURES, "false");
+		developerDefaults.setProperty(JOURNALSAMPLES, "false");
 		propsMngr.setDeveloperDefaults(developerDefaults);
 		/*--- SET PASSIVE DEFAULT PROPERTIES ---*/
 
@@ -230,17 +394,129 @@ public class KNDL {
 			}
 		}
 
+		if (args.length > 0) {
+			runSessions(args);
+			return;
+		}
+
 		/*--- START GUI ---*/
 		setUIFont(GUIFONT);
 		mainWindow = new MainWindow();
 		mainWindow.setVisible(true);
 		mainWindow.printOnMonitor(LICENSE_NOTICE, "");
+		recoverMeasures();
 		// JOptionPane.showMessageDialog(null, "Remember to make the calibration
 		// process before measuring.",
 		// "Reminder", JOptionPane.WARNING_MESSAGE);
 		/*--- START GUI ---*/
 	}
 
+	/**
+	 * Creates the object used to communicate with the control device: a
+	 * <code>KNDLSerialCommImpl</code> or, if the system property
+	 * <code>REPLAY</code> or <code>SIMULATOR</code> is set, a
+	 * <code>KNDLSerialCommReplay</code> or a <code>KNDLSerialCommSim</code>.
+	 * 
+	 * @return A new <code>KNDLSerialComm</code> instance.
+	 */
+	public static KNDLSerialComm createSerialComm() {
+		String capture = System.getProperty(REPLAY);
+		if (capture != null) {
+			return new KNDLSerialCommReplay(capture, Boolean.getBoolean(REPLAY_REALTIME));
+		}
+		String distribution = System.getProperty(SIMULATOR);
+		if (distribution == null) {
+			return new KNDLSerialCommImpl();
+		}
+		KNDLSerialCommSim.Distribution d;
+		try {
+			d = KNDLSerialCommSim.Distribution.valueOf(distribution.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			d = KNDLSerialCommSim.Distribution.LAMBERTIAN;
+			System.err.println("Unknown value of " + SIMULATOR + ": \"" + distribution + "\". Valid values: "
+					+ Arrays.toString(KNDLSerialCommSim.Distribution.values()) + ". Using " + d + ".");
+		}
+		if (Boolean.getBoolean(SIMULATOR_REALTIME)) {
+			return new KNDLSerialCommSim(d, KNDLSerialCommSim.ARDUINO_BAUD_RATE, KNDLSerialCommSim.ARDUINO_MS_PER_STEP,
+					KNDLSerialCommSim.ARDUINO_SETTLE_DELAY);
+		}
+		return new KNDLSerialCommSim(d);
+	}
+
+	/*
+	 * Writes the results of the measures left unfinished by a previous
+	 * execution (e.g. a crash or a power failure) from their journals. No
+	 * measure can be started meanwhile.
+	 */
+	private static void recoverMeasures() {
+		if (SampleJournal.findUnfinished(JOURNALSDIRECTORY).isEmpty()) {
+			return;
+		}
+		mainWindow.setMeasureState(MainWindow.MEASURING);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					MeasureThread.recoverJournals(mainWindow);
+				} finally {
+					mainWindow.printlnOnMonitor("KNDL at rest", "");
+					mainWindow.setMeasureState(MainWindow.IDLE);
+				}
+			}
+		}, "KNDL recovery").start();
+	}
+
+	/*
+	 * Runs the tasks of the sessions passed as arguments, without the GUI, and
+	 * waits until they end. The arguments are checked before anything starts.
+	 */
+	private static void runSessions(String[] args) {
+		if (!checkArguments(args)) {
+			System.err.println(USAGE);
+			return;
+		}
+		System.out.println(LICENSE_NOTICE);
+		MeasureThread.recoverJournals(new ConsoleMonitor(SOFTWARENAME));
+
+		MeasureScheduler scheduler = new MeasureScheduler();
+		DeviceSession session = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals(SESSION_ARG)) {
+				session = new DeviceSession(args[i + 1], args[i + 2]);
+				i += 2;
+			} else if (args[i].equals(CALIBRATE_ARG)) {
+				scheduler.scheduleCalibration(session);
+			} else {
+				scheduler.scheduleMeasure(session, args[i + 1]);
+				i++;
+			}
+		}
+		try {
+			scheduler.awaitAll();
+		} catch (InterruptedException e) {
+			scheduler.stopAll();
+		}
+	}
+
+	/*
+	 * Whether the arguments are sessions followed by their tasks.
+	 */
+	private static boolean checkArguments(String[] args) {
+		boolean session = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals(SESSION_ARG) && i + 2 < args.length) {
+				session = true;
+				i += 2;
+			} else if (args[i].equals(CALIBRATE_ARG) && session) {
+				continue;
+			} else if (args[i].equals(MEASURE_ARG) && session && i + 1 < args.length) {
+				i++;
+			} else {
+				return false;
+			}
+		}
+		return session;
+	}
+
 	public static void setUIFont(FontUIResource font) {
 		java.util.Enumeration<Object> keys = UIManager.getDefaults().keys();
 		while (keys.hasMoreElements()) {
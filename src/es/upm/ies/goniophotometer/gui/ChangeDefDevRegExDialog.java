@@ -34,7 +34,6 @@ import javax.swing.text.StyleContext;
 
 import es.upm.ies.goniophotometer.KNDL;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
-import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
 
 /**
@@ -133,7 +132,7 @@ public class ChangeDefDevRegExDialog extends JDialog {
 		}
 		JLabel currentDevDescriptionLabel = new JLabel("Current device description: ", JLabel.RIGHT);
 		JLabel currentDev;
-		KNDLSerialComm serial = new KNDLSerialCommImpl();
+		KNDLSerialComm serial = KNDL.createSerialComm();
 		currentDev = new JLabel();
 		if (!serial.checkSerialPort(propsMngr.getProperty(KNDL.DEVICE))) {
 			currentDev.setText("A device hasn't been asigned yet");
@@ -188,7 +187,7 @@ public class ChangeDefDevRegExDialog extends JDialog {
 						PropsMngr propsMngr = PropsMngr.getInstance();
 						propsMngr.setProperty(KNDL.DEFDEVREGEX, newDefDevRegEx.getText());
 						propsMngr.setDefaultProperty(KNDL.DEVICE,
-								(new KNDLSerialCommImpl()).matchRegEx(propsMngr.getProperty(KNDL.DEFDEVREGEX)));
+								KNDL.createSerialComm().matchRegEx(propsMngr.getProperty(KNDL.DEFDEVREGEX)));
 					} catch (IOException e1) {
 						JOptionPane.showMessageDialog(null, e1.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
 					}
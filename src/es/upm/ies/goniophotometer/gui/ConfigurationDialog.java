@@ -42,7 +42,6 @@ import javax.swing.event.ChangeListener;
 
 import es.upm.ies.goniophotometer.KNDL;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
-import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
 import es.upm.ies.goniophotometer.utils.CSVWriter;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
 
@@ -213,7 +212,7 @@ public class ConfigurationDialog extends JDialog {
 		}
 		DefaultListModel<String> devices = new DefaultListModel<String>();
 		deviceList = new JList<String>(devices);
-		KNDLSerialComm serial = new KNDLSerialCommImpl();
+		KNDLSerialComm serial = KNDL.createSerialComm();
 		comPorts = serial.getComPorts();
 		ArrayList<String> comPortDescriptions;
 		comPortDescriptions = serial.getComPortDescriptions();
@@ -545,7 +544,7 @@ public class ConfigurationDialog extends JDialog {
 	 */
 	private class RestoreButtonListener implements ActionListener {
 		public void actionPerformed(ActionEvent e) {
-			KNDLSerialComm serial = new KNDLSerialCommImpl();
+			KNDLSerialComm serial = KNDL.createSerialComm();
 			PropsMngr propsMngr = PropsMngr.getInstance();
 			propsMngr.loadDefaultProperties();
 
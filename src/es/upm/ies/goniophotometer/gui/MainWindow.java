@@ -28,6 +28,7 @@ import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -39,6 +40,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.event.MenuEvent;
 import javax.swing.event.MenuListener;
@@ -46,9 +48,11 @@ import javax.swing.text.DefaultCaret;
 
 import es.upm.ies.goniophotometer.KNDL;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
-import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
+import es.upm.ies.goniophotometer.serial.SerialPortWatcher;
 import es.upm.ies.goniophotometer.threads.CalibrationThread;
+import es.upm.ies.goniophotometer.threads.MeasureMonitor;
 import es.upm.ies.goniophotometer.threads.MeasureThread;
+import es.upm.ies.goniophotometer.threads.PhotometricExporter;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
 
 /**
@@ -57,7 +61,7 @@ import es.upm.ies.goniophotometer.utils.PropsMngr;
  * @author Abd&oacute;n Alejandro Vivas Imparato
  *
  */
-public class MainWindow extends JFrame {
+public class MainWindow extends JFrame implements MeasureMonitor {
 
 	private static final long serialVersionUID = 1L;
 
@@ -99,10 +103,13 @@ public class MainWindow extends JFrame {
 	private JMenuItem startItem;
 	private JMenuItem stopItem;
 	private JMenuItem calibrateItem;
+	private JMenuItem exportItem;
 	private JMenu configMenu;
 	private JMenu helpMenu;
 	private JCheckBoxMenuItem checkRaws;
 	private JCheckBoxMenuItem checkLogs;
+	private JCheckBoxMenuItem checkIES;
+	private JCheckBoxMenuItem checkLDT;
 
 	/**
 	 * Creates a new <code>MainWindow</code> instance.
@@ -159,12 +166,15 @@ public class MainWindow extends JFrame {
 		stopItem.setEnabled(false);
 		calibrateItem = new JMenuItem("Calibrate");
 		calibrateItem.addActionListener(new CalibrateListener());
+		exportItem = new JMenuItem("Export results directory");
+		exportItem.addActionListener(new ExportListener());
 		JMenuItem exitItem = new JMenuItem("Exit");
 		exitItem.addActionListener(new ExitListener());
 		actionsMenu.add(startItem);
 		actionsMenu.add(stopItem);
 		actionsMenu.addSeparator();
 		actionsMenu.add(calibrateItem);
+		actionsMenu.add(exportItem);
 		actionsMenu.addSeparator();
 		actionsMenu.add(exitItem);
 		menuBar.add(actionsMenu);
@@ -180,6 +190,10 @@ public class MainWindow extends JFrame {
 		checkRaws.addItemListener(new CheckRawsItemListener());
 		checkLogs = new JCheckBoxMenuItem("Store log files");
 		checkLogs.addItemListener(new CheckLogsItemListener());
+		checkIES = new JCheckBoxMenuItem("Export IES files");
+		checkIES.addItemListener(new CheckIESItemListener());
+		checkLDT = new JCheckBoxMenuItem("Export EULUMDAT files");
+		checkLDT.addItemListener(new CheckLDTItemListener());
 		JMenuItem resetOffsetItem = new JMenuItem("Reset offset");
 		resetOffsetItem.addActionListener(new ResetOffsetListener());
 		JMenuItem chngDefDevItem = new JMenuItem("Change default device");
@@ -191,6 +205,8 @@ public class MainWindow extends JFrame {
 		configMenu.add(advConfMenu);
 		advConfMenu.add(checkRaws);
 		advConfMenu.add(checkLogs);
+		advConfMenu.add(checkIES);
+		advConfMenu.add(checkLDT);
 		advConfMenu.addSeparator();
 		advConfMenu.add(resetOffsetItem);
 		advConfMenu.addSeparator();
@@ -344,6 +360,7 @@ public class MainWindow extends JFrame {
 
 		loadImages();
 		refreshIndicators();
+		SerialPortWatcher.getInstance().addPortListener(new DevicePlugListener());
 	}
 
 	/*
@@ -386,7 +403,7 @@ public class MainWindow extends JFrame {
 	 * indicators to a green light or a red light.
 	 */
 	private void refreshIndicators() {
-		KNDLSerialComm serial = new KNDLSerialCommImpl();
+		KNDLSerialComm serial = KNDL.createSerialComm();
 		if (measureState) {
 			assignImage(greenLight, measureStateImg, "MEASURING", Color.GREEN);
 		} else {
@@ -417,6 +434,7 @@ public class MainWindow extends JFrame {
 		helpMenu.setEnabled(!state);
 		startItem.setEnabled(!state);
 		calibrateItem.setEnabled(!state);
+		exportItem.setEnabled(!state);
 		measureState = state;
 		refreshIndicators();
 	}
@@ -463,6 +481,17 @@ public class MainWindow extends JFrame {
 		}
 	}
 
+	/**
+	 * Shows an error message in a dialog. It returns when the user closes
+	 * it.
+	 * 
+	 * @param message
+	 *            Description of the error.
+	 */
+	public void showError(String message) {
+		JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.WARNING_MESSAGE);
+	}
+
 	/**
 	 * Clears KNDL's monitor.
 	 */
@@ -610,7 +639,7 @@ public class MainWindow extends JFrame {
 			}
 			if (Files.exists(Paths.get(PropsMngr.getInstance().getProperty(KNDL.RESULTSPATH)))) {
 				if (checkFileName(name)) {
-					KNDLSerialComm serial = new KNDLSerialCommImpl();
+					KNDLSerialComm serial = KNDL.createSerialComm();
 					if (serial.checkSerialPort(PropsMngr.getInstance().getProperty(KNDL.DEVICE))) {
 						// try {
 						setMeasureState(MEASURING);
@@ -654,7 +683,7 @@ public class MainWindow extends JFrame {
 	private class CalibrateListener implements ActionListener {
 		public void actionPerformed(ActionEvent e) {
 			String threadName = "calibration";
-			KNDLSerialComm serial = new KNDLSerialCommImpl();
+			KNDLSerialComm serial = KNDL.createSerialComm();
 
 			if (serial.checkSerialPort(PropsMngr.getInstance().getProperty(KNDL.DEVICE))) {
 				// try {
@@ -670,6 +699,33 @@ public class MainWindow extends JFrame {
 		}
 	}
 
+	/*
+	 * Export results directory menu item Action Listener. It opens a file
+	 * chooser and exports the results of the selected directory as IES and
+	 * EULUMDAT files. No measure can be started meanwhile.
+	 */
+	private class ExportListener implements ActionListener {
+		public void actionPerformed(ActionEvent e) {
+			JFileChooser fileChooser = new JFileChooser(PropsMngr.getInstance().getProperty(KNDL.RESULTSPATH));
+			fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			int returnVal = fileChooser.showOpenDialog(MainWindow.this);
+			if (returnVal == JFileChooser.APPROVE_OPTION) {
+				final File directory = fileChooser.getSelectedFile();
+				setMeasureState(MEASURING);
+				new Thread(new Runnable() {
+					public void run() {
+						try {
+							PhotometricExporter.exportDirectory(directory, MainWindow.this);
+						} finally {
+							printlnOnMonitor("KNDL at rest", "");
+							setMeasureState(IDLE);
+						}
+					}
+				}, "KNDL export").start();
+			}
+		}
+	}
+
 	/*
 	 * Stop Button Action Listener. Stops a MeasureThread.
 	 */
@@ -692,6 +748,8 @@ public class MainWindow extends JFrame {
 		public void menuSelected(MenuEvent e) {
 			checkRaws.setSelected(Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.STORERAWS)));
 			checkLogs.setSelected(Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.STORELOGS)));
+			checkIES.setSelected(Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.EXPORTIES)));
+			checkLDT.setSelected(Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.EXPORTLDT)));
 		}
 
 		public void menuCanceled(MenuEvent arg0) {
@@ -731,6 +789,34 @@ public class MainWindow extends JFrame {
 		}
 	}
 
+	/*
+	 * IES files check box menu item Item Listener. Change the EXPORTIES
+	 * property whenever the state of the check box changes.
+	 */
+	private class CheckIESItemListener implements ItemListener {
+		public void itemStateChanged(ItemEvent e) {
+			try {
+				PropsMngr.getInstance().setProperty(KNDL.EXPORTIES, String.valueOf(checkIES.isSelected()));
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(null, ex.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			}
+		}
+	}
+
+	/*
+	 * EULUMDAT files check box menu item Item Listener. Change the EXPORTLDT
+	 * property whenever the state of the check box changes.
+	 */
+	private class CheckLDTItemListener implements ItemListener {
+		public void itemStateChanged(ItemEvent e) {
+			try {
+				PropsMngr.getInstance().setProperty(KNDL.EXPORTLDT, String.valueOf(checkLDT.isSelected()));
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(null, ex.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			}
+		}
+	}
+
 	/*
 	 * Alerts the user about what he/she is doing and then make the current
 	 * properties the default properties if the user really wants to.
@@ -777,6 +863,28 @@ public class MainWindow extends JFrame {
 		}
 	}
 
+	/*
+	 * Serial port watcher listener. It refreshes the indicators when a device
+	 * is connected or disconnected.
+	 */
+	private class DevicePlugListener implements SerialPortWatcher.PortListener {
+		public void portConnected(String portName) {
+			refreshLater();
+		}
+
+		public void portDisconnected(String portName) {
+			refreshLater();
+		}
+
+		private void refreshLater() {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					refreshIndicators();
+				}
+			});
+		}
+	}
+
 	/*
 	 * Window Adapter.
 	 */
@@ -0,0 +1,185 @@
+package es.upm.ies.goniophotometer.photometry;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the beam and field angles of every half-plane of a
+ * <code>PhotometricGrid</code>. The grid is scanned once, ring after ring, and
+ * every half-plane is followed outwards from the polar angle 0: its half-angle
+ * at a level is the first polar angle at which the luminous intensity falls
+ * below that level after having reached it. The polar angle is interpolated
+ * linearly between the two samples on both sides of the level, so it isn't
+ * limited to the resolution of the measure. A half-plane that never falls
+ * below the level gets the polar angle of its last measure (the edge of the
+ * measured range), and one that never reaches it gets <code>NaN</code>.<br>
+ * <br>
+ * Large grids are split into groups of half-planes that are scanned in
+ * parallel in the common <code>ForkJoinPool</code>. Every half-plane is
+ * computed by a single task, so the result doesn't depend on the number of
+ * threads.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+final class BeamAnalyzer {
+
+	/*
+	 * Maximum number of intensities scanned by a task. Grids up to this size
+	 * aren't split.
+	 */
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	private BeamAnalyzer() {
+	}
+
+	/**
+	 * Computes the beam and field angles of a grid.
+	 *
+	 * @param grid
+	 *            <code>PhotometricGrid</code> with the luminous intensities.
+	 * @return The beam and field angles of every half-plane.
+	 */
+	static BeamAngles analyze(PhotometricGrid grid) {
+		double max = 0;
+		for (double intensity : grid.getIntensities()) {
+			// False for the positions not measured (NaN)
+			if (intensity > max) {
+				max = intensity;
+			}
+		}
+
+		float[] beam = new float[grid.getPlanes()];
+		float[] field = new float[grid.getPlanes()];
+		Arrays.fill(beam, Float.NaN);
+		Arrays.fill(field, Float.NaN);
+		boolean parallel = (long) grid.getRings() * grid.getPlanes() > BLOCK_SIZE
+				&& ForkJoinPool.getCommonPoolParallelism() > 1;
+		Planes planes = new Planes(grid, max * BeamAngles.BEAM_LEVEL, max * BeamAngles.FIELD_LEVEL, beam, field,
+				0, grid.getPlanes(), parallel);
+		if (parallel) {
+			ForkJoinPool.commonPool().invoke(planes);
+		} else {
+			planes.compute();
+		}
+		return new BeamAngles(grid.getResPhi(), beam, field);
+	}
+
+	/*
+	 * Half-angles of the half-planes [first, last). The groups are scanned in
+	 * parallel only if parallel is true; otherwise, they are scanned in the
+	 * calling thread, as invokeAll() would send them to the common pool when
+	 * called from outside a pool.
+	 */
+	private static final class Planes extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final PhotometricGrid grid;
+		private final double beamLevel;
+		private final double fieldLevel;
+		private final float[] beam;
+		private final float[] field;
+		private final int first;
+		private final int last;
+		private final boolean parallel;
+
+		private Planes(PhotometricGrid grid, double beamLevel, double fieldLevel, float[] beam, float[] field,
+				int first, int last, boolean parallel) {
+			this.grid = grid;
+			this.beamLevel = beamLevel;
+			this.fieldLevel = fieldLevel;
+			this.beam = beam;
+			this.field = field;
+			this.first = first;
+			this.last = last;
+			this.parallel = parallel;
+		}
+
+		protected void compute() {
+			if (last - first <= 1 || (long) (last - first) * grid.getRings() <= BLOCK_SIZE) {
+				scan();
+			} else {
+				int middle = (first + last) >>> 1;
+				Planes firstHalf = new Planes(grid, beamLevel, fieldLevel, beam, field, first, middle, parallel);
+				Planes secondHalf = new Planes(grid, beamLevel, fieldLevel, beam, field, middle, last, parallel);
+				if (parallel) {
+					invokeAll(firstHalf, secondHalf);
+				} else {
+					firstHalf.compute();
+					secondHalf.compute();
+				}
+			}
+		}
+
+		/*
+		 * Scans the rings once, following all the half-planes of the task at
+		 * the same time.
+		 */
+		private void scan() {
+			int n = last - first;
+			double[] peak = new double[n];
+			double[] previous = new double[n];
+			float[] previousTheta = new float[n];
+			Arrays.fill(previous, Double.NaN);
+
+			int lastRing = grid.getRings() - 1;
+			for (int ring = 0; ring <= lastRing; ring++) {
+				float theta = grid.getTheta(ring);
+				// The poles are measured once, but belong to every half-plane
+				boolean pole = ring == 0 || (ring == lastRing && grid.isFullSphere());
+				double poleIntensity = pole ? poleIntensity(ring) : Double.NaN;
+				for (int i = 0; i < n; i++) {
+					double intensity = grid.intensity(ring, first + i);
+					if (Double.isNaN(intensity)) {
+						intensity = poleIntensity;
+					}
+					if (Double.isNaN(intensity)) {
+						continue;
+					}
+					if (Float.isNaN(beam[first + i]) && peak[i] >= beamLevel && intensity < beamLevel) {
+						beam[first + i] = crossing(beamLevel, previousTheta[i], previous[i], theta, intensity);
+					}
+					if (Float.isNaN(field[first + i]) && peak[i] >= fieldLevel && intensity < fieldLevel) {
+						field[first + i] = crossing(fieldLevel, previousTheta[i], previous[i], theta, intensity);
+					}
+					if (intensity > peak[i]) {
+						peak[i] = intensity;
+					}
+					previous[i] = intensity;
+					previousTheta[i] = theta;
+				}
+			}
+
+			for (int i = 0; i < n; i++) {
+				// Still NaN if nothing was measured or the level wasn't reached
+				if (Float.isNaN(beam[first + i]) && peak[i] >= beamLevel) {
+					beam[first + i] = previousTheta[i];
+				}
+				if (Float.isNaN(field[first + i]) && peak[i] >= fieldLevel) {
+					field[first + i] = previousTheta[i];
+				}
+			}
+		}
+
+		/*
+		 * The luminous intensity of a pole, whatever the plane it was
+		 * measured in.
+		 */
+		private double poleIntensity(int ring) {
+			for (int plane = 0; plane < grid.getPlanes(); plane++) {
+				if (grid.isMeasured(ring, plane)) {
+					return grid.intensity(ring, plane);
+				}
+			}
+			return Double.NaN;
+		}
+	}
+
+	/*
+	 * Polar angle at which the line between two samples crosses the level.
+	 */
+	private static float crossing(double level, float theta1, double intensity1, float theta2, double intensity2) {
+		return (float) (theta1 + (intensity1 - level) / (intensity1 - intensity2) * (theta2 - theta1));
+	}
+}
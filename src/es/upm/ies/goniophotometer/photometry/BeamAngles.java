@@ -0,0 +1,151 @@
+package es.upm.ies.goniophotometer.photometry;
+
+/**
+ * Container to store the beam and field angles of every C-plane of a measure.
+ * The beam angle is the angle between the two directions of a C-plane (the
+ * half-planes at azimuth angles <code>phi</code> and <code>phi+180</code>)
+ * whose luminous intensity is 50% of the maximum luminous intensity, so it is
+ * also the Full Width at Half Maximum (FWHM) of the C-plane. The field angle
+ * is the same at 10% of the maximum.<br>
+ * <br>
+ * Every half-plane has its own half-angles, measured from the polar angle 0.
+ * If the luminous intensity of a half-plane never falls below the level, its
+ * half-angle is the polar angle of its last measure (the edge of the measured
+ * range). It is <code>NaN</code> if the half-plane has no measures or if its
+ * luminous intensity never reaches the level (e.g. the back of an asymmetric
+ * distribution). Such a half-plane adds nothing to the angle of its C-plane,
+ * which is <code>NaN</code> if neither of its half-planes has a half-angle.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class BeamAngles {
+	/**
+	 * Fraction of the maximum luminous intensity that defines the beam angle.
+	 */
+	public static final double BEAM_LEVEL = 0.5;
+	/**
+	 * Fraction of the maximum luminous intensity that defines the field angle.
+	 */
+	public static final double FIELD_LEVEL = 0.1;
+
+	private final float resPhi;
+	private final float[] beamHalfAngles;
+	private final float[] fieldHalfAngles;
+
+	BeamAngles(float resPhi, float[] beamHalfAngles, float[] fieldHalfAngles) {
+		this.resPhi = resPhi;
+		this.beamHalfAngles = beamHalfAngles;
+		this.fieldHalfAngles = fieldHalfAngles;
+	}
+
+	/**
+	 * Returns the number of half-planes.
+	 *
+	 * @return The number of azimuth angles of the grid.
+	 */
+	public int getPlanes() {
+		return beamHalfAngles.length;
+	}
+
+	/**
+	 * Returns the azimuth angle of a half-plane.
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The azimuth angle, in degrees.
+	 */
+	public float getPhi(int plane) {
+		return plane * resPhi;
+	}
+
+	/**
+	 * Returns the index of the half-plane opposite to the specified one (i.e.
+	 * the one 180 degrees apart).
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The index of the opposite half-plane, or -1 if there is no
+	 *         half-plane 180 degrees apart.
+	 */
+	public int getOpposite(int plane) {
+		int planes = getPlanes();
+		if (planes % 2 != 0) {
+			return -1;
+		}
+		return (plane + planes / 2) % planes;
+	}
+
+	/**
+	 * Returns the polar angle at which the luminous intensity of a half-plane
+	 * falls to 50% of the maximum.
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The half beam angle, in degrees, or <code>NaN</code> if it can't
+	 *         be computed.
+	 */
+	public float getBeamHalfAngle(int plane) {
+		return beamHalfAngles[plane];
+	}
+
+	/**
+	 * Returns the polar angle at which the luminous intensity of a half-plane
+	 * falls to 10% of the maximum.
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The half field angle, in degrees, or <code>NaN</code> if it
+	 *         can't be computed.
+	 */
+	public float getFieldHalfAngle(int plane) {
+		return fieldHalfAngles[plane];
+	}
+
+	/**
+	 * Returns the beam angle (i.e. the FWHM) of the C-plane of a half-plane
+	 * and its opposite.
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The beam angle, in degrees, or <code>NaN</code> if the C-plane
+	 *         can't be computed.
+	 */
+	public float getBeamAngle(int plane) {
+		return sum(beamHalfAngles, plane);
+	}
+
+	/**
+	 * Returns the field angle of the C-plane of a half-plane and its opposite.
+	 *
+	 * @param plane
+	 *            Index of the half-plane.
+	 * @return The field angle, in degrees, or <code>NaN</code> if the C-plane
+	 *         can't be computed.
+	 */
+	public float getFieldAngle(int plane) {
+		return sum(fieldHalfAngles, plane);
+	}
+
+	private float sum(float[] halfAngles, int plane) {
+		int opposite = getOpposite(plane);
+		if (opposite < 0) {
+			return Float.NaN;
+		}
+		return width(halfAngles[plane], halfAngles[opposite]);
+	}
+
+	/*
+	 * Angle of a C-plane from the half-angles of its half-planes, leaving out
+	 * the ones that are NaN.
+	 */
+	static float width(float halfAngle1, float halfAngle2) {
+		if (Float.isNaN(halfAngle1)) {
+			return halfAngle2;
+		}
+		if (Float.isNaN(halfAngle2)) {
+			return halfAngle1;
+		}
+		return halfAngle1 + halfAngle2;
+	}
+}
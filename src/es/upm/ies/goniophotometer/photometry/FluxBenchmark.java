@@ -0,0 +1,148 @@
+package es.upm.ies.goniophotometer.photometry;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the time needed to compute the luminous flux with
+ * <code>FluxIntegrator</code> and with the single-thread loop that
+ * <code>PhotometryCalculations.computeLumFlux()</code> used before. It isn't
+ * part of KNDL: run it from the command line in the machine to be measured,
+ * e.g.<br>
+ * <br>
+ * <code>java -cp KNDL.jar es.upm.ies.goniophotometer.photometry.FluxBenchmark 1 0.5 0.25 0.1</code>
+ * <br>
+ * <br>
+ * The arguments are the resolutions of the grids (degrees, the same in both
+ * angles); 0.25 and 0.1 degrees by default. Every grid is integrated with the
+ * previous loop and with <code>FluxIntegrator</code> in pools of 1, 2, 4...
+ * threads up to the number of processors, and the median time of every one
+ * is printed. With 1 thread, <code>FluxIntegrator</code> doesn't use the pool
+ * and integrates the grid in the calling thread. It also checks that the result of <code>FluxIntegrator</code>
+ * is exactly the same whatever the number of threads.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class FluxBenchmark {
+
+	/*
+	 * Runs discarded to let the JIT compile the loops, and runs measured.
+	 */
+	private static final int WARMUP_RUNS = 20;
+	private static final int MEASURED_RUNS = 31;
+
+	private FluxBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            Resolutions of the grids (degrees).
+	 */
+	public static void main(String[] args) {
+		float[] resolutions;
+		if (args.length == 0) {
+			resolutions = new float[] { 0.25f, 0.1f };
+		} else {
+			resolutions = new float[args.length];
+			for (int i = 0; i < args.length; i++) {
+				resolutions[i] = Float.parseFloat(args[i]);
+			}
+		}
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println("Processors: " + processors);
+		for (float res : resolutions) {
+			PhotometricGrid grid = createGrid(res);
+			System.out.println();
+			System.out.println("Grid of " + res + " x " + res + " degrees, " + grid.size() + " intensities");
+
+			double[] times = new double[MEASURED_RUNS];
+			double flux = 0;
+			for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+				long start = System.nanoTime();
+				flux = previousLumFlux(grid);
+				if (run >= WARMUP_RUNS) {
+					times[run - WARMUP_RUNS] = (System.nanoTime() - start) / 1e6;
+				}
+			}
+			double previous = median(times);
+			System.out.printf("  Previous loop:        %9.3f ms  flux %.6f%n", previous, flux);
+
+			long bits = 0;
+			for (int threads = 1; threads <= processors; threads *= 2) {
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				try {
+					for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+						long start = System.nanoTime();
+						flux = FluxIntegrator.integrate(grid, pool);
+						if (run >= WARMUP_RUNS) {
+							times[run - WARMUP_RUNS] = (System.nanoTime() - start) / 1e6;
+						}
+					}
+				} finally {
+					pool.shutdown();
+				}
+				if (threads == 1) {
+					bits = Double.doubleToLongBits(flux);
+				} else if (bits != Double.doubleToLongBits(flux)) {
+					System.out.println("  The result with " + threads + " threads is different: " + flux);
+				}
+				double time = median(times);
+				System.out.printf("  FluxIntegrator, %2d t: %9.3f ms  flux %.6f  speedup %.2f%n", threads, time,
+						flux, previous / time);
+			}
+		}
+	}
+
+	/*
+	 * Full sphere with a smooth distribution and some noise, and the poles
+	 * measured only once as in a real measure.
+	 */
+	private static PhotometricGrid createGrid(float res) {
+		PhotometricGrid grid = new PhotometricGrid(res, res, true);
+		Random random = new Random(1);
+		for (int ring = 0; ring < grid.getRings(); ring++) {
+			double intensity = 100 * Math.cos(Math.toRadians(grid.getTheta(ring) / 2));
+			for (int plane = 0; plane < grid.getPlanes(); plane++) {
+				if ((ring == 0 || ring == grid.getRings() - 1) && plane > 0) {
+					continue;
+				}
+				grid.set(ring, plane, intensity + random.nextDouble());
+			}
+		}
+		return grid;
+	}
+
+	/*
+	 * The luminous flux as computeLumFlux() computed it before FluxIntegrator:
+	 * every intensity multiplied by the weight of its ring, in a single
+	 * thread.
+	 */
+	private static double previousLumFlux(PhotometricGrid grid) {
+		QuadratureWeights weights = QuadratureWeights.getInstance(grid.getResTheta(), grid.getResPhi(),
+				grid.isFullSphere());
+		double[] intensities = grid.getIntensities();
+		int planes = grid.getPlanes();
+		double lumFlux = 0;
+		int i = 0;
+		for (int ring = 0; ring < grid.getRings(); ring++) {
+			double weight = weights.getWeight(ring);
+			for (int plane = 0; plane < planes; plane++, i++) {
+				if (!Double.isNaN(intensities[i])) {
+					lumFlux += intensities[i] * weight;
+				}
+			}
+		}
+		return lumFlux;
+	}
+
+	private static double median(double[] times) {
+		double[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
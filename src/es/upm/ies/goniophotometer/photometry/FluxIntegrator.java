@@ -0,0 +1,157 @@
+package es.upm.ies.goniophotometer.photometry;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Integrates the luminous intensities of a <code>PhotometricGrid</code> to
+ * obtain the luminous flux. Large grids (e.g. measures with resolutions of a
+ * fraction of a degree, or resampled distributions) are split into blocks of
+ * rings that are integrated in parallel in the common
+ * <code>ForkJoinPool</code>.<br>
+ * <br>
+ * The blocks only depend on the size of the grid, and their partial sums are
+ * always added in the same order, so the result is exactly the same whatever
+ * the number of processors or the scheduling of the threads. Small grids are a
+ * single block, and they (as any grid in a single processor) are integrated in
+ * the calling thread, block after block, without using any pool.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+final class FluxIntegrator {
+
+	/*
+	 * Maximum number of intensities of a block. Grids up to this size aren't
+	 * split.
+	 */
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	private FluxIntegrator() {
+	}
+
+	/**
+	 * Computes the luminous flux of a grid.
+	 *
+	 * @param grid
+	 *            <code>PhotometricGrid</code> with the luminous intensities.
+	 * @return The luminous flux.
+	 */
+	static double integrate(PhotometricGrid grid) {
+		return integrate(grid, null, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Computes the luminous flux of a grid in a given pool instead of the
+	 * common one (e.g. to compare different numbers of threads, see
+	 * <code>FluxBenchmark</code>). The result doesn't depend on the pool.
+	 *
+	 * @param grid
+	 *            <code>PhotometricGrid</code> with the luminous intensities.
+	 * @param pool
+	 *            The pool where large grids are integrated.
+	 * @return The luminous flux.
+	 */
+	static double integrate(PhotometricGrid grid, ForkJoinPool pool) {
+		return integrate(grid, null, pool);
+	}
+
+	/**
+	 * Computes the luminous flux of every ring of a grid.
+	 *
+	 * @param grid
+	 *            <code>PhotometricGrid</code> with the luminous intensities.
+	 * @return The luminous flux of every ring, by index of the ring.
+	 */
+	static double[] ringFluxes(PhotometricGrid grid) {
+		double[] ringFluxes = new double[grid.getRings()];
+		integrate(grid, ringFluxes, ForkJoinPool.commonPool());
+		return ringFluxes;
+	}
+
+	/*
+	 * Computes the luminous flux of a grid, storing the flux of every ring if
+	 * ringFluxes isn't null.
+	 */
+	private static double integrate(PhotometricGrid grid, double[] ringFluxes, ForkJoinPool pool) {
+		QuadratureWeights weights = QuadratureWeights.getInstance(grid.getResTheta(), grid.getResPhi(),
+				grid.isFullSphere());
+		boolean parallel = (long) grid.getRings() * grid.getPlanes() > BLOCK_SIZE && pool.getParallelism() > 1;
+		Block block = new Block(grid.getIntensities(), grid.getPlanes(), weights, ringFluxes, 0, grid.getRings(),
+				parallel);
+		if (!parallel) {
+			// Same blocks, added in the same order, without the pool
+			return block.compute();
+		}
+		return pool.invoke(block);
+	}
+
+	/*
+	 * Luminous flux of the rings [first, last). Blocks too large are split in
+	 * halves, and the flux of the first half is always added to the flux of
+	 * the second one. The halves are computed in parallel only if parallel is
+	 * true; otherwise, they are computed in the calling thread, as fork()
+	 * would send them to the common pool when called from outside a pool.
+	 */
+	private static final class Block extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private final double[] intensities;
+		private final int planes;
+		private final QuadratureWeights weights;
+		private final double[] ringFluxes;
+		private final int first;
+		private final int last;
+		private final boolean parallel;
+
+		private Block(double[] intensities, int planes, QuadratureWeights weights, double[] ringFluxes, int first,
+				int last, boolean parallel) {
+			this.intensities = intensities;
+			this.planes = planes;
+			this.weights = weights;
+			this.ringFluxes = ringFluxes;
+			this.first = first;
+			this.last = last;
+			this.parallel = parallel;
+		}
+
+		protected Double compute() {
+			if (last - first <= 1 || (long) (last - first) * planes <= BLOCK_SIZE) {
+				double lumFlux = 0;
+				for (int ring = first; ring < last; ring++) {
+					double ringFlux = ringSum(intensities, ring * planes, planes) * weights.getWeight(ring);
+					if (ringFluxes != null) {
+						ringFluxes[ring] = ringFlux;
+					}
+					lumFlux += ringFlux;
+				}
+				return lumFlux;
+			}
+			int middle = (first + last) >>> 1;
+			Block firstHalf = new Block(intensities, planes, weights, ringFluxes, first, middle, parallel);
+			Block secondHalf = new Block(intensities, planes, weights, ringFluxes, middle, last, parallel);
+			if (!parallel) {
+				double firstFlux = firstHalf.compute();
+				return firstFlux + secondHalf.compute();
+			}
+			firstHalf.fork();
+			double second = secondHalf.compute();
+			return firstHalf.join() + second;
+		}
+	}
+
+	/*
+	 * Sum of the intensities of a ring. Every sample of a ring has the same
+	 * weight, so the ring is added first and multiplied once. Positions not
+	 * measured are NaN and are left out.
+	 */
+	private static double ringSum(double[] intensities, int offset, int length) {
+		double sum = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (!Double.isNaN(intensities[i])) {
+				sum += intensities[i];
+			}
+		}
+		return sum;
+	}
+}
@@ -2,7 +2,10 @@ package es.upm.ies.goniophotometer.photometry;
 
 /**
  * Container to store the horizontal and vertical Full Width at Half Maximum
- * (FWHM).
+ * (FWHM). A half-plane whose luminous intensity never reaches 50% of the
+ * maximum, or that isn't in the grid, adds nothing to the FWHM of its C-plane.
+ * The FWHM is <code>NaN</code> if this happens to both half-planes (see
+ * <code>BeamAngles</code>).
  * 
  * @author Abd&oacute;n Alejandro Vivas Imparato
  *
@@ -0,0 +1,382 @@
+package es.upm.ies.goniophotometer.photometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Luminous intensities of a measure, stored in a regular grid of polar angles
+ * (rings) and azimuth angles (C-planes). Ring <code>n</code> is at polar angle
+ * <code>n*resTheta</code> and plane <code>m</code> at azimuth angle
+ * <code>m*resPhi</code>. The intensities are kept in a single array of
+ * primitives, ring after ring, so the intensity of any position is found in
+ * constant time and the grid is scanned in the same order the results are
+ * written (by polar angle and then by azimuth angle).<br>
+ * <br>
+ * Positions that haven't been measured (e.g. the planes of a pole other than
+ * the one measured, or the rest of a measure stopped by the user) hold
+ * <code>NaN</code>. As every luminous intensity goes straight to its
+ * position, the intensities don't need to be sorted, and repeated and missing
+ * positions are found while they are stored. The samples themselves, with the
+ * angles reported by the device, are ordered the same way (see
+ * <code>sort()</code>).
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class PhotometricGrid {
+
+	/*
+	 * Maximum distance between an angle and the angle of its ring or plane, as
+	 * a fraction of the resolution. The device may send the angles rounded
+	 * (e.g. to two decimals in ASCII format).
+	 */
+	private static final double TOLERANCE = 0.05;
+
+	private final float resTheta;
+	private final float resPhi;
+	private final boolean fullSphere;
+	private final int rings;
+	private final int planes;
+	private final double[] intensities;
+	private int measured;
+	private int duplicates;
+	private int outOfGrid;
+
+	/**
+	 * Creates a new <code>PhotometricGrid</code> with no measured positions.
+	 *
+	 * @param resTheta
+	 *            The resolution of the polar angle, in degrees per sample.
+	 * @param resPhi
+	 *            The resolution of the azimuth angle, in degrees per sample.
+	 * @param fullSphere
+	 *            True for a measure of the full sphere. False for a measure of
+	 *            a semi-sphere.
+	 */
+	public PhotometricGrid(float resTheta, float resPhi, boolean fullSphere) {
+		this.resTheta = resTheta;
+		this.resPhi = resPhi;
+		this.fullSphere = fullSphere;
+		rings = (int) ((fullSphere ? 180 : 90) / resTheta + 1);
+		planes = (int) (360 / resPhi);
+		intensities = new double[rings * planes];
+		Arrays.fill(intensities, Double.NaN);
+	}
+
+	/**
+	 * Creates a new <code>PhotometricGrid</code> with the specified luminous
+	 * intensities. It is a semi-sphere or the full sphere depending on the
+	 * number of intensities, and those whose angles are out of the grid are
+	 * counted (see <code>getOutOfGrid()</code>). If there are more intensities
+	 * than positions, the extra ones are counted as duplicates or as out of
+	 * the grid.
+	 *
+	 * @param lumints
+	 *            <code>ArrayList&#60;SphericalCoordinates&#62;</code> with the
+	 *            luminous intensities as radial coordinates.
+	 * @param resTheta
+	 *            The resolution of the polar angle, in degrees per sample.
+	 * @param resPhi
+	 *            The resolution of the azimuth angle, in degrees per sample.
+	 * @return The grid.
+	 */
+	public static PhotometricGrid fromSamples(ArrayList<SphericalCoordinates> lumints, float resTheta,
+			float resPhi) {
+		// Number of Measures
+		int nMeasuresSemiSphere = (int) ((360 / resPhi) * (90 / resTheta) + 1);
+		PhotometricGrid grid = new PhotometricGrid(resTheta, resPhi, lumints.size() > nMeasuresSemiSphere);
+		for (SphericalCoordinates lumint : lumints) {
+			grid.set(lumint.getTheta(), lumint.getPhi(), lumint.getR());
+		}
+		return grid;
+	}
+
+	/**
+	 * Stores a luminous intensity in the position of the specified angles. If
+	 * the angles are out of the grid, it is counted as such. If the position
+	 * had already been measured, its intensity is replaced and it is counted
+	 * as a duplicate.
+	 *
+	 * @param theta
+	 *            The polar angle.
+	 * @param phi
+	 *            The azimuth angle.
+	 * @param intensity
+	 *            The luminous intensity.
+	 * @return True if the intensity was stored. False if it is out of the
+	 *         grid.
+	 */
+	public boolean set(float theta, float phi, double intensity) {
+		int ring = ringOf(theta);
+		int plane = planeOf(phi);
+		if (ring < 0 || plane < 0) {
+			outOfGrid++;
+			return false;
+		}
+		set(ring, plane, intensity);
+		return true;
+	}
+
+	/**
+	 * Stores a luminous intensity in the specified position. If the position
+	 * had already been measured, its intensity is replaced and it is counted
+	 * as a duplicate.
+	 *
+	 * @param ring
+	 *            Index of the polar angle.
+	 * @param plane
+	 *            Index of the azimuth angle.
+	 * @param intensity
+	 *            The luminous intensity.
+	 */
+	public void set(int ring, int plane, double intensity) {
+		int i = ring * planes + plane;
+		if (Double.isNaN(intensities[i])) {
+			measured++;
+		} else {
+			duplicates++;
+		}
+		intensities[i] = intensity;
+	}
+
+	/**
+	 * Orders luminous intensities by polar angle and then by azimuth angle,
+	 * keeping the angles reported by the device. The intensities of the grid
+	 * are placed in the position of their ring and plane, in linear time, so
+	 * the repeated ones remain in the order they were measured. Those out of
+	 * the grid are sorted by their angles and placed among the others.
+	 *
+	 * @param lumints
+	 *            <code>List&#60;SphericalCoordinates&#62;</code> with the
+	 *            luminous intensities as radial coordinates.
+	 * @return A new list with every luminous intensity, ordered.
+	 */
+	public ArrayList<SphericalCoordinates> sort(List<SphericalCoordinates> lumints) {
+		// First slot of every position, after counting its intensities
+		int[] slots = new int[intensities.length + 1];
+		int[] positions = new int[lumints.size()];
+		ArrayList<SphericalCoordinates> outside = new ArrayList<SphericalCoordinates>();
+		for (int i = 0; i < positions.length; i++) {
+			SphericalCoordinates lumint = lumints.get(i);
+			int ring = ringOf(lumint.getTheta());
+			int plane = planeOf(lumint.getPhi());
+			if (ring < 0 || plane < 0) {
+				positions[i] = -1;
+				outside.add(lumint);
+			} else {
+				positions[i] = ring * planes + plane;
+				slots[positions[i] + 1]++;
+			}
+		}
+		for (int i = 1; i < slots.length; i++) {
+			slots[i] += slots[i - 1];
+		}
+		SphericalCoordinates[] placed = new SphericalCoordinates[lumints.size() - outside.size()];
+		for (int i = 0; i < positions.length; i++) {
+			if (positions[i] >= 0) {
+				placed[slots[positions[i]]++] = lumints.get(i);
+			}
+		}
+
+		Comparator<SphericalCoordinates> byAngles = new Comparator<SphericalCoordinates>() {
+			public int compare(SphericalCoordinates li1, SphericalCoordinates li2) {
+				int res = Float.compare(li1.getTheta(), li2.getTheta());
+				return res != 0 ? res : Float.compare(li1.getPhi(), li2.getPhi());
+			}
+		};
+		Collections.sort(outside, byAngles);
+		ArrayList<SphericalCoordinates> sorted = new ArrayList<SphericalCoordinates>(lumints.size());
+		int next = 0;
+		for (SphericalCoordinates lumint : placed) {
+			while (next < outside.size() && byAngles.compare(outside.get(next), lumint) < 0) {
+				sorted.add(outside.get(next++));
+			}
+			sorted.add(lumint);
+		}
+		sorted.addAll(outside.subList(next, outside.size()));
+		return sorted;
+	}
+
+	/**
+	 * Returns the luminous intensity of the specified position.
+	 *
+	 * @param ring
+	 *            Index of the polar angle.
+	 * @param plane
+	 *            Index of the azimuth angle.
+	 * @return The luminous intensity, or <code>NaN</code> if the position
+	 *         hasn't been measured.
+	 */
+	public double intensity(int ring, int plane) {
+		return intensities[ring * planes + plane];
+	}
+
+	/**
+	 * Returns whether the specified position has been measured or not.
+	 *
+	 * @param ring
+	 *            Index of the polar angle.
+	 * @param plane
+	 *            Index of the azimuth angle.
+	 * @return True if the position has a luminous intensity. False otherwise.
+	 */
+	public boolean isMeasured(int ring, int plane) {
+		return !Double.isNaN(intensities[ring * planes + plane]);
+	}
+
+	/**
+	 * Returns the index of the ring with the specified polar angle. Angles
+	 * that differ slightly from the one of the ring (e.g. because of rounding)
+	 * are accepted.
+	 *
+	 * @param theta
+	 *            The polar angle.
+	 * @return The index of the ring, or -1 if the polar angle is out of the
+	 *         grid.
+	 */
+	public int ringOf(float theta) {
+		return indexOf(theta / resTheta, rings);
+	}
+
+	/**
+	 * Returns the index of the plane with the specified azimuth angle. Angles
+	 * that differ slightly from the one of the plane (e.g. because of
+	 * rounding) are accepted.
+	 *
+	 * @param phi
+	 *            The azimuth angle.
+	 * @return The index of the plane, or -1 if the azimuth angle is out of the
+	 *         grid.
+	 */
+	public int planeOf(float phi) {
+		return indexOf(phi / resPhi, planes);
+	}
+
+	private static int indexOf(double position, int length) {
+		long index = Math.round(position);
+		if (index < 0 || index >= length || Math.abs(position - index) > TOLERANCE) {
+			return -1;
+		}
+		return (int) index;
+	}
+
+	/**
+	 * Returns the polar angle of a ring.
+	 *
+	 * @param ring
+	 *            Index of the ring.
+	 * @return The polar angle, in degrees.
+	 */
+	public float getTheta(int ring) {
+		return ring * resTheta;
+	}
+
+	/**
+	 * Returns the azimuth angle of a plane.
+	 *
+	 * @param plane
+	 *            Index of the plane.
+	 * @return The azimuth angle, in degrees.
+	 */
+	public float getPhi(int plane) {
+		return plane * resPhi;
+	}
+
+	/**
+	 * Returns the number of rings.
+	 *
+	 * @return The number of polar angles, poles included.
+	 */
+	public int getRings() {
+		return rings;
+	}
+
+	/**
+	 * Returns the number of planes.
+	 *
+	 * @return The number of azimuth angles.
+	 */
+	public int getPlanes() {
+		return planes;
+	}
+
+	/**
+	 * Returns the resolution of the polar angle.
+	 *
+	 * @return The resolution of the polar angle, in degrees per sample.
+	 */
+	public float getResTheta() {
+		return resTheta;
+	}
+
+	/**
+	 * Returns the resolution of the azimuth angle.
+	 *
+	 * @return The resolution of the azimuth angle, in degrees per sample.
+	 */
+	public float getResPhi() {
+		return resPhi;
+	}
+
+	/**
+	 * Returns whether the grid covers the full sphere or a semi-sphere.
+	 *
+	 * @return True for the full sphere. False for a semi-sphere.
+	 */
+	public boolean isFullSphere() {
+		return fullSphere;
+	}
+
+	/**
+	 * Returns the number of luminous intensities that couldn't be stored
+	 * because their angles are out of the grid.
+	 *
+	 * @return The number of luminous intensities out of the grid.
+	 */
+	public int getOutOfGrid() {
+		return outOfGrid;
+	}
+
+	/**
+	 * Returns the number of luminous intensities stored in positions that had
+	 * already been measured.
+	 *
+	 * @return The number of duplicates.
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Returns the number of positions of a complete measure that haven't been
+	 * measured. Every ring is expected to be measured in every plane, except
+	 * the poles, which are measured once.
+	 *
+	 * @return The number of missing positions.
+	 */
+	public int getMissing() {
+		int poles = fullSphere ? 2 : 1;
+		int expected = (rings - poles) * planes + poles;
+		return Math.max(expected - measured, 0);
+	}
+
+	/**
+	 * Returns the number of measured positions.
+	 *
+	 * @return The number of positions with a luminous intensity.
+	 */
+	public int size() {
+		return measured;
+	}
+
+	/*
+	 * The intensities themselves, ring after ring, for the calculations of
+	 * this package.
+	 */
+	double[] getIntensities() {
+		return intensities;
+	}
+}
@@ -0,0 +1,295 @@
+package es.upm.ies.goniophotometer.photometry;
+
+/**
+ * Luminous intensity distribution of a measure, reduced to its symmetry. The
+ * symmetry is the highest one that the luminous intensities keep within
+ * <code>TOLERANCE</code>, and the intensities of the positions that the
+ * symmetry makes equivalent are replaced by their mean, so the distribution
+ * can be described by a part of its C-planes (e.g. the C-planes from 0 to 90
+ * degrees in the case of <code>QUADRANT</code>).<br>
+ * <br>
+ * The types of symmetry are those of the EULUMDAT files (the symmetry
+ * indicator <code>Isym</code>). Unlike the grid, the distribution has the
+ * intensity of the poles in every C-plane.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class PhotometricSymmetry {
+
+	/**
+	 * No symmetry.
+	 */
+	public static final int NONE = 0;
+	/**
+	 * Symmetry about the vertical axis: every C-plane is the same.
+	 */
+	public static final int ROTATIONAL = 1;
+	/**
+	 * Symmetry with respect to the plane C0-C180.
+	 */
+	public static final int C0_C180 = 2;
+	/**
+	 * Symmetry with respect to the plane C90-C270.
+	 */
+	public static final int C90_C270 = 3;
+	/**
+	 * Symmetry with respect to the planes C0-C180 and C90-C270.
+	 */
+	public static final int QUADRANT = 4;
+	/**
+	 * Maximum difference between two luminous intensities made equivalent by
+	 * a symmetry, as a fraction of the maximum luminous intensity.
+	 */
+	public static final double TOLERANCE = 0.03;
+
+	private final int type;
+	private final float resTheta;
+	private final float resPhi;
+	private final int rings;
+	private final int planes;
+	private final double[] intensities;
+
+	private PhotometricSymmetry(PhotometricGrid grid, int type, double[] intensities) {
+		this.type = type;
+		this.intensities = intensities;
+		resTheta = grid.getResTheta();
+		resPhi = grid.getResPhi();
+		rings = grid.getRings();
+		planes = grid.getPlanes();
+	}
+
+	/*
+	 * Finds the symmetry of the luminous intensities of a grid and reduces
+	 * them to it. Positions not measured (other than those of the poles)
+	 * remain NaN, and then the distribution has no symmetry.
+	 */
+	static PhotometricSymmetry analyze(PhotometricGrid grid) {
+		int rings = grid.getRings();
+		int planes = grid.getPlanes();
+		double[] intensities = new double[rings * planes];
+		double max = 0;
+		int lastRing = rings - 1;
+		for (int ring = 0; ring < rings; ring++) {
+			// The poles are measured once, but belong to every C-plane
+			boolean pole = ring == 0 || (ring == lastRing && grid.isFullSphere());
+			double poleIntensity = pole ? poleIntensity(grid, ring) : Double.NaN;
+			for (int plane = 0; plane < planes; plane++) {
+				double intensity = grid.intensity(ring, plane);
+				if (Double.isNaN(intensity)) {
+					intensity = poleIntensity;
+				}
+				intensities[ring * planes + plane] = intensity;
+				if (intensity > max) {
+					max = intensity;
+				}
+			}
+		}
+
+		double tolerance = TOLERANCE * max;
+		int type;
+		if (isRotational(intensities, planes, tolerance)) {
+			type = ROTATIONAL;
+		} else if (planes % 4 == 0 && isMirrored(intensities, planes, 0, tolerance)
+				&& isMirrored(intensities, planes, planes / 2, tolerance)) {
+			type = QUADRANT;
+		} else if (planes % 2 == 0 && isMirrored(intensities, planes, 0, tolerance)) {
+			type = C0_C180;
+		} else if (planes % 4 == 0 && isMirrored(intensities, planes, planes / 2, tolerance)) {
+			type = C90_C270;
+		} else {
+			type = NONE;
+		}
+		reduce(intensities, planes, type);
+		return new PhotometricSymmetry(grid, type, intensities);
+	}
+
+	/**
+	 * Returns the type of symmetry of the distribution.
+	 *
+	 * @return <code>NONE</code>, <code>ROTATIONAL</code>,
+	 *         <code>C0_C180</code>, <code>C90_C270</code> or
+	 *         <code>QUADRANT</code>.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the name of the type of symmetry of the distribution.
+	 *
+	 * @return The name of the type of symmetry.
+	 */
+	public String getTypeName() {
+		switch (type) {
+		case ROTATIONAL:
+			return "rotational";
+		case C0_C180:
+			return "C0-C180";
+		case C90_C270:
+			return "C90-C270";
+		case QUADRANT:
+			return "C0-C180 and C90-C270";
+		default:
+			return "none";
+		}
+	}
+
+	/**
+	 * Returns the luminous intensity of the specified position, once reduced
+	 * to the symmetry of the distribution.
+	 *
+	 * @param ring
+	 *            Index of the polar angle.
+	 * @param plane
+	 *            Index of the azimuth angle.
+	 * @return The luminous intensity, or <code>NaN</code> if the position
+	 *         wasn't measured.
+	 */
+	public double intensity(int ring, int plane) {
+		return intensities[ring * planes + plane];
+	}
+
+	/**
+	 * Returns the polar angle of a ring.
+	 *
+	 * @param ring
+	 *            Index of the ring.
+	 * @return The polar angle, in degrees.
+	 */
+	public float getTheta(int ring) {
+		return ring * resTheta;
+	}
+
+	/**
+	 * Returns the azimuth angle of a plane.
+	 *
+	 * @param plane
+	 *            Index of the plane.
+	 * @return The azimuth angle, in degrees.
+	 */
+	public float getPhi(int plane) {
+		return plane * resPhi;
+	}
+
+	/**
+	 * Returns the number of rings.
+	 *
+	 * @return The number of polar angles, poles included.
+	 */
+	public int getRings() {
+		return rings;
+	}
+
+	/**
+	 * Returns the number of planes.
+	 *
+	 * @return The number of azimuth angles.
+	 */
+	public int getPlanes() {
+		return planes;
+	}
+
+	/**
+	 * Returns the resolution of the polar angle.
+	 *
+	 * @return The resolution of the polar angle, in degrees per sample.
+	 */
+	public float getResTheta() {
+		return resTheta;
+	}
+
+	/**
+	 * Returns the resolution of the azimuth angle.
+	 *
+	 * @return The resolution of the azimuth angle, in degrees per sample.
+	 */
+	public float getResPhi() {
+		return resPhi;
+	}
+
+	/*
+	 * The luminous intensity of a pole, whatever the plane it was measured in.
+	 */
+	private static double poleIntensity(PhotometricGrid grid, int ring) {
+		for (int plane = 0; plane < grid.getPlanes(); plane++) {
+			if (grid.isMeasured(ring, plane)) {
+				return grid.intensity(ring, plane);
+			}
+		}
+		return Double.NaN;
+	}
+
+	private static boolean isRotational(double[] intensities, int planes, double tolerance) {
+		for (int first = 0; first < intensities.length; first += planes) {
+			for (int plane = 1; plane < planes; plane++) {
+				if (!(Math.abs(intensities[first + plane] - intensities[first]) <= tolerance)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Whether every ring is symmetric with respect to a plane, given by the
+	 * sum of the indices of any two planes mirrored by it (0 for C0-C180,
+	 * planes/2 for C90-C270). NaN is never symmetric.
+	 */
+	private static boolean isMirrored(double[] intensities, int planes, int sum, double tolerance) {
+		for (int first = 0; first < intensities.length; first += planes) {
+			for (int plane = 0; plane < planes; plane++) {
+				int mirror = mirror(plane, planes, sum);
+				if (!(Math.abs(intensities[first + plane] - intensities[first + mirror]) <= tolerance)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Replaces every luminous intensity by the mean of the ones the symmetry
+	 * makes equivalent to it.
+	 */
+	private static void reduce(double[] intensities, int planes, int type) {
+		if (type == NONE) {
+			return;
+		}
+		double[] row = new double[planes];
+		for (int first = 0; first < intensities.length; first += planes) {
+			System.arraycopy(intensities, first, row, 0, planes);
+			double sum = 0;
+			for (int plane = 0; plane < planes; plane++) {
+				sum += row[plane];
+			}
+			for (int plane = 0; plane < planes; plane++) {
+				double intensity;
+				switch (type) {
+				case ROTATIONAL:
+					intensity = sum / planes;
+					break;
+				case C0_C180:
+					intensity = (row[plane] + row[mirror(plane, planes, 0)]) / 2;
+					break;
+				case C90_C270:
+					intensity = (row[plane] + row[mirror(plane, planes, planes / 2)]) / 2;
+					break;
+				default:
+					int opposite = mirror(mirror(plane, planes, 0), planes, planes / 2);
+					intensity = (row[plane] + row[mirror(plane, planes, 0)] + row[mirror(plane, planes, planes / 2)]
+							+ row[opposite]) / 4;
+					break;
+				}
+				intensities[first + plane] = intensity;
+			}
+		}
+	}
+
+	/*
+	 * The plane mirrored by a plane of symmetry, given as in isMirrored().
+	 */
+	private static int mirror(int plane, int planes, int sum) {
+		return ((sum - plane) % planes + planes) % planes;
+	}
+}
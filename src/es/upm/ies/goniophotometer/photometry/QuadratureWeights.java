@@ -0,0 +1,165 @@
+package es.upm.ies.goniophotometer.photometry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table of the weights used to integrate the luminous intensities over a
+ * semi-sphere or over the full sphere. The samples with the same polar angle
+ * form a ring, and every sample of a ring has the same weight: the solid angle
+ * of the portion of the sphere it represents (i.e. the surface area of that
+ * portion divided by r^2, because luminous intensities are integrated instead
+ * of illuminances). The luminous flux is the sum of every luminous intensity
+ * multiplied by the weight of its ring.<br>
+ * <br>
+ * The tables only depend on the resolution of the measure, so they are
+ * computed once and kept in a small cache shared by all threads. They are
+ * immutable.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public final class QuadratureWeights {
+
+	// Maximum number of tables kept in the cache
+	private static final int CACHE_SIZE = 16;
+	private static final Map<Key, QuadratureWeights> CACHE = new LinkedHashMap<Key, QuadratureWeights>(
+			CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Key, QuadratureWeights> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final float resTheta;
+	private final float resPhi;
+	private final boolean fullSphere;
+	// Weight of the samples of every ring. Ring n is at polar angle n*resTheta
+	private final double[] weights;
+
+	/**
+	 * Returns the table for the specified resolution, computing it only if it
+	 * is not in the cache.
+	 *
+	 * @param resTheta
+	 *            The resolution of the polar angle, in degrees per sample.
+	 * @param resPhi
+	 *            The resolution of the azimuth angle, in degrees per sample.
+	 * @param fullSphere
+	 *            True for a measure of the full sphere. False for a measure of
+	 *            a semi-sphere.
+	 * @return The table of weights.
+	 */
+	public static QuadratureWeights getInstance(float resTheta, float resPhi, boolean fullSphere) {
+		Key key = new Key(resTheta, resPhi, fullSphere);
+		synchronized (CACHE) {
+			QuadratureWeights table = CACHE.get(key);
+			if (table == null) {
+				table = new QuadratureWeights(resTheta, resPhi, fullSphere);
+				CACHE.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	private QuadratureWeights(float resTheta, float resPhi, boolean fullSphere) {
+		this.resTheta = resTheta;
+		this.resPhi = resPhi;
+		this.fullSphere = fullSphere;
+		int n = (int) ((fullSphere ? 180 : 90) / resTheta + 1);
+		weights = new double[n];
+
+		// The pole is a single sample that represents a whole cap
+		weights[0] = Math.cos(Math.toRadians(0)) - Math.cos(Math.toRadians(resTheta / 2));
+		weights[0] *= 2 * Math.PI;
+		for (int i = 1; i < n - 1; i++) {
+			double thetaL = (2 * (i - 1) + 1) * resTheta / 2;
+			double thetaH = (2 * i + 1) * resTheta / 2;
+			weights[i] = Math.cos(Math.toRadians(thetaL)) - Math.cos(Math.toRadians(thetaH));
+			weights[i] *= Math.toRadians(resPhi);
+		}
+		if (fullSphere) {
+			// The other pole
+			weights[n - 1] = weights[0];
+		} else {
+			// Half a ring, up to the equator
+			weights[n - 1] = Math.cos(Math.toRadians(90 - (resTheta / 2))) - Math.cos(Math.toRadians(90));
+			weights[n - 1] *= Math.toRadians(resPhi);
+		}
+	}
+
+	/**
+	 * Returns the weight of the samples of a ring.
+	 *
+	 * @param ring
+	 *            The index of the ring.
+	 * @return The solid angle represented by every sample of the ring.
+	 */
+	public double getWeight(int ring) {
+		return weights[ring];
+	}
+
+	/**
+	 * Returns the number of rings.
+	 *
+	 * @return The number of rings, poles included.
+	 */
+	public int getRings() {
+		return weights.length;
+	}
+
+	/**
+	 * Returns the resolution of the polar angle of the table.
+	 *
+	 * @return The resolution of the polar angle, in degrees per sample.
+	 */
+	public float getResTheta() {
+		return resTheta;
+	}
+
+	/**
+	 * Returns the resolution of the azimuth angle of the table.
+	 *
+	 * @return The resolution of the azimuth angle, in degrees per sample.
+	 */
+	public float getResPhi() {
+		return resPhi;
+	}
+
+	/**
+	 * Returns whether the table is for the full sphere or for a semi-sphere.
+	 *
+	 * @return True for the full sphere. False for a semi-sphere.
+	 */
+	public boolean isFullSphere() {
+		return fullSphere;
+	}
+
+	/*
+	 * Key of the cache.
+	 */
+	private static final class Key {
+		private final int resTheta;
+		private final int resPhi;
+		private final boolean fullSphere;
+
+		private Key(float resTheta, float resPhi, boolean fullSphere) {
+			this.resTheta = Float.floatToIntBits(resTheta);
+			this.resPhi = Float.floatToIntBits(resPhi);
+			this.fullSphere = fullSphere;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) obj;
+			return resTheta == key.resTheta && resPhi == key.resPhi && fullSphere == key.fullSphere;
+		}
+
+		public int hashCode() {
+			return (31 * resTheta + resPhi) * 2 + (fullSphere ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package es.upm.ies.goniophotometer.photometry;
+
+/**
+ * Luminous flux of the zones of a measure. Every ring of the measuring grid
+ * represents the band of the sphere between the polar angles halfway to its
+ * neighbours (a cap for the poles), and the flux of the rings is accumulated
+ * from the polar angle 0, so the flux of any cone or band is found in constant
+ * time.<br>
+ * <br>
+ * The limits of a zone don't need to match the limits of the bands: the flux
+ * of a band cut by a limit is split in proportion to the solid angle at each
+ * side of it.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class ZonalFlux {
+
+	private final float resTheta;
+	private final float maxTheta;
+	// cumulative[n] is the luminous flux of the rings 0 to n-1
+	private final double[] cumulative;
+
+	ZonalFlux(float resTheta, boolean fullSphere, double[] ringFluxes) {
+		this.resTheta = resTheta;
+		maxTheta = fullSphere ? 180 : 90;
+		cumulative = new double[ringFluxes.length + 1];
+		for (int ring = 0; ring < ringFluxes.length; ring++) {
+			cumulative[ring + 1] = cumulative[ring] + ringFluxes[ring];
+		}
+	}
+
+	/**
+	 * Returns the luminous flux of the cone between the polar angle 0 and the
+	 * specified one.
+	 *
+	 * @param theta
+	 *            Polar angle, in degrees.
+	 * @return The luminous flux of the cone.
+	 */
+	public double getConeFlux(float theta) {
+		if (theta <= 0) {
+			return 0;
+		}
+		if (theta >= maxTheta) {
+			return getTotalFlux();
+		}
+		int rings = cumulative.length - 1;
+		int ring = Math.min((int) Math.floor(theta / resTheta + 0.5), rings - 1);
+		double lower = Math.max(0, (ring - 0.5) * resTheta);
+		double upper = Math.min(maxTheta, (ring + 0.5) * resTheta);
+		// Fraction of the solid angle of the band inside the cone
+		double fraction = (cos(lower) - cos(theta)) / (cos(lower) - cos(upper));
+		return cumulative[ring] + (cumulative[ring + 1] - cumulative[ring]) * fraction;
+	}
+
+	/**
+	 * Returns the luminous flux of the band between two polar angles.
+	 *
+	 * @param fromTheta
+	 *            The lower polar angle, in degrees.
+	 * @param toTheta
+	 *            The upper polar angle, in degrees.
+	 * @return The luminous flux of the band.
+	 */
+	public double getBandFlux(float fromTheta, float toTheta) {
+		return getConeFlux(toTheta) - getConeFlux(fromTheta);
+	}
+
+	/**
+	 * Returns the luminous flux of the whole measure.
+	 *
+	 * @return The luminous flux.
+	 */
+	public double getTotalFlux() {
+		return cumulative[cumulative.length - 1];
+	}
+
+	/**
+	 * Returns the largest polar angle of the measure.
+	 *
+	 * @return 90 for a semi-sphere. 180 for the full sphere.
+	 */
+	public float getMaxTheta() {
+		return maxTheta;
+	}
+
+	private static double cos(double degrees) {
+		return Math.cos(Math.toRadians(degrees));
+	}
+}
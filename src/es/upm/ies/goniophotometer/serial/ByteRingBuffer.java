@@ -0,0 +1,123 @@
+package es.upm.ies.goniophotometer.serial;
+
+/**
+ * Bounded circular buffer of bytes that connects the thread that receives
+ * data from a serial port with the thread that consumes it. Both reads and
+ * writes block: reads until there is data (or a timeout expires) and writes
+ * until there is free space, so neither side needs to poll.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class ByteRingBuffer {
+
+	private final byte[] buffer;
+	private int head;// Position of the next byte to be read
+	private int count;// Number of bytes stored
+	private boolean closed;
+
+	/**
+	 * Creates a new <code>ByteRingBuffer</code> instance with the specified
+	 * capacity.
+	 *
+	 * @param capacity
+	 *            Maximum number of bytes that can be stored at the same time.
+	 */
+	public ByteRingBuffer(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Stores bytes in the buffer. If there is not enough free space, it waits
+	 * until the consumer reads them. If the buffer is closed, the bytes are
+	 * discarded.
+	 *
+	 * @param data
+	 *            Array with the bytes to be stored.
+	 * @param offset
+	 *            Position of the first byte to be stored in <code>data</code>.
+	 * @param length
+	 *            Number of bytes to be stored.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for free space.
+	 */
+	public synchronized void write(byte[] data, int offset, int length) throws InterruptedException {
+		while (length > 0 && !closed) {
+			while (count == buffer.length && !closed) {
+				wait();
+			}
+			if (closed) {
+				break;
+			}
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(length, Math.min(buffer.length - count, buffer.length - tail));
+			System.arraycopy(data, offset, buffer, tail, n);
+			count += n;
+			offset += n;
+			length -= n;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reads the bytes stored in the buffer. If it is empty, it waits until
+	 * some bytes are stored, the timeout expires or the buffer is closed.
+	 *
+	 * @param data
+	 *            Array where the bytes read are copied, starting at position
+	 *            0.
+	 * @param timeout
+	 *            Maximum time to wait for data, in milliseconds.
+	 * @return The number of bytes read, which is zero if the timeout expired
+	 *         or the buffer was closed.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public synchronized int read(byte[] data, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (count == 0 && !closed && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		int read = 0;
+		while (count > 0 && read < data.length) {
+			int n = Math.min(data.length - read, Math.min(count, buffer.length - head));
+			System.arraycopy(buffer, head, data, read, n);
+			head = (head + n) % buffer.length;
+			count -= n;
+			read += n;
+		}
+		if (read > 0) {
+			notifyAll();
+		}
+		return read;
+	}
+
+	/**
+	 * Returns the number of bytes stored in the buffer.
+	 *
+	 * @return The number of bytes that can be read without waiting.
+	 */
+	public synchronized int available() {
+		return count;
+	}
+
+	/**
+	 * Discards all the bytes stored in the buffer.
+	 */
+	public synchronized void clear() {
+		head = 0;
+		count = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Closes the buffer. Threads waiting to read or write are released, and
+	 * any byte written from now on is discarded.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
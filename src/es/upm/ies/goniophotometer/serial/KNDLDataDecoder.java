@@ -0,0 +1,206 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.util.ArrayList;
+
+import es.upm.ies.goniophotometer.photometry.SphericalCoordinates;
+
+/**
+ * Streaming decoder of the data sent by the control device during a measure.
+ * It is fed with the tokens found by a <code>KNDLTokenizer</code>, one at a
+ * time and in the same order they arrive, and turns every
+ * <code>DAT;theta;phi;value;</code> frame into a luminous intensity sample as
+ * soon as its last field is received. The calibration of the measuring system
+ * is applied at that point, so the samples are ready to be used the moment the
+ * <code>END</code> token is received.<br>
+ * <br>
+ * If the binary format is in use, the binary data frames are decoded the same
+ * way through <code>decodeFrame()</code>.<br>
+ * <br>
+ * Tokens that are not part of a data frame (e.g. messages from the device) are
+ * ignored. Frames with fields that can not be parsed are discarded and counted
+ * as malformed frames.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLDataDecoder {
+
+	/*
+	 * Position, within a data frame, of the next field to be received. Zero
+	 * means that a DAT token is expected.
+	 */
+	private static final int EXPECT_DATA = 0;
+	private static final int EXPECT_THETA = 1;
+	private static final int EXPECT_PHI = 2;
+	private static final int EXPECT_VALUE = 3;
+
+	private double offset;
+	private double v2lux;
+	// Square distance from the source to the sensor
+	private double sqd;
+
+	private ArrayList<SphericalCoordinates> samples = new ArrayList<SphericalCoordinates>();
+	private int expected = EXPECT_DATA;
+	private float theta;
+	private float phi;
+	private boolean eom;// End Of Measure
+	private boolean dataReceived;
+	private int malformedFrames;
+
+	// Binary format: degrees per step and volts per unit of the raw value
+	private float dpsTheta;
+	private float dpsPhi;
+	private double rawScale;
+
+	/**
+	 * Creates a new <code>KNDLDataDecoder</code> instance that applies the
+	 * specified calibration to every sample.
+	 *
+	 * @param offset
+	 *            Offset in volts to be subtracted to each measure.
+	 * @param v2lux
+	 *            Relation between volts and lux ([v2lux]=[Lux/V]) of the lux
+	 *            meter.
+	 * @param distance
+	 *            Distance between the light source and the lux meter.
+	 */
+	public KNDLDataDecoder(double offset, double v2lux, double distance) {
+		this.offset = offset;
+		this.v2lux = v2lux;
+		this.sqd = distance * distance;
+	}
+
+	/**
+	 * Decodes the next token received from the serial port.
+	 *
+	 * @param token
+	 *            The tokenizer that found the token.
+	 */
+	public void decode(KNDLTokenizer token) {
+		dataReceived = true;
+		try {
+			switch (expected) {
+			case EXPECT_THETA:
+				theta = token.parseFloat();
+				expected = EXPECT_PHI;
+				break;
+			case EXPECT_PHI:
+				phi = token.parseFloat();
+				expected = EXPECT_VALUE;
+				break;
+			case EXPECT_VALUE:
+				addSample(token.parseDouble());
+				expected = EXPECT_DATA;
+				break;
+			default:
+				if (token.equalsIgnoreCase(KNDLSerialComm.DATA)) {
+					expected = EXPECT_THETA;
+				} else if (token.equalsIgnoreCase(KNDLSerialComm.END)) {
+					eom = true;
+				}
+				break;
+			}
+		} catch (NumberFormatException e) {
+			malformedFrames++;
+			expected = EXPECT_DATA;
+			// The token may be the beginning of the next frame
+			decode(token);
+		}
+	}
+
+	/**
+	 * Sets the parameters needed to decode the binary data frames.
+	 *
+	 * @param dpsTheta
+	 *            Degrees per step of the motor corresponding to the polar
+	 *            angle.
+	 * @param dpsPhi
+	 *            Degrees per step of the motor corresponding to the azimuth
+	 *            angle.
+	 * @param rawScale
+	 *            Value, in volts, of one unit of the raw value of the sensor.
+	 */
+	public void setBinaryFormat(float dpsTheta, float dpsPhi, double rawScale) {
+		this.dpsTheta = dpsTheta;
+		this.dpsPhi = dpsPhi;
+		this.rawScale = rawScale;
+	}
+
+	/**
+	 * Decodes a binary data frame. The angles are computed from the steps of
+	 * the motors the same way the device does in ASCII format.
+	 *
+	 * @param thetaSteps
+	 *            Steps taken by the motor corresponding to the polar angle.
+	 * @param phiSteps
+	 *            Steps taken by the motor corresponding to the azimuth angle.
+	 * @param raw
+	 *            Raw value of the sensor.
+	 */
+	public void decodeFrame(int thetaSteps, int phiSteps, int raw) {
+		dataReceived = true;
+		theta = thetaSteps * dpsTheta;
+		phi = phiSteps * dpsPhi;
+		addSample(raw * rawScale);
+	}
+
+	/**
+	 * Discards the fields received so far of the data frame in progress (e.g.
+	 * because the communication was lost in the middle of it). The next
+	 * frame is decoded as usual.
+	 */
+	public void discardPartialFrame() {
+		expected = EXPECT_DATA;
+	}
+
+	/*
+	 * Converts the value received from the lux meter into luminous intensity
+	 * and stores it.
+	 */
+	private void addSample(double value) {
+		value -= offset;
+		value = value < 0 ? 0 : value;
+		value *= v2lux;
+		value *= sqd;
+		samples.add(new SphericalCoordinates(theta, phi, value));
+	}
+
+	/**
+	 * Returns the luminous intensities decoded so far, in the same order they
+	 * were received.
+	 *
+	 * @return <code>ArrayList&#60;SphericalCoordinates&#62;</code> with the
+	 *         luminous intensities as radial coordinates.
+	 */
+	public ArrayList<SphericalCoordinates> getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns whether the <code>END</code> token has been received or not.
+	 *
+	 * @return True if the device has ended the measure. False otherwise.
+	 */
+	public boolean isEndOfMeasure() {
+		return eom;
+	}
+
+	/**
+	 * Returns whether any token has been decoded or not.
+	 *
+	 * @return True if at least one token has been decoded. False otherwise.
+	 */
+	public boolean hasReceivedData() {
+		return dataReceived;
+	}
+
+	/**
+	 * Returns the number of data frames discarded because one of their fields
+	 * couldn't be parsed.
+	 *
+	 * @return The number of malformed data frames.
+	 */
+	public int getMalformedFrames() {
+		return malformedFrames;
+	}
+}
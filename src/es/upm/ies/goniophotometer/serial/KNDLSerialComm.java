@@ -1,6 +1,7 @@
 package es.upm.ies.goniophotometer.serial;
 
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface to communicate with a control device. Go to <a href=
@@ -36,6 +37,55 @@ public interface KNDLSerialComm {
 	 * String received when the device acknowledge the receiving of a command.
 	 */
 	public static final String ACK = "ACK";
+	/**
+	 * String received when the device is ready to receive commands (e.g.
+	 * right after it is reset by the opening of the serial port).
+	 */
+	public static final String READY = "RDY";
+	/**
+	 * String to be sent, followed by <code>BINARY</code> or <code>ASCII</code>,
+	 * to select the format of the data frames of the next measure. Devices
+	 * that support the binary format answer <code>BINARY</code> followed by
+	 * the value of one unit of the raw value of the sensor (in the units of
+	 * the values of the ASCII format), or <code>ASCII</code>, and then
+	 * <code>ACK</code>. Devices that don't support it don't answer.
+	 */
+	public static final String FORMAT = "FMT";
+	/**
+	 * Binary format of the data frames (see <code>KNDLTokenizer</code>).
+	 */
+	public static final String BINARY = "BIN";
+	/**
+	 * ASCII format of the data frames: <code>DAT;theta;phi;value;</code>.
+	 */
+	public static final String ASCII = "ASC";
+	/**
+	 * String to be sent, followed by a baud rate, to ask the device to switch
+	 * to that baud rate. The device answers <code>ACK</code> at the current
+	 * baud rate and switches. Devices that don't support it don't answer.
+	 */
+	public static final String BAUD = "BAU";
+	/**
+	 * String to be sent to check the communication with the device, which
+	 * answers <code>ACK</code>. After switching to a new baud rate, the device
+	 * goes back to <code>DEFAULT_BAUD_RATE</code> if it doesn't receive it
+	 * within one second.
+	 */
+	public static final String PING = "PNG";
+	/**
+	 * String to be sent, followed by the same configuration as
+	 * <code>START</code> and the steps taken by the motors at the position of
+	 * the last data frame received, to resume an interrupted measure. The
+	 * device answers <code>ACK</code>, searches for the reference again, moves
+	 * the motors to the position that follows and goes on measuring from
+	 * there. Devices that don't support it don't answer.
+	 */
+	public static final String RESUME = "RSM";
+	/**
+	 * Baud rate used by the device when it starts and every time the
+	 * negotiation of a different baud rate fails.
+	 */
+	public static final int DEFAULT_BAUD_RATE = 9600;
 	/**
 	 * Serial port separator.
 	 */
@@ -53,13 +103,29 @@ public interface KNDLSerialComm {
 	 */
 	public void openSerialPort() throws Exception;
 
+	/**
+	 * Sets the baud rate to be negotiated with the device the next time the
+	 * serial port is opened. If the device doesn't accept it,
+	 * <code>DEFAULT_BAUD_RATE</code> is used.<br>
+	 * <br>
+	 * By default, it does nothing, so the serial port is always opened at the
+	 * baud rate chosen by the implementation.
+	 * 
+	 * @param baudRate
+	 *            The desired baud rate (e.g. 115200).
+	 */
+	public default void setBaudRate(int baudRate) {
+	}
+
 	/**
 	 * Closes a serial port.
 	 */
 	public void closeSerialPort();
 
 	/**
-	 * Sends a string to the serial port.<br>
+	 * Sends a string to the serial port. Commands must be sent in a single
+	 * call, together with their arguments and terminated by
+	 * <code>SEPARATOR</code> (e.g. <code>STR;0.5;0.5;1;1;</code>).<br>
 	 * 
 	 * This method <b>does not opens, nor closes a serial port</b>. To open or
 	 * close a serial port, use <code>openSerialPort()</code> and
@@ -72,6 +138,57 @@ public interface KNDLSerialComm {
 	 */
 	public void sendData(String data) throws Exception;
 
+	/**
+	 * Sends a command without waiting for its answer. The command is sent as
+	 * in <code>sendData()</code>, and the returned future is completed when
+	 * the device sends <code>answer</code> (e.g. <code>ACK</code>), or
+	 * completed exceptionally with a <code>TimeoutException</code> if it
+	 * doesn't arrive within <code>timeout</code>, or with the exception thrown
+	 * if the command can't be sent. Several commands can be sent without
+	 * waiting: every answer is matched with the oldest command waiting for
+	 * it.<br>
+	 * <br>
+	 * This method doesn't read from the serial port. The thread that reads
+	 * the data received must pass every token to <code>tokenReceived()</code>
+	 * (see <code>PendingCommands</code>).<br>
+	 * <br>
+	 * By default, the command is sent with <code>sendData()</code> and the
+	 * future is completed by the default <code>tokenReceived()</code>.
+	 * 
+	 * @param command
+	 *            The command, together with its arguments and terminated by
+	 *            <code>SEPARATOR</code>.
+	 * @param answer
+	 *            The token that the device sends when the command is done.
+	 * @param timeout
+	 *            Maximum time to wait for the answer (milliseconds).
+	 * @return A future completed when the answer arrives.
+	 */
+	public default CompletableFuture<Void> sendCommand(String command, String answer, long timeout) {
+		CompletableFuture<Void> future = SerialCommDefaults.pendingCommands(this).expect(answer, timeout);
+		try {
+			sendData(command);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Checks whether a token received from the device is the answer of a
+	 * command sent with <code>sendCommand()</code>, and completes its future
+	 * if it is. The default implementation matches the commands sent with the
+	 * default <code>sendCommand()</code>.
+	 * 
+	 * @param token
+	 *            The tokenizer that found the token.
+	 * @return True if the token was the answer of a pending command. False
+	 *         otherwise.
+	 */
+	public default boolean tokenReceived(KNDLTokenizer token) {
+		return SerialCommDefaults.pendingCommands(this).tokenReceived(token);
+	}
+
 	/**
 	 * Receives data from the serial port.<br>
 	 * Any implementation of this method <b>must</b> be a semi-blocking call. In
@@ -89,6 +206,31 @@ public interface KNDLSerialComm {
 	 */
 	public String receiveData() throws Exception;
 
+	/**
+	 * Receives data from the serial port into a buffer supplied by the caller.
+	 * It behaves as <code>receiveData()</code>, but the bytes received are
+	 * stored in <code>buffer</code> instead of being converted into a string,
+	 * so the same buffer can be reused during the whole communication.<br>
+	 * <br>
+	 * By default, it calls <code>receiveData()</code> and copies its
+	 * characters as ISO-8859-1 bytes. The bytes that don't fit in
+	 * <code>buffer</code> are returned by the next call.<br>
+	 * This method <b>does not opens, nor closes a serial port</b>. To open or
+	 * close a serial port, use <code>openSerialPort()</code> and
+	 * <code>closeSerialPort()</code>.
+	 * 
+	 * @param buffer
+	 *            The buffer where the data received is stored, starting at
+	 *            position 0.
+	 * @return The number of bytes received, never greater than the length of
+	 *         <code>buffer</code>.
+	 * @throws Exception
+	 *             If something goes wrong during the receiving of the data.
+	 */
+	public default int receiveData(byte[] buffer) throws Exception {
+		return SerialCommDefaults.receiveData(this, buffer);
+	}
+
 	/**
 	 * Returns an <code>ArrayList&#60;String&#62;</code> with the system-defined
 	 * port names of all the available serial ports with connected devices (e.g.
@@ -1,11 +1,9 @@
 package es.upm.ies.goniophotometer.serial;
 
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 import com.fazecast.jSerialComm.*;
@@ -15,7 +13,14 @@ import es.upm.ies.goniophotometer.exceptions.DeviceNotFoundException;
 
 /**
  * An implementation of the <code>KNDLSerialComm</code> interface that uses the
- * <a href="http://fazecast.github.io/jSerialComm/">jserialcomm library</a>.
+ * <a href="http://fazecast.github.io/jSerialComm/">jserialcomm library</a>.<br>
+ * <br>
+ * By default, it works in event-driven mode: a data listener registered in
+ * the serial port stores the incoming bytes in a bounded ring buffer as soon
+ * as they arrive, and <code>receiveData()</code> waits on that buffer instead
+ * of polling the serial port. If the listener can't be registered, or if
+ * polling mode is requested, <code>receiveData()</code> returns immediately
+ * with whatever is available in the serial port.
  * 
  * @author Abd&oacute;n Alejandro Vivas Imparato
  *
@@ -23,128 +28,279 @@ import es.upm.ies.goniophotometer.exceptions.DeviceNotFoundException;
 public class KNDLSerialCommImpl implements KNDLSerialComm {
 
 	/*
-	 * If modifying this class: Make sure that if you use attributes like these,
-	 * you use a static modifier.
+	 * Serial port of this instance, set by checkSerialPort(). Every instance
+	 * can be connected to a different device.
 	 */
-	private static ArrayList<SerialPort> comPorts = new ArrayList<SerialPort>();
-	private static SerialPort comPort;
+	private SerialPort comPort;
+	// Commands sent with sendCommand() that are waiting for an answer
+	private PendingCommands pendingCommands = new PendingCommands();
+	// Keeps the list of available serial ports up to date
+	private SerialPortWatcher watcher = SerialPortWatcher.getInstance();
+
+	/*
+	 * Size of the buffer used by receiveData(). It is big enough to drain the
+	 * serial port input buffer in a single call.
+	 */
+	private static final int READ_BUFFER_SIZE = 4096;
+	private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+	/*
+	 * Event-driven mode. Capacity of the ring buffer and maximum time that
+	 * receiveData() waits for new data, short enough for the caller to notice
+	 * a stop request.
+	 */
+	private static final int RING_BUFFER_SIZE = 65536;
+	private static final int EVENT_READ_TIMEOUT = 200;
+	private boolean eventDriven;
+	private ByteRingBuffer ringBuffer;
+
+	/*
+	 * Maximum time to wait for the device to be ready after opening the
+	 * serial port. Opening the port resets most Arduino boards, and they
+	 * ignore everything sent while the bootloader is running.
+	 */
+	private static final int BOOT_TIMEOUT = 2500;
+
+	/*
+	 * Baud rate negotiation. Maximum time to wait for each answer of the
+	 * device, time given to the device to switch, and time after which the
+	 * device goes back to the default baud rate if the negotiation fails.
+	 */
+	private static final int BAUD_TIMEOUT = 500;
+	private static final int BAUD_SWITCH_DELAY = 50;
+	private static final int BAUD_REVERT_DELAY = 1100;
+	private int baudRate = KNDLSerialComm.DEFAULT_BAUD_RATE;
 
 	/**
-	 * Creates a new <code>SerialCommImpl</code> instance.
+	 * Creates a new <code>SerialCommImpl</code> instance that works in
+	 * event-driven mode.
 	 */
 	public KNDLSerialCommImpl() {
-		comPorts = new ArrayList<SerialPort>(Arrays.asList(SerialPort.getCommPorts()));
+		this(true);
 	}
 
 	/**
+	 * Creates a new <code>SerialCommImpl</code> instance.
+	 * 
+	 * @param eventDriven
+	 *            True to receive data through a serial port data listener.
+	 *            False to poll the serial port.
+	 */
+	public KNDLSerialCommImpl(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+	}
+
+	/**
+	 * Once the serial port is open, it waits until the device sends
+	 * <code>READY</code> (or for a short time, if the device is not reset when
+	 * the port is opened), so that the first command is not lost. Then it
+	 * negotiates the baud rate set by <code>setBaudRate()</code>.
+	 * 
 	 * @throws DeviceNotFoundException
 	 *             If the device is not accessible (see
 	 *             <code>checkSerialPort()</code>).
 	 * @throws CommPortException
 	 *             If there is a problem while opening the serial port.
+	 * @throws IOException
+	 *             If an I/O error occurs while waiting for the device.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the device.
 	 */
-	public void openSerialPort() throws DeviceNotFoundException, CommPortException {
+	public void openSerialPort()
+			throws DeviceNotFoundException, CommPortException, IOException, InterruptedException {
 		if (comPort != null) {
 			checkSerialPort(comPort.getSystemPortName());
 			if (!comPort.openPort()) {
 				throw new CommPortException();
 			}
+			comPort.setBaudRate(KNDLSerialComm.DEFAULT_BAUD_RATE);
+			// The timeouts stay the same during the whole communication
+			comPort.setComPortTimeouts(
+					SerialPort.TIMEOUT_READ_SEMI_BLOCKING | SerialPort.TIMEOUT_WRITE_SEMI_BLOCKING,
+					KNDLSerialComm.SERIAL_COMM_TIMEOUT, KNDLSerialComm.SERIAL_COMM_TIMEOUT);
+			if (eventDriven) {
+				ringBuffer = new ByteRingBuffer(RING_BUFFER_SIZE);
+				if (!comPort.addDataListener(new DataAvailableListener(ringBuffer))) {
+					// Fall back to polling mode
+					ringBuffer = null;
+				}
+			}
+			waitForToken(KNDLSerialComm.READY, BOOT_TIMEOUT);
+			if (baudRate != KNDLSerialComm.DEFAULT_BAUD_RATE) {
+				negotiateBaudRate();
+			}
 		} else {
 			throw new DeviceNotFoundException();
 		}
 	}
 
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
 	public void closeSerialPort() {
 		if (comPort != null) {
 			if (comPort.isOpen()) {
+				if (ringBuffer != null) {
+					comPort.removeDataListener();
+				}
 				comPort.closePort();
 			}
 		}
+		if (ringBuffer != null) {
+			ringBuffer.close();
+			ringBuffer = null;
+		}
+		pendingCommands.cancelAll(new IOException("The serial port has been closed."));
+	}
+
+	/*
+	 * Asks the device to switch to baudRate and checks that the communication
+	 * works at the new baud rate. If anything fails, both sides go back to the
+	 * default baud rate.
+	 */
+	private void negotiateBaudRate() throws IOException, InterruptedException {
+		sendData(KNDLSerialComm.BAUD + KNDLSerialComm.SEPARATOR + baudRate + KNDLSerialComm.SEPARATOR);
+		if (!waitForToken(KNDLSerialComm.ACK, BAUD_TIMEOUT)) {
+			// The device doesn't support it
+			return;
+		}
+		// Let the device send the ACK and switch before switching too
+		Thread.sleep(BAUD_SWITCH_DELAY);
+		comPort.setBaudRate(baudRate);
+		clearInput();
+		sendData(KNDLSerialComm.PING + KNDLSerialComm.SEPARATOR);
+		if (!waitForToken(KNDLSerialComm.ACK, BAUD_TIMEOUT)) {
+			comPort.setBaudRate(KNDLSerialComm.DEFAULT_BAUD_RATE);
+			// Make sure the device has gone back to the default baud rate
+			Thread.sleep(BAUD_REVERT_DELAY);
+			clearInput();
+		}
+	}
+
+	/*
+	 * Waits until the device sends the specified token or the timeout
+	 * expires. Returns whether the token was received or not.
+	 */
+	private boolean waitForToken(final String expected, int timeout)
+			throws IOException, InterruptedException {
+		final boolean[] received = { false };
+		KNDLTokenizer tokenizer = new KNDLTokenizer(new KNDLTokenizer.TokenListener() {
+			public void token(KNDLTokenizer token) {
+				received[0] |= token.equalsIgnoreCase(expected);
+			}
+		});
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!received[0] && System.currentTimeMillis() < deadline) {
+			int n = receiveData(readBuffer);
+			if (n == 0 && ringBuffer == null) {
+				// Polling mode
+				Thread.sleep(10);
+			}
+			tokenizer.feed(readBuffer, 0, n);
+		}
+		return received[0];
+	}
+
+	/*
+	 * Discards the bytes received so far (e.g. garbage received while
+	 * switching baud rates).
+	 */
+	private void clearInput() throws IOException, InterruptedException {
+		if (ringBuffer != null) {
+			ringBuffer.clear();
+		} else {
+			while (receiveData(readBuffer) > 0) {
+				// Discard
+			}
+		}
+	}
+
+	public CompletableFuture<Void> sendCommand(String command, String answer, long timeout) {
+		CompletableFuture<Void> future = pendingCommands.expect(answer, timeout);
+		try {
+			sendData(command);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public boolean tokenReceived(KNDLTokenizer token) {
+		return pendingCommands.tokenReceived(token);
 	}
 
 	/**
-	 * @throws InterruptedException
-	 *             If the thread that sends data is interrupted.
 	 * @throws IOException
 	 *             If an I/O error occurs.
 	 */
-	public void sendData(String data) throws InterruptedException, IOException {
+	public void sendData(String data) throws IOException {
 		byte[] bytes = data.getBytes();
 
-		try {
-			comPort.setComPortTimeouts(SerialPort.TIMEOUT_WRITE_SEMI_BLOCKING, KNDLSerialComm.SERIAL_COMM_TIMEOUT,
-					KNDLSerialComm.SERIAL_COMM_TIMEOUT);
-			OutputStream out = comPort.getOutputStream();
-			Thread.sleep(1500);
-			out.write(bytes);
-			out.close();
-		} catch (InterruptedException | IOException e) {
-			throw e;
+		if (comPort.writeBytes(bytes, bytes.length) < 0) {
+			throw new IOException("The data couldn't be sent to the serial port.");
 		}
 	}
 
 	/**
 	 * @throws IOException
 	 *             If an I/O error occurs.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
 	 */
-	public String receiveData() throws IOException {
-		StringBuilder res = new StringBuilder("");
-		try {
-			comPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, KNDLSerialComm.SERIAL_COMM_TIMEOUT,
-					KNDLSerialComm.SERIAL_COMM_TIMEOUT);
-			InputStream in = comPort.getInputStream();
-			while (in.available() != 0) {
-				res.append((char) in.read());
+	public String receiveData() throws IOException, InterruptedException {
+		int n = receiveData(readBuffer);
+		return new String(readBuffer, 0, n, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * In event-driven mode, it waits until there is data in the ring buffer
+	 * (for a fraction of a second at most) and then takes all of it. In
+	 * polling mode, it drains all the bytes available in the serial port with
+	 * a single read.
+	 * 
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public int receiveData(byte[] buffer) throws IOException, InterruptedException {
+		ByteRingBuffer ring = ringBuffer;
+		if (ring != null) {
+			return ring.read(buffer, EVENT_READ_TIMEOUT);
+		}
+		int n = comPort.bytesAvailable();
+		if (n < 0) {
+			throw new IOException("The serial port is not open.");
+		}
+		n = Math.min(n, buffer.length);
+		if (n > 0) {
+			n = comPort.readBytes(buffer, n);
+			if (n < 0) {
+				throw new IOException("The data couldn't be received from the serial port.");
 			}
-			in.close();
-		} catch (IOException e) {
-			throw e;
 		}
-		return res.toString();
+		return n;
 	}
 
+	/**
+	 * The list comes from the last snapshot of <code>SerialPortWatcher</code>,
+	 * so it doesn't wait for the operating system.
+	 */
 	public ArrayList<String> getComPorts() {
-		ArrayList<String> spn = new ArrayList<String>(); // SytemPortNames
-		List<SerialPort> auxList = Arrays.asList(SerialPort.getCommPorts());
-
-		comPorts.clear();
-		comPorts.addAll(auxList);
-
-		for (SerialPort port : comPorts) {
-			spn.add(port.getSystemPortName());
-		}
-
-		return spn;
+		return new ArrayList<String>(watcher.getSnapshot().getPortNames());
 	}
 
+	/**
+	 * The list comes from the last snapshot of <code>SerialPortWatcher</code>,
+	 * so it doesn't wait for the operating system.
+	 */
 	public ArrayList<String> getComPortDescriptions() {
-		ArrayList<String> dpn = new ArrayList<String>(); // descriptivePortNames
-		List<SerialPort> auxList = Arrays.asList(SerialPort.getCommPorts());
-
-		comPorts.clear();
-		comPorts.addAll(auxList);
-
-		for (SerialPort port : comPorts) {
-			dpn.add(port.getDescriptivePortName());
-		}
-
-		return dpn;
+		return new ArrayList<String>(watcher.getSnapshot().getDescriptions());
 	}
 
 	public String getComPortDescription(String portName) {
-		String description = "";
-		List<SerialPort> auxList = Arrays.asList(SerialPort.getCommPorts());
-
-		comPorts.clear();
-		comPorts.addAll(auxList);
-
-		for (SerialPort port : comPorts) {
-			if (portName.equals(port.getSystemPortName())) {
-				description = port.getDescriptivePortName();
-			}
-		}
-
-		return description;
+		return watcher.getSnapshot().getDescription(portName);
 	}
 
 	/**
@@ -154,32 +310,60 @@ public class KNDLSerialCommImpl implements KNDLSerialComm {
 	 */
 	public boolean checkSerialPort(String portName) {
 		boolean valido = false;
-		List<SerialPort> auxList = Arrays.asList(SerialPort.getCommPorts());
+		SerialPort serialPort = watcher.getSnapshot().getPort(portName);
 
-		comPorts.clear();
-		comPorts.addAll(auxList);
-
-		if (!"".equals(portName)) {
-			for (SerialPort serialPort : comPorts) {
-				if (portName.equals(serialPort.getSystemPortName())) {
-					comPort = serialPort;
-					valido = true;
-				}
-			}
+		if (serialPort != null) {
+			comPort = serialPort;
+			valido = true;
 		}
 		return valido;
 	}
 
 	public String matchRegEx(String regularExpression) {
 		String port = "";
-		for (SerialPort serialPort : comPorts) {
-			String description = serialPort.getDescriptivePortName();
+		SerialPortWatcher.Snapshot snapshot = watcher.getSnapshot();
+		for (int i = 0; i < snapshot.getDescriptions().size(); i++) {
+			String description = snapshot.getDescriptions().get(i);
 			boolean b = Pattern.matches(regularExpression, description);
 			if (b) {
-				port = serialPort.getSystemPortName();
+				port = snapshot.getPortNames().get(i);
 				break;
 			}
 		}
 		return port;
 	}
+
+	/*
+	 * Moves the bytes received by the serial port into the ring buffer as
+	 * soon as the serial port notifies that they are available.
+	 */
+	private static class DataAvailableListener implements SerialPortDataListener {
+		private ByteRingBuffer ring;
+		private byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+		public DataAvailableListener(ByteRingBuffer ring) {
+			this.ring = ring;
+		}
+
+		public int getListeningEvents() {
+			return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+		}
+
+		public void serialEvent(SerialPortEvent event) {
+			SerialPort port = event.getSerialPort();
+			int n = port.bytesAvailable();
+			try {
+				while (n > 0) {
+					n = port.readBytes(buffer, Math.min(n, buffer.length));
+					if (n > 0) {
+						ring.write(buffer, 0, n);
+					}
+					n = port.bytesAvailable();
+				}
+			} catch (InterruptedException e) {
+				// The bytes not read yet stay in the serial port
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 }
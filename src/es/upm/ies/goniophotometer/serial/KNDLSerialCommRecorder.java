@@ -0,0 +1,234 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An implementation of the <code>KNDLSerialComm</code> interface that
+ * delegates on another one and records all the data sent to and received from
+ * the device in a capture file, so the session can be reproduced later with
+ * <code>KNDLSerialCommReplay</code>.<br>
+ * <br>
+ * The capture file starts with <code>MAGIC</code>, followed by a record for
+ * every call to <code>sendData()</code> and for every call to
+ * <code>receiveData()</code> that returned any data. Each record is made of:
+ * <ul>
+ * <li>The direction of the data (1 byte): <code>SENT</code> or
+ * <code>RECEIVED</code>.</li>
+ * <li>The time since the serial port was first opened, in microseconds (8
+ * bytes).</li>
+ * <li>The number of bytes of data (4 bytes).</li>
+ * <li>The data, exactly as sent or received.</li>
+ * </ul>
+ * All numbers are big-endian, as written by <code>DataOutputStream</code>. If
+ * the capture file can't be written, the communication goes on without it.<br>
+ * <br>
+ * A recorder has a single capture file. If the serial port is opened again
+ * (e.g. when a measure is resumed), the records are appended to it and their
+ * time keeps counting from the first time, so the capture is never
+ * overwritten and its records are always in order.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLSerialCommRecorder implements KNDLSerialComm {
+
+	/**
+	 * First bytes of every capture file.
+	 */
+	public static final String MAGIC = "KNDLCAP1";
+	/**
+	 * Direction of the data sent to the device.
+	 */
+	public static final int SENT = 'S';
+	/**
+	 * Direction of the data received from the device.
+	 */
+	public static final int RECEIVED = 'R';
+	/**
+	 * Extension of the capture files.
+	 */
+	public static final String EXTENSION = ".cap";
+
+	private KNDLSerialComm serial;
+	private String fileName;
+	private DataOutputStream out;
+	private long startTime;
+	// Whether the capture file has been created
+	private boolean created;
+	// Whether the capture file couldn't be written. It is left as it is
+	private boolean failed;
+	// Commands sent with sendCommand() that are waiting for an answer
+	private PendingCommands pendingCommands = new PendingCommands();
+
+	/**
+	 * Creates a new <code>KNDLSerialCommRecorder</code> instance. The capture
+	 * file is created when the serial port is opened for the first time.
+	 *
+	 * @param serial
+	 *            The object used to communicate with the device.
+	 * @param directory
+	 *            Directory where the capture file is to be located. It is
+	 *            created if it doesn't exist.
+	 * @param name
+	 *            Name of the session (e.g. the name of the measure), to be
+	 *            used in the name of the capture file after the current date.
+	 */
+	public KNDLSerialCommRecorder(KNDLSerialComm serial, String directory, String name) {
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH'h'mm");
+		Calendar calendar = new GregorianCalendar();
+		this.serial = serial;
+		this.fileName = directory + sdf.format(calendar.getTime()) + "_" + name + EXTENSION;
+	}
+
+	/**
+	 * Returns the name of the capture file.
+	 *
+	 * @return The path to the capture file.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void openSerialPort() throws Exception {
+		serial.openSerialPort();
+		synchronized (this) {
+			if (failed || out != null) {
+				return;
+			}
+			File file = new File(fileName);
+			try {
+				if (created) {
+					// Reopened: the records go on after the previous ones
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+				} else {
+					File directory = file.getParentFile();
+					if (directory != null && !directory.exists()) {
+						directory.mkdirs();
+					}
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+					out.write(MAGIC.getBytes(StandardCharsets.ISO_8859_1));
+					startTime = System.nanoTime();
+					created = true;
+				}
+			} catch (IOException e) {
+				stopRecording();
+			}
+		}
+	}
+
+	public void setBaudRate(int baudRate) {
+		serial.setBaudRate(baudRate);
+	}
+
+	public void closeSerialPort() {
+		serial.closeSerialPort();
+		pendingCommands.cancelAll(new IOException("The serial port has been closed."));
+		synchronized (this) {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Do nothing. The capture is as complete as it can be
+				}
+				out = null;
+			}
+		}
+	}
+
+	public void sendData(String data) throws Exception {
+		serial.sendData(data);
+		byte[] bytes = data.getBytes();
+		record(SENT, bytes, bytes.length);
+	}
+
+	public CompletableFuture<Void> sendCommand(String command, String answer, long timeout) {
+		CompletableFuture<Void> future = pendingCommands.expect(answer, timeout);
+		try {
+			sendData(command);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public boolean tokenReceived(KNDLTokenizer token) {
+		return pendingCommands.tokenReceived(token);
+	}
+
+	public String receiveData() throws Exception {
+		String data = serial.receiveData();
+		byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+		record(RECEIVED, bytes, bytes.length);
+		return data;
+	}
+
+	public int receiveData(byte[] buffer) throws Exception {
+		int n = serial.receiveData(buffer);
+		record(RECEIVED, buffer, n);
+		return n;
+	}
+
+	/*
+	 * Writes a record in the capture file. Data received and sent may be
+	 * recorded from different threads.
+	 */
+	private synchronized void record(int direction, byte[] data, int length) {
+		if (out == null || (direction == RECEIVED && length == 0)) {
+			return;
+		}
+		try {
+			out.writeByte(direction);
+			out.writeLong((System.nanoTime() - startTime) / 1000);
+			out.writeInt(length);
+			out.write(data, 0, length);
+		} catch (IOException e) {
+			// Stop recording, but don't disturb the communication
+			stopRecording();
+		}
+	}
+
+	/*
+	 * Stops recording for good, as the last record may be incomplete.
+	 */
+	private void stopRecording() {
+		failed = true;
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Do nothing
+			}
+			out = null;
+		}
+	}
+
+	public ArrayList<String> getComPorts() {
+		return serial.getComPorts();
+	}
+
+	public ArrayList<String> getComPortDescriptions() {
+		return serial.getComPortDescriptions();
+	}
+
+	public String getComPortDescription(String portName) {
+		return serial.getComPortDescription(portName);
+	}
+
+	public boolean checkSerialPort(String portName) {
+		return serial.checkSerialPort(portName);
+	}
+
+	public String matchRegEx(String regularExpression) {
+		return serial.matchRegEx(regularExpression);
+	}
+}
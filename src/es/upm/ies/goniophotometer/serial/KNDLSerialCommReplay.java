@@ -0,0 +1,239 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An implementation of the <code>KNDLSerialComm</code> interface that, instead
+ * of using a serial port, plays back a capture file recorded by
+ * <code>KNDLSerialCommRecorder</code>. The data received from the device is
+ * returned by <code>receiveData()</code> in the same chunks it was received,
+ * but never before KNDL has sent what it sent at that point of the session
+ * (e.g. the acknowledgement of a command is only returned once the command is
+ * sent). The data sent is not checked against the capture.<br>
+ * <br>
+ * The capture can be played back at its original timing or as fast as
+ * possible.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLSerialCommReplay implements KNDLSerialComm {
+
+	/**
+	 * Name of the port of the replayed device.
+	 */
+	public static final String REPLAY_PORT_NAME = "REPLAY";
+
+	/*
+	 * Maximum time that receiveData() waits for new data, as the rest of
+	 * implementations.
+	 */
+	private static final int READ_TIMEOUT = 200;
+
+	private String fileName;
+	private boolean realTime;
+	private byte[] readBuffer = new byte[4096];
+
+	// Records of the capture
+	private int[] directions;
+	private long[] times;
+	private byte[][] data;
+	private int count;
+	// Next record to be played back and bytes of it already returned
+	private int next;
+	private int offset;
+	// Time, in the clock of the capture, corresponding to System.nanoTime() = 0
+	private long timeBase;
+	// Commands sent with sendCommand() that are waiting for an answer
+	private PendingCommands pendingCommands = new PendingCommands();
+
+	/**
+	 * Creates a new <code>KNDLSerialCommReplay</code> instance. The capture
+	 * file is read when the serial port is opened.
+	 *
+	 * @param fileName
+	 *            The path to the capture file.
+	 * @param realTime
+	 *            True to return the data at the same time it was received
+	 *            during the session. False to return it as fast as possible.
+	 */
+	public KNDLSerialCommReplay(String fileName, boolean realTime) {
+		this.fileName = fileName;
+		this.realTime = realTime;
+	}
+
+	/**
+	 * Reads the whole capture file.
+	 *
+	 * @throws IOException
+	 *             If the capture file can't be read or is not a capture file.
+	 */
+	public synchronized void openSerialPort() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		try {
+			byte[] magic = new byte[KNDLSerialCommRecorder.MAGIC.length()];
+			in.readFully(magic);
+			if (!KNDLSerialCommRecorder.MAGIC.equals(new String(magic, StandardCharsets.ISO_8859_1))) {
+				throw new IOException(fileName + " is not a KNDL capture file.");
+			}
+			directions = new int[64];
+			times = new long[64];
+			data = new byte[64][];
+			count = 0;
+			while (true) {
+				int direction = in.read();
+				if (direction < 0) {
+					break;
+				}
+				if (count == directions.length) {
+					directions = Arrays.copyOf(directions, count * 2);
+					times = Arrays.copyOf(times, count * 2);
+					data = Arrays.copyOf(data, count * 2);
+				}
+				directions[count] = direction;
+				times[count] = in.readLong() * 1000;
+				data[count] = new byte[in.readInt()];
+				in.readFully(data[count]);
+				count++;
+			}
+		} catch (EOFException e) {
+			// The session was interrupted while recording. Play what there is
+		} finally {
+			in.close();
+		}
+		next = 0;
+		offset = 0;
+		timeBase = -System.nanoTime();
+	}
+
+	public void setBaudRate(int baudRate) {
+		// Do nothing. The data is played back at its original timing
+	}
+
+	public void closeSerialPort() {
+		synchronized (this) {
+			next = count;
+			notifyAll();
+		}
+		pendingCommands.cancelAll(new IOException("The serial port has been closed."));
+	}
+
+	public CompletableFuture<Void> sendCommand(String command, String answer, long timeout) {
+		CompletableFuture<Void> future = pendingCommands.expect(answer, timeout);
+		try {
+			sendData(command);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public boolean tokenReceived(KNDLTokenizer token) {
+		return pendingCommands.tokenReceived(token);
+	}
+
+	/**
+	 * If the capture is waiting for KNDL to send data, it goes on to the next
+	 * record.
+	 */
+	public synchronized void sendData(String data) {
+		if (next < count && directions[next] == KNDLSerialCommRecorder.SENT) {
+			// Keep the timing relative to the moment the data is sent
+			timeBase = times[next] - System.nanoTime();
+			next++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public String receiveData() throws InterruptedException {
+		int n = receiveData(readBuffer);
+		return new String(readBuffer, 0, n, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * It waits until the next data received from the device is due (for a
+	 * fraction of a second at most) and returns it. If the capture is waiting
+	 * for KNDL to send data, or if it is over, it returns no data.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public synchronized int receiveData(byte[] buffer) throws InterruptedException {
+		long deadline = System.nanoTime() + READ_TIMEOUT * 1000000L;
+		while (true) {
+			if (next >= count) {
+				return 0;
+			}
+			long now = System.nanoTime();
+			long wait;
+			if (directions[next] == KNDLSerialCommRecorder.SENT) {
+				wait = deadline - now;
+			} else if (realTime && times[next] > timeBase + now) {
+				wait = Math.min(times[next] - timeBase - now, deadline - now);
+			} else {
+				break;
+			}
+			if (wait <= 0) {
+				return 0;
+			}
+			wait((wait + 999999) / 1000000);
+		}
+		byte[] record = data[next];
+		int n = Math.min(buffer.length, record.length - offset);
+		System.arraycopy(record, offset, buffer, 0, n);
+		offset += n;
+		if (offset == record.length) {
+			next++;
+			offset = 0;
+		}
+		return n;
+	}
+
+	public ArrayList<String> getComPorts() {
+		ArrayList<String> spn = new ArrayList<String>();
+		spn.add(REPLAY_PORT_NAME);
+		return spn;
+	}
+
+	public ArrayList<String> getComPortDescriptions() {
+		ArrayList<String> dpn = new ArrayList<String>();
+		dpn.add(getComPortDescription(REPLAY_PORT_NAME));
+		return dpn;
+	}
+
+	public String getComPortDescription(String portName) {
+		String description = "";
+		if (REPLAY_PORT_NAME.equals(portName)) {
+			description = "Replay of " + fileName;
+		}
+		return description;
+	}
+
+	/**
+	 * The replayed device accepts any port name, so it can be used with any
+	 * configuration.
+	 */
+	public boolean checkSerialPort(String portName) {
+		return true;
+	}
+
+	public String matchRegEx(String regularExpression) {
+		String port = "";
+		if (getComPortDescription(REPLAY_PORT_NAME).matches(regularExpression)) {
+			port = REPLAY_PORT_NAME;
+		}
+		return port;
+	}
+}
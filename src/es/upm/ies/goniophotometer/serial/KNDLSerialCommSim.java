@@ -0,0 +1,606 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An implementation of the <code>KNDLSerialComm</code> interface that, instead
+ * of using a serial port, talks to a simulated goniophotometer running in a
+ * thread of its own. The simulated device speaks the same protocol as the
+ * Arduino implementation (<code>goniophotometer.ino</code>): it answers
+ * <code>STR</code>, <code>RSM</code>, <code>STP</code>, <code>CAL</code>,
+ * <code>FMT</code> and <code>PNG</code>, sends <code>DAT</code> frames in ASCII or binary format,
+ * and moves its motors following the same path, so the angles, the number of
+ * samples and the order in which they are sent are the same as with the real
+ * device.<br>
+ * <br>
+ * The luminous intensity of the simulated light source follows one of the
+ * distributions in <code>Distribution</code>. The time taken by the motors,
+ * the time the device waits for the structure to settle after every movement
+ * and the transmission time of the serial line can be emulated. If none of
+ * them is, the simulator runs in fast-forward mode and the measure is done as
+ * fast as KNDL can process it.<br>
+ * <br>
+ * The simulated device accepts any port name, so it can be used with any
+ * configuration.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLSerialCommSim implements KNDLSerialComm {
+
+	/**
+	 * Name of the port of the simulated device.
+	 */
+	public static final String SIM_PORT_NAME = "SIM";
+	/**
+	 * Maximum baud rate of an Arduino board.
+	 */
+	public static final int ARDUINO_BAUD_RATE = 115200;
+	/**
+	 * Time taken by a step of the motors of the Arduino implementation
+	 * (milliseconds). Its motors move at 1 rpm with 720 steps per revolution.
+	 */
+	public static final int ARDUINO_MS_PER_STEP = 83;
+	/**
+	 * Time the Arduino implementation waits after moving the motor
+	 * corresponding to the azimuth angle (milliseconds).
+	 */
+	public static final int ARDUINO_SETTLE_DELAY = 100;
+
+	/**
+	 * Luminous intensity distributions of the simulated light source. All of
+	 * them give, for the polar angle <code>theta</code> and the azimuth angle
+	 * <code>phi</code> (degrees), the voltage measured by the sensor, which is
+	 * 1 V at most.
+	 */
+	public enum Distribution {
+		/**
+		 * Lambertian source: the intensity is proportional to the cosine of
+		 * the polar angle.
+		 */
+		LAMBERTIAN {
+			public double volts(double theta, double phi) {
+				return Math.max(0, Math.cos(Math.toRadians(theta)));
+			}
+		},
+		/**
+		 * Narrow spot light, with a full width at half maximum of about 20
+		 * degrees.
+		 */
+		SPOT {
+			public double volts(double theta, double phi) {
+				return Math.pow(Math.max(0, Math.cos(Math.toRadians(theta))), 50);
+			}
+		},
+		/**
+		 * Asymmetric street light: a wide beam with a lobe at 65 degrees from
+		 * the vertical towards the road (azimuth angle 0), and less light
+		 * towards the houses (azimuth angle 180).
+		 */
+		STREET {
+			public double volts(double theta, double phi) {
+				double base = 0.3 * Math.max(0, Math.cos(Math.toRadians(theta)));
+				double lobe = Math.exp(-Math.pow((theta - 65) / 15, 2));
+				double road = 0.5 + 0.5 * Math.cos(Math.toRadians(phi));
+				return base + 0.7 * lobe * road * road;
+			}
+		};
+
+		/**
+		 * Returns the voltage measured by the sensor in the specified
+		 * direction.
+		 *
+		 * @param theta
+		 *            Polar angle, in degrees.
+		 * @param phi
+		 *            Azimuth angle, in degrees.
+		 * @return The voltage measured by the sensor, between 0 and 1 V.
+		 */
+		public abstract double volts(double theta, double phi);
+	}
+
+	/*
+	 * Sensor of the simulated device. Same resolution as the MCP3422 in 16-bit
+	 * mode, and a small offset to be measured by the calibration.
+	 */
+	private static final double RAW_SCALE = 0.0000625;
+	private static final double DARK_OFFSET = 0.00125;
+	private static final int CALIBRATION_MEASURES = 5;
+
+	/*
+	 * Same limit and delay before starting as the Arduino implementation
+	 * (gpMotors.h, goniophotometer.ino). The delay is not emulated in
+	 * fast-forward mode.
+	 */
+	private static final int POLAR_ANGLE_LIMIT = 90;
+	private static final int START_DELAY = 1000;
+
+	/*
+	 * Time the device waits for the arguments of a command, as the default
+	 * timeout of the Arduino serial port.
+	 */
+	private static final int ARGUMENT_TIMEOUT = 1000;
+	private static final int RING_BUFFER_SIZE = 65536;
+	private static final int EVENT_READ_TIMEOUT = 200;
+
+	private Distribution distribution;
+	private int maxBaudRate;
+	private int msPerStep;
+	private int settleDelay;
+	private int baudRate = KNDLSerialComm.DEFAULT_BAUD_RATE;
+	private byte[] readBuffer = new byte[4096];
+
+	/*
+	 * Host side: bytes sent by the device, and tokens sent by KNDL (split by
+	 * the same tokenizer KNDL uses).
+	 */
+	private ByteRingBuffer toHost;
+	private LinkedBlockingQueue<String> toDevice;
+	private KNDLTokenizer commandTokenizer;
+	private Thread deviceThread;
+	// Commands sent with sendCommand() that are waiting for an answer
+	private PendingCommands pendingCommands = new PendingCommands();
+	private final SimulatedDevice device = new SimulatedDevice();
+
+	/**
+	 * Creates a new <code>KNDLSerialCommSim</code> instance in fast-forward
+	 * mode.
+	 *
+	 * @param distribution
+	 *            Luminous intensity distribution of the simulated light source.
+	 */
+	public KNDLSerialCommSim(Distribution distribution) {
+		this(distribution, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a new <code>KNDLSerialCommSim</code> instance.
+	 *
+	 * @param distribution
+	 *            Luminous intensity distribution of the simulated light source.
+	 * @param maxBaudRate
+	 *            Maximum baud rate accepted by the device. The transmission
+	 *            time of the data sent by the device is emulated according to
+	 *            the baud rate in use. Zero to send the data instantly at any
+	 *            baud rate.
+	 * @param msPerStep
+	 *            Time taken by a step of the motors (milliseconds). Zero to
+	 *            move them instantly.
+	 * @param settleDelay
+	 *            Time the device waits after moving the motors (milliseconds).
+	 *            Zero not to wait.
+	 */
+	public KNDLSerialCommSim(Distribution distribution, int maxBaudRate, int msPerStep, int settleDelay) {
+		this.distribution = distribution;
+		this.maxBaudRate = maxBaudRate;
+		this.msPerStep = msPerStep;
+		this.settleDelay = settleDelay;
+	}
+
+	/**
+	 * Starts the simulated device, which sends <code>READY</code> right away.
+	 * As there is no real line to get out of sync, the baud rate set by
+	 * <code>setBaudRate()</code> is used directly if the device supports it.
+	 */
+	public void openSerialPort() {
+		closeSerialPort();
+		if (maxBaudRate == 0 || baudRate <= maxBaudRate) {
+			device.baudRate = baudRate;
+		} else {
+			device.baudRate = KNDLSerialComm.DEFAULT_BAUD_RATE;
+		}
+		toHost = new ByteRingBuffer(RING_BUFFER_SIZE);
+		toDevice = new LinkedBlockingQueue<String>();
+		commandTokenizer = new KNDLTokenizer(new KNDLTokenizer.TokenListener() {
+			public void token(KNDLTokenizer token) {
+				toDevice.add(token.toString());
+			}
+		});
+		deviceThread = new Thread(device, "KNDL simulated device");
+		deviceThread.setDaemon(true);
+		deviceThread.start();
+	}
+
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	public void closeSerialPort() {
+		if (deviceThread != null) {
+			deviceThread.interrupt();
+			toHost.close();
+			try {
+				deviceThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			deviceThread = null;
+		}
+		pendingCommands.cancelAll(new IOException("The serial port has been closed."));
+	}
+
+	public CompletableFuture<Void> sendCommand(String command, String answer, long timeout) {
+		CompletableFuture<Void> future = pendingCommands.expect(answer, timeout);
+		try {
+			sendData(command);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public boolean tokenReceived(KNDLTokenizer token) {
+		return pendingCommands.tokenReceived(token);
+	}
+
+	public synchronized void sendData(String data) {
+		commandTokenizer.feed(data);
+	}
+
+	/**
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public String receiveData() throws InterruptedException {
+		int n = receiveData(readBuffer);
+		return new String(readBuffer, 0, n, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * It waits until the device sends some data (for a fraction of a second at
+	 * most) and then takes all of it.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for data.
+	 */
+	public int receiveData(byte[] buffer) throws InterruptedException {
+		return toHost.read(buffer, EVENT_READ_TIMEOUT);
+	}
+
+	public ArrayList<String> getComPorts() {
+		ArrayList<String> spn = new ArrayList<String>();
+		spn.add(SIM_PORT_NAME);
+		return spn;
+	}
+
+	public ArrayList<String> getComPortDescriptions() {
+		ArrayList<String> dpn = new ArrayList<String>();
+		dpn.add(getComPortDescription(SIM_PORT_NAME));
+		return dpn;
+	}
+
+	public String getComPortDescription(String portName) {
+		String description = "";
+		if (SIM_PORT_NAME.equals(portName)) {
+			description = "Simulated goniophotometer (" + distribution + ")";
+		}
+		return description;
+	}
+
+	public boolean checkSerialPort(String portName) {
+		return true;
+	}
+
+	public String matchRegEx(String regularExpression) {
+		String port = "";
+		if (Pattern.matches(regularExpression, getComPortDescription(SIM_PORT_NAME))) {
+			port = SIM_PORT_NAME;
+		}
+		return port;
+	}
+
+	/*
+	 * The simulated device. Its main loop does the same as loop() and
+	 * serialEvent() in goniophotometer.ino, and the movement of the motors is
+	 * the same as in gpMotors.cpp.
+	 */
+	private class SimulatedDevice implements Runnable {
+		private static final int IDLE = 0;
+		private static final int MEASURING = 1;
+		private static final int CALIBRATING = 2;
+
+		private int state;
+		private int baudRate;
+		// Transmission time owed to the emulated serial line (nanoseconds)
+		private long linkDebt;
+		private boolean binaryFrames;
+		private byte[] frame = new byte[KNDLTokenizer.FRAME_LENGTH];
+
+		// Motors
+		private float dpsTheta;
+		private float dpsPhi;
+		private int resTheta;
+		private int resPhi;
+		private int sprPhi;
+		private int thetaSteps;
+		private int phiSteps;
+		private int thetaDir;
+		private int phiDir;
+		private boolean eom;
+		// The motors are not moved while following the path to resume a measure
+		private boolean dryRun;
+
+		// Calibration
+		private double calValue;
+		private int calMeasures;
+
+		public void run() {
+			state = IDLE;
+			binaryFrames = false;
+			linkDebt = 0;
+			try {
+				send(KNDLSerialComm.READY + KNDLSerialComm.SEPARATOR);
+				while (!Thread.currentThread().isInterrupted()) {
+					String command;
+					if (state == IDLE) {
+						command = toDevice.poll(EVENT_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+					} else {
+						command = toDevice.poll();
+					}
+					if (command != null) {
+						command(command);
+					}
+					if (state == MEASURING) {
+						takeMeasure();
+					} else if (state == CALIBRATING) {
+						calibrate();
+					}
+				}
+			} catch (InterruptedException e) {
+				// The serial port has been closed
+			}
+		}
+
+		/*
+		 * Changes the state of the device depending on the command received.
+		 */
+		private void command(String command) throws InterruptedException {
+			if (command.equalsIgnoreCase(KNDLSerialComm.START)) {
+				motorsInit();
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+				pause(START_DELAY);
+				state = MEASURING;
+			} else if (command.equalsIgnoreCase(KNDLSerialComm.RESUME)) {
+				motorsInit();
+				int lastThetaSteps = Integer.parseInt(argument());
+				int lastPhiSteps = Integer.parseInt(argument());
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+				pause(START_DELAY);
+				resume(lastThetaSteps, lastPhiSteps);
+				if (eom) {
+					// The last sample had already been received
+					send(KNDLSerialComm.END + KNDLSerialComm.SEPARATOR);
+					state = IDLE;
+				} else {
+					state = MEASURING;
+				}
+			} else if (command.equalsIgnoreCase(KNDLSerialComm.STOP)) {
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+				state = IDLE;
+			} else if (command.equalsIgnoreCase(KNDLSerialComm.CALIBRATE)) {
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+				pause(START_DELAY);
+				calValue = 0;
+				calMeasures = 0;
+				state = CALIBRATING;
+			} else if (command.equalsIgnoreCase(KNDLSerialComm.FORMAT)) {
+				binaryFrames = argument().equalsIgnoreCase(KNDLSerialComm.BINARY);
+				if (binaryFrames) {
+					send(KNDLSerialComm.BINARY + KNDLSerialComm.SEPARATOR + format(RAW_SCALE, 10)
+							+ KNDLSerialComm.SEPARATOR);
+				} else {
+					send(KNDLSerialComm.ASCII + KNDLSerialComm.SEPARATOR);
+				}
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+			} else if (command.equalsIgnoreCase(KNDLSerialComm.PING)) {
+				send(KNDLSerialComm.ACK + KNDLSerialComm.SEPARATOR);
+			} else {
+				state = IDLE;
+			}
+		}
+
+		/*
+		 * Reads the configuration sent along with the start and resume
+		 * commands and puts the motors at the reference.
+		 */
+		private void motorsInit() throws InterruptedException {
+			dpsTheta = Float.parseFloat(argument());
+			dpsPhi = Float.parseFloat(argument());
+			resTheta = Integer.parseInt(argument());
+			resPhi = Integer.parseInt(argument());
+			sprPhi = (int) (360 / dpsPhi);
+			thetaSteps = 0;
+			phiSteps = 0;
+			thetaDir = 1;
+			phiDir = 1;
+			eom = false;
+		}
+
+		/*
+		 * Follows the path of the motors, without moving them, up to the
+		 * position of the last sample received by KNDL and one position
+		 * further. Then the motors are moved straight to that position.
+		 */
+		private void resume(int lastThetaSteps, int lastPhiSteps) throws InterruptedException {
+			dryRun = true;
+			while (!eom && (thetaSteps != lastThetaSteps || phiSteps != lastPhiSteps)) {
+				movePhi();
+			}
+			if (!eom) {
+				movePhi();
+			}
+			dryRun = false;
+			if (!eom) {
+				move(thetaSteps + phiSteps);
+			}
+		}
+
+		/*
+		 * Waits for the next argument of a command. Gives an empty string if
+		 * it doesn't arrive in time, as the Arduino serial port does.
+		 */
+		private String argument() throws InterruptedException {
+			String argument = toDevice.poll(ARGUMENT_TIMEOUT, TimeUnit.MILLISECONDS);
+			return argument == null ? "" : argument;
+		}
+
+		/*
+		 * Measures the offset of the goniophotometer. The light source is off
+		 * during the calibration, so the sensor only gives its offset.
+		 */
+		private void calibrate() throws InterruptedException {
+			send("Calibrating..." + KNDLSerialComm.SEPARATOR);
+			calValue += quantize(DARK_OFFSET);
+			send(format(calValue, 5) + KNDLSerialComm.SEPARATOR);
+			calMeasures++;
+			if (calMeasures == CALIBRATION_MEASURES) {
+				calValue /= CALIBRATION_MEASURES;
+				send(KNDLSerialComm.DATA + KNDLSerialComm.SEPARATOR + format(calValue, 5) + KNDLSerialComm.SEPARATOR
+						+ KNDLSerialComm.END + KNDLSerialComm.SEPARATOR);
+				state = IDLE;
+			}
+		}
+
+		/*
+		 * Takes a measure, sends it and moves the motors to the next position.
+		 */
+		private void takeMeasure() throws InterruptedException {
+			float theta = thetaSteps * dpsTheta;
+			float phi = phiSteps * dpsPhi;
+			double value = measure(theta, phi);
+			if (binaryFrames) {
+				sendFrame((int) Math.round(value / RAW_SCALE));
+			} else {
+				send(KNDLSerialComm.DATA + KNDLSerialComm.SEPARATOR + format(theta, 2) + KNDLSerialComm.SEPARATOR
+						+ format(phi, 2) + KNDLSerialComm.SEPARATOR + format(value, 5) + KNDLSerialComm.SEPARATOR);
+			}
+			movePhi();
+			if (eom) {
+				send(KNDLSerialComm.END + KNDLSerialComm.SEPARATOR);
+				state = IDLE;
+			}
+		}
+
+		/*
+		 * Voltage given by the sensor, with its offset and resolution.
+		 */
+		private double measure(double theta, double phi) {
+			return quantize(distribution.volts(theta, phi) + DARK_OFFSET);
+		}
+
+		/*
+		 * Voltage read by the ADC, with its resolution.
+		 */
+		private double quantize(double volts) {
+			return Math.round(volts / RAW_SCALE) * RAW_SCALE;
+		}
+
+		private void sendFrame(int raw) throws InterruptedException {
+			frame[0] = (byte) KNDLTokenizer.FRAME_SYNC;
+			frame[1] = (byte) thetaSteps;
+			frame[2] = (byte) (thetaSteps >> 8);
+			frame[3] = (byte) phiSteps;
+			frame[4] = (byte) (phiSteps >> 8);
+			frame[5] = (byte) raw;
+			frame[6] = (byte) (raw >> 8);
+			frame[7] = (byte) (raw >> 16);
+			frame[8] = (byte) KNDLTokenizer.crc8(frame, KNDLTokenizer.FRAME_LENGTH - 1);
+			send(frame, frame.length);
+		}
+
+		/*
+		 * Moves the motor corresponding to the azimuth angle or, at the end of
+		 * a turn and at the pole, the one corresponding to the polar angle.
+		 */
+		private void movePhi() throws InterruptedException {
+			phiSteps += phiDir * resPhi;
+			if (phiSteps == sprPhi || phiSteps < 0) {
+				phiDir *= -1;
+				phiSteps += phiDir * resPhi;
+				moveTheta();
+			} else if (thetaSteps == 0 || thetaSteps == (int) (180 / dpsTheta)) {
+				moveTheta();
+				// Undo the step counted
+				phiSteps -= phiDir * resPhi;
+			} else {
+				move(resPhi);
+			}
+		}
+
+		/*
+		 * Moves the motor corresponding to the polar angle.
+		 */
+		private void moveTheta() throws InterruptedException {
+			int limit = (int) (POLAR_ANGLE_LIMIT / dpsTheta);
+			thetaSteps += thetaDir * resTheta;
+			if (thetaSteps > limit) {
+				// Back to the reference
+				move(limit + (phiDir < 0 ? sprPhi : 0));
+				eom = true;
+			} else if (thetaSteps == limit) {
+				if (phiDir < 0) {
+					move(sprPhi - resPhi);
+					phiSteps += phiDir * (sprPhi - resPhi);
+					phiDir *= -1;
+					move(resTheta);
+				}
+			} else {
+				move(resTheta);
+			}
+		}
+
+		/*
+		 * Emulates the time taken by the motors to move the specified number
+		 * of steps, and the time waited afterwards.
+		 */
+		private void move(int steps) throws InterruptedException {
+			if (dryRun) {
+				return;
+			}
+			long delay = (long) steps * msPerStep + settleDelay;
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+		}
+
+		/*
+		 * Waits the specified time, unless in fast-forward mode.
+		 */
+		private void pause(int delay) throws InterruptedException {
+			if (msPerStep > 0 || settleDelay > 0) {
+				Thread.sleep(delay);
+			}
+		}
+
+		private void send(String data) throws InterruptedException {
+			byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+			send(bytes, bytes.length);
+		}
+
+		/*
+		 * Sends the data to KNDL, taking as long as the serial line would (10
+		 * bits per byte).
+		 */
+		private void send(byte[] data, int length) throws InterruptedException {
+			toHost.write(data, 0, length);
+			if (maxBaudRate > 0) {
+				linkDebt += length * 10L * 1000000000L / baudRate;
+				if (linkDebt >= 1000000) {
+					TimeUnit.NANOSECONDS.sleep(linkDebt);
+					linkDebt = 0;
+				}
+			}
+		}
+
+		private String format(double value, int decimals) {
+			return String.format(Locale.ROOT, "%." + decimals + "f", value);
+		}
+	}
+}
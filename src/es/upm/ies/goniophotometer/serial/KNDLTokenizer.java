@@ -0,0 +1,460 @@
+package es.upm.ies.goniophotometer.serial;
+
+/**
+ * Incremental tokenizer for the data received from the serial port. The data
+ * is fed as it is received, in chunks of any size, and every time a serial
+ * port separator is found the token that precedes it is handed to a
+ * <code>TokenListener</code>. Tokens split across several chunks are joined
+ * before being emitted.<br>
+ * <br>
+ * The characters of the current token are kept in a buffer that is reused
+ * from one token to the next, and the numeric fields are parsed directly from
+ * that buffer, so no intermediate strings are created while tokenizing.
+ * Because of that, the token is only valid during the call to
+ * <code>token()</code>.<br>
+ * <br>
+ * If a <code>FrameListener</code> is set, the tokenizer also recognizes the
+ * binary data frames that the device sends once the binary format has been
+ * negotiated (see <code>KNDLSerialComm.BINARY</code>). These frames can
+ * appear between the ASCII tokens and have the following layout, with the
+ * numbers in little-endian order:<br>
+ * <br>
+ * &nbsp;byte 0: <code>FRAME_SYNC</code><br>
+ * &nbsp;bytes 1-2: steps of the polar angle motor (unsigned)<br>
+ * &nbsp;bytes 3-4: steps of the azimuth angle motor (unsigned)<br>
+ * &nbsp;bytes 5-7: raw value of the sensor (signed)<br>
+ * &nbsp;byte 8: CRC-8 (polynomial 0x07) of bytes 0-7<br>
+ * <br>
+ * Frames whose CRC doesn't match are rejected, and the search for the next
+ * frame resumes at the byte that follows the rejected synchronization byte.
+ * The bytes of a rejected frame are only searched for a synchronization
+ * byte, and they are never taken as the characters of an ASCII token. As the
+ * synchronization byte never appears in the ASCII tokens, it always starts a
+ * new frame, discarding the characters of the token being received, if any.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLTokenizer {
+
+	/**
+	 * Receives the tokens found by a <code>KNDLTokenizer</code>.
+	 */
+	public interface TokenListener {
+		/**
+		 * Called every time a complete token has been received. The token can
+		 * be inspected through the methods of <code>tokenizer</code>, but only
+		 * until this method returns.
+		 *
+		 * @param tokenizer
+		 *            The tokenizer that found the token.
+		 */
+		public void token(KNDLTokenizer tokenizer);
+	}
+
+	/**
+	 * Receives the binary data frames found by a <code>KNDLTokenizer</code>.
+	 */
+	public interface FrameListener {
+		/**
+		 * Called every time a binary data frame with a valid CRC has been
+		 * received.
+		 *
+		 * @param thetaSteps
+		 *            Steps taken by the motor corresponding to the polar
+		 *            angle since the reference angle.
+		 * @param phiSteps
+		 *            Steps taken by the motor corresponding to the azimuth
+		 *            angle since the reference angle.
+		 * @param raw
+		 *            Raw value of the sensor.
+		 */
+		public void frame(int thetaSteps, int phiSteps, int raw);
+	}
+
+	/**
+	 * First byte of every binary data frame. It never appears in the ASCII
+	 * tokens.
+	 */
+	public static final int FRAME_SYNC = 0xA5;
+	/**
+	 * Length of a binary data frame, in bytes.
+	 */
+	public static final int FRAME_LENGTH = 9;
+
+	private static final char SEPARATOR = KNDLSerialComm.SEPARATOR.charAt(0);
+	// Biggest number of digits that always fits in a long
+	private static final int MAX_FAST_DIGITS = 18;
+	// Biggest mantissa exactly representable by a double (2^53)
+	private static final long MAX_EXACT_DOUBLE = 1L << 53;
+	// Biggest mantissa exactly representable by a float (2^24)
+	private static final long MAX_EXACT_FLOAT = 1L << 24;
+	// Powers of ten exactly representable by a double
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+			1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	// Powers of ten exactly representable by a float
+	private static final float[] FLOAT_POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f,
+			1e10f };
+
+	private TokenListener listener;
+	private char[] buffer = new char[64];
+	private int length;
+
+	private FrameListener frameListener;
+	private byte[] frame = new byte[FRAME_LENGTH];
+	private int frameLength;
+	/*
+	 * Number of bytes at the start of the current frame that belong to a
+	 * rejected frame.
+	 */
+	private int frameRejectedBytes;
+	private int rejectedFrames;
+
+	/*
+	 * Result of the last call to scanNumber(): the decimal digits as an
+	 * integer and the power of ten they have to be multiplied by.
+	 */
+	private long mantissa;
+	private int exponent;
+	private boolean negative;
+
+	/**
+	 * Creates a new <code>KNDLTokenizer</code> instance that hands the tokens
+	 * found to the specified listener.
+	 *
+	 * @param listener
+	 *            The listener that receives the tokens.
+	 */
+	public KNDLTokenizer(TokenListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Tokenizes a chunk of data received from the serial port.
+	 *
+	 * @param data
+	 *            The data received.
+	 */
+	public void feed(CharSequence data) {
+		for (int i = 0; i < data.length(); i++) {
+			feed(data.charAt(i) & 0xFF);
+		}
+	}
+
+	/**
+	 * Tokenizes a chunk of data received from the serial port.
+	 *
+	 * @param data
+	 *            Buffer with the data received.
+	 * @param offset
+	 *            Position of the first byte received in <code>data</code>.
+	 * @param count
+	 *            Number of bytes received.
+	 */
+	public void feed(byte[] data, int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			feed(data[i] & 0xFF);
+		}
+	}
+
+	/*
+	 * Adds a byte to the binary frame or to the token being received, or
+	 * emits the current token if the byte is the serial port separator.
+	 */
+	private void feed(int b) {
+		feed(b, false);
+	}
+
+	/*
+	 * Same as feed(b), but if the byte belongs to a rejected frame it is only
+	 * checked as the start of a new frame, and dropped otherwise.
+	 */
+	private void feed(int b, boolean rejected) {
+		if (frameLength > 0) {
+			if (rejected) {
+				frameRejectedBytes++;
+			}
+			frame[frameLength++] = (byte) b;
+			if (frameLength == FRAME_LENGTH) {
+				frameLength = 0;
+				checkFrame();
+			}
+		} else if (b == FRAME_SYNC && frameListener != null) {
+			// Whatever was received after the last separator isn't a token
+			length = 0;
+			frameRejectedBytes = rejected ? 1 : 0;
+			frame[frameLength++] = (byte) b;
+		} else if (rejected) {
+			// Part of a frame, not of a token
+		} else if (b == SEPARATOR) {
+			listener.token(this);
+			length = 0;
+		} else {
+			if (length == buffer.length) {
+				char[] aux = new char[buffer.length * 2];
+				System.arraycopy(buffer, 0, aux, 0, length);
+				buffer = aux;
+			}
+			buffer[length++] = (char) b;
+		}
+	}
+
+	/*
+	 * Hands a complete binary frame to the frame listener if its CRC is
+	 * right. Otherwise, it looks for the next frame after the rejected
+	 * synchronization byte. If the rejected frame started with a byte of a
+	 * previous rejected frame, it may have taken the start of the data that
+	 * follows (e.g. the END token), so the bytes received after the previous
+	 * rejected frame are tokenized again as usual.
+	 */
+	private void checkFrame() {
+		if (crc8(frame, FRAME_LENGTH - 1) == (frame[FRAME_LENGTH - 1] & 0xFF)) {
+			int thetaSteps = (frame[1] & 0xFF) | (frame[2] & 0xFF) << 8;
+			int phiSteps = (frame[3] & 0xFF) | (frame[4] & 0xFF) << 8;
+			// Sign extension of a 24 bits integer
+			int raw = ((frame[5] & 0xFF) | (frame[6] & 0xFF) << 8 | frame[7] << 16);
+			frameListener.frame(thetaSteps, phiSteps, raw);
+		} else {
+			rejectedFrames++;
+			// The bytes after the synchronization byte may start a new frame
+			byte[] rejected = frame;
+			int rejectedBytes = frameRejectedBytes > 0 ? frameRejectedBytes : FRAME_LENGTH;
+			frame = new byte[FRAME_LENGTH];
+			for (int i = 1; i < FRAME_LENGTH; i++) {
+				feed(rejected[i] & 0xFF, i < rejectedBytes);
+			}
+		}
+	}
+
+	/**
+	 * Computes the CRC-8 (polynomial 0x07, initial value 0) used by the binary
+	 * data frames.
+	 *
+	 * @param data
+	 *            The bytes to be checked.
+	 * @param length
+	 *            Number of bytes of <code>data</code> to be checked, starting
+	 *            at position 0.
+	 * @return The CRC-8 of the bytes.
+	 */
+	public static int crc8(byte[] data, int length) {
+		int crc = 0;
+		for (int i = 0; i < length; i++) {
+			crc ^= data[i] & 0xFF;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+			}
+			crc &= 0xFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * Sets the listener of the binary data frames. Until a listener is set,
+	 * the tokenizer only looks for ASCII tokens.
+	 *
+	 * @param frameListener
+	 *            The listener that receives the binary data frames, or null to
+	 *            stop looking for them.
+	 */
+	public void setFrameListener(FrameListener frameListener) {
+		this.frameListener = frameListener;
+	}
+
+	/**
+	 * Returns the number of binary frames rejected because their CRC didn't
+	 * match.
+	 *
+	 * @return The number of rejected binary frames.
+	 */
+	public int getRejectedFrames() {
+		return rejectedFrames;
+	}
+
+	/**
+	 * Gives up the binary frame being received if it started with a byte of a
+	 * rejected frame, and tokenizes its bytes again as if it didn't exist.
+	 * Such a frame may have taken the start of the data that follows the
+	 * rejected frame (e.g. the END token), so this method must be called when
+	 * the device stops sending data for a while (e.g. when no data is
+	 * received from the serial port).
+	 */
+	public void flush() {
+		while (frameLength > 0 && frameRejectedBytes > 0) {
+			byte[] partial = frame;
+			int partialLength = frameLength;
+			int rejectedBytes = frameRejectedBytes;
+			frame = new byte[FRAME_LENGTH];
+			frameLength = 0;
+			for (int i = 1; i < partialLength; i++) {
+				feed(partial[i] & 0xFF, i < rejectedBytes);
+			}
+		}
+	}
+
+	/**
+	 * Discards the characters of the token that is being received.
+	 */
+	public void reset() {
+		length = 0;
+		frameLength = 0;
+	}
+
+	/**
+	 * Returns whether the data fed so far ends with a complete token or not.
+	 *
+	 * @return True if there is no token being received. False if only a part
+	 *         of a token has been received.
+	 */
+	public boolean isAtTokenBoundary() {
+		return length == 0 && frameLength == 0;
+	}
+
+	/**
+	 * Returns the length of the current token.
+	 *
+	 * @return The number of characters of the current token.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Compares the current token to a string, ignoring case considerations.
+	 *
+	 * @param str
+	 *            The string to compare the current token against.
+	 * @return True if the current token and <code>str</code> are equal,
+	 *         ignoring case. False otherwise.
+	 */
+	public boolean equalsIgnoreCase(String str) {
+		if (str.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (Character.toUpperCase(buffer[i]) != Character.toUpperCase(str.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends the current token to a <code>StringBuilder</code>.
+	 *
+	 * @param sb
+	 *            The <code>StringBuilder</code> to append the token to.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append(buffer, 0, length);
+	}
+
+	/**
+	 * Returns a string representation of the current token.
+	 *
+	 * @return The current token.
+	 */
+	public String toString() {
+		return new String(buffer, 0, length);
+	}
+
+	/**
+	 * Parses the current token as a <code>double</code>, with the same result
+	 * as <code>Double.parseDouble()</code>.
+	 *
+	 * @return The value of the current token.
+	 * @throws NumberFormatException
+	 *             If the current token is not a number.
+	 */
+	public double parseDouble() throws NumberFormatException {
+		double value;
+		if (scanNumber() && mantissa < MAX_EXACT_DOUBLE && Math.abs(exponent) < POW10.length) {
+			// Both operands are exact, so the result is correctly rounded
+			value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+			value = negative ? -value : value;
+		} else {
+			value = Double.parseDouble(toString());
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the current token as a <code>float</code>, with the same result
+	 * as <code>Float.parseFloat()</code>.
+	 *
+	 * @return The value of the current token.
+	 * @throws NumberFormatException
+	 *             If the current token is not a number.
+	 */
+	public float parseFloat() throws NumberFormatException {
+		float value;
+		if (scanNumber() && mantissa < MAX_EXACT_FLOAT && Math.abs(exponent) < FLOAT_POW10.length) {
+			// Both operands are exact, so the result is correctly rounded
+			value = exponent < 0 ? mantissa / FLOAT_POW10[-exponent] : mantissa * FLOAT_POW10[exponent];
+			value = negative ? -value : value;
+		} else {
+			value = Float.parseFloat(toString());
+		}
+		return value;
+	}
+
+	/*
+	 * Scans the current token as a plain decimal number ([+-]digits[.digits]
+	 * [(e|E)[+-]digits]). Returns false if the token has any other format or
+	 * too many digits, in which case the number must be parsed the slow way.
+	 */
+	private boolean scanNumber() {
+		int i = 0;
+		int end = length;
+		int digits = 0;
+		mantissa = 0;
+		exponent = 0;
+		negative = false;
+
+		// Leading and trailing whitespace is ignored, as parseDouble() does
+		while (i < end && buffer[i] <= ' ') {
+			i++;
+		}
+		while (end > i && buffer[end - 1] <= ' ') {
+			end--;
+		}
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+			mantissa = mantissa * 10 + (buffer[i++] - '0');
+			digits++;
+		}
+		if (i < end && buffer[i] == '.') {
+			i++;
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+				mantissa = mantissa * 10 + (buffer[i++] - '0');
+				exponent--;
+				digits++;
+			}
+		}
+		if (digits == 0 || digits > MAX_FAST_DIGITS) {
+			return false;
+		}
+		if (i < end && (buffer[i] == 'e' || buffer[i] == 'E')) {
+			i++;
+			boolean negativeExp = false;
+			int exp = 0;
+			int expDigits = 0;
+			if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+				negativeExp = buffer[i] == '-';
+				i++;
+			}
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && expDigits < 4) {
+				exp = exp * 10 + (buffer[i++] - '0');
+				expDigits++;
+			}
+			if (expDigits == 0) {
+				return false;
+			}
+			exponent += negativeExp ? -exp : exp;
+		}
+		return i == end;
+	}
+}
@@ -0,0 +1,137 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Commands sent to a device that are waiting for an answer. It is used by the
+ * implementations of <code>KNDLSerialComm.sendCommand()</code>: every command
+ * gets a <code>CompletableFuture</code> that is completed when its answer is
+ * passed to <code>tokenReceived()</code>, or completed exceptionally with a
+ * <code>TimeoutException</code> if the answer doesn't arrive in time.<br>
+ * <br>
+ * The device answers the commands in the same order they are sent, so
+ * several commands can be sent without waiting: every answer is matched with
+ * the oldest command waiting for it.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class PendingCommands {
+
+	/*
+	 * A single thread shared by all the instances completes the futures whose
+	 * answers don't arrive in time.
+	 */
+	private static final ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "KNDL command timeouts");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private LinkedList<Command> pending = new LinkedList<Command>();
+
+	/*
+	 * A command waiting for its answer.
+	 */
+	private static class Command {
+		private String answer;
+		private CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		private Command(String answer) {
+			this.answer = answer;
+		}
+	}
+
+	/**
+	 * Registers a command that is about to be sent. It must be called before
+	 * sending the command, so that the answer can't arrive first.
+	 *
+	 * @param answer
+	 *            The token the device sends when the command is done (e.g.
+	 *            <code>ACK</code>).
+	 * @param timeout
+	 *            Maximum time to wait for the answer (milliseconds).
+	 * @return A future completed when the answer arrives.
+	 */
+	public CompletableFuture<Void> expect(String answer, long timeout) {
+		final Command command = new Command(answer);
+		synchronized (this) {
+			pending.add(command);
+		}
+		final ScheduledFuture<?> timer = TIMER.schedule(new Runnable() {
+			public void run() {
+				remove(command);
+				command.future.completeExceptionally(
+						new TimeoutException("The device didn't answer " + command.answer + " in time."));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		command.future.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable error) {
+				timer.cancel(false);
+				remove(command);
+			}
+		});
+		return command.future;
+	}
+
+	/**
+	 * Checks whether a token received from the device is the answer of a
+	 * pending command. If it is, the future of the oldest command waiting for
+	 * it is completed.
+	 *
+	 * @param token
+	 *            The tokenizer that found the token.
+	 * @return True if the token was the answer of a pending command. False
+	 *         otherwise.
+	 */
+	public boolean tokenReceived(KNDLTokenizer token) {
+		Command command = null;
+		synchronized (this) {
+			Iterator<Command> it = pending.iterator();
+			while (it.hasNext()) {
+				Command c = it.next();
+				if (token.equalsIgnoreCase(c.answer)) {
+					it.remove();
+					command = c;
+					break;
+				}
+			}
+		}
+		// Complete it outside the lock, as it runs the dependent actions
+		return command != null && command.future.complete(null);
+	}
+
+	/**
+	 * Completes exceptionally all the pending commands (e.g. because the
+	 * serial port is closed).
+	 *
+	 * @param cause
+	 *            The reason why the commands won't be answered.
+	 */
+	public void cancelAll(Throwable cause) {
+		LinkedList<Command> cancelled;
+		synchronized (this) {
+			cancelled = pending;
+			pending = new LinkedList<Command>();
+		}
+		for (Command command : cancelled) {
+			command.future.completeExceptionally(cause);
+		}
+	}
+
+	private synchronized void remove(Command command) {
+		pending.remove(command);
+	}
+}
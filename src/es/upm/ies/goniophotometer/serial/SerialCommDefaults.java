@@ -0,0 +1,87 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * State of the default methods of <code>KNDLSerialComm</code>. Interfaces
+ * can't have fields, so the commands waiting for an answer and the bytes that
+ * didn't fit in the buffer of the last call to <code>receiveData()</code> are
+ * kept here for every implementation that doesn't override those methods. An
+ * instance is forgotten when its implementation is no longer used.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+class SerialCommDefaults {
+
+	private static final Map<KNDLSerialComm, SerialCommDefaults> INSTANCES = new WeakHashMap<KNDLSerialComm, SerialCommDefaults>();
+
+	private PendingCommands pendingCommands = new PendingCommands();
+	private byte[] leftover = new byte[0];
+
+	private SerialCommDefaults() {
+	}
+
+	/*
+	 * Returns the state of an implementation, creating it the first time.
+	 */
+	private static SerialCommDefaults of(KNDLSerialComm serial) {
+		synchronized (INSTANCES) {
+			SerialCommDefaults defaults = INSTANCES.get(serial);
+			if (defaults == null) {
+				defaults = new SerialCommDefaults();
+				INSTANCES.put(serial, defaults);
+			}
+			return defaults;
+		}
+	}
+
+	/**
+	 * Returns the commands waiting for an answer of an implementation.
+	 *
+	 * @param serial
+	 *            The implementation.
+	 * @return Its pending commands.
+	 */
+	static PendingCommands pendingCommands(KNDLSerialComm serial) {
+		return of(serial).pendingCommands;
+	}
+
+	/**
+	 * Receives data with <code>receiveData()</code> and copies it into
+	 * <code>buffer</code>. The bytes that don't fit are returned first by the
+	 * next call.
+	 *
+	 * @param serial
+	 *            The implementation.
+	 * @param buffer
+	 *            The buffer where the data received is stored, starting at
+	 *            position 0.
+	 * @return The number of bytes received.
+	 * @throws Exception
+	 *             If something goes wrong during the receiving of the data.
+	 */
+	static int receiveData(KNDLSerialComm serial, byte[] buffer) throws Exception {
+		SerialCommDefaults defaults = of(serial);
+		byte[] data;
+		synchronized (defaults) {
+			data = defaults.leftover;
+			defaults.leftover = new byte[0];
+		}
+		if (data.length == 0) {
+			data = serial.receiveData().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		int n = Math.min(data.length, buffer.length);
+		System.arraycopy(data, 0, buffer, 0, n);
+		if (n < data.length) {
+			byte[] rest = new byte[data.length - n];
+			System.arraycopy(data, n, rest, 0, rest.length);
+			synchronized (defaults) {
+				defaults.leftover = rest;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,242 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+/**
+ * Singleton class that keeps track of the serial ports available in the
+ * system. The serial ports are enumerated by a background thread every
+ * <code>POLL_PERIOD</code> milliseconds, and the result is kept in a snapshot
+ * that can be consulted at any time without asking the operating system,
+ * which may be slow when there are many serial devices connected. Every time
+ * a serial port appears or disappears, the snapshot gets a new version and
+ * the registered listeners are notified.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public final class SerialPortWatcher {
+
+	/**
+	 * Time between two enumerations of the serial ports (milliseconds).
+	 */
+	public static final int POLL_PERIOD = 1000;
+
+	private static SerialPortWatcher instance = null;
+
+	private volatile Snapshot snapshot;
+	private List<PortListener> listeners = new CopyOnWriteArrayList<PortListener>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Object that is notified when a serial port appears or disappears. The
+	 * notifications come from the thread of the watcher.
+	 */
+	public interface PortListener {
+		/**
+		 * A new serial port is available.
+		 *
+		 * @param portName
+		 *            The system-defined name (e.g. COM1, ttyS0,...) of the
+		 *            port.
+		 */
+		public void portConnected(String portName);
+
+		/**
+		 * A serial port is not available anymore.
+		 *
+		 * @param portName
+		 *            The system-defined name (e.g. COM1, ttyS0,...) of the
+		 *            port.
+		 */
+		public void portDisconnected(String portName);
+	}
+
+	/**
+	 * Immutable list of the serial ports available at some moment.
+	 */
+	public static final class Snapshot {
+		private final long version;
+		private final SerialPort[] ports;
+		private final List<String> names;
+		private final List<String> descriptions;
+
+		private Snapshot(long version, SerialPort[] ports) {
+			ArrayList<String> names = new ArrayList<String>(ports.length);
+			ArrayList<String> descriptions = new ArrayList<String>(ports.length);
+			for (SerialPort port : ports) {
+				names.add(port.getSystemPortName());
+				descriptions.add(port.getDescriptivePortName());
+			}
+			this.version = version;
+			this.ports = ports;
+			this.names = Collections.unmodifiableList(names);
+			this.descriptions = Collections.unmodifiableList(descriptions);
+		}
+
+		/**
+		 * Returns the version of the snapshot, which increases every time the
+		 * available serial ports change.
+		 *
+		 * @return The version of the snapshot.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns the system-defined port names of the available serial ports.
+		 *
+		 * @return An unmodifiable list with the port names.
+		 */
+		public List<String> getPortNames() {
+			return names;
+		}
+
+		/**
+		 * Returns the descriptions of the devices connected to the available
+		 * serial ports, in the same order as <code>getPortNames()</code>.
+		 *
+		 * @return An unmodifiable list with the descriptions.
+		 */
+		public List<String> getDescriptions() {
+			return descriptions;
+		}
+
+		/**
+		 * Returns whether the specified serial port is available or not.
+		 *
+		 * @param portName
+		 *            The system-defined name (e.g. COM1, ttyS0,...) of the
+		 *            port.
+		 * @return True if the port is available. False otherwise.
+		 */
+		public boolean contains(String portName) {
+			return names.contains(portName);
+		}
+
+		/**
+		 * Returns the description of the device connected to the specified
+		 * serial port.
+		 *
+		 * @param portName
+		 *            The system-defined name (e.g. COM1, ttyS0,...) of the
+		 *            port.
+		 * @return The description, or an empty string if the port is not
+		 *         available.
+		 */
+		public String getDescription(String portName) {
+			int i = names.indexOf(portName);
+			return i < 0 ? "" : descriptions.get(i);
+		}
+
+		/*
+		 * Returns the serial port with the specified name, or null if it is
+		 * not available.
+		 */
+		SerialPort getPort(String portName) {
+			int i = names.indexOf(portName);
+			return i < 0 ? null : ports[i];
+		}
+	}
+
+	private SerialPortWatcher() {
+		snapshot = new Snapshot(0, SerialPort.getCommPorts());
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Serial port watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, POLL_PERIOD, POLL_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the instance of <code>SerialPortWatcher</code>. The first call
+	 * enumerates the serial ports and starts the background thread.
+	 *
+	 * @return The instance of <code>SerialPortWatcher</code>.
+	 */
+	public static synchronized SerialPortWatcher getInstance() {
+		if (instance == null) {
+			instance = new SerialPortWatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the last snapshot of the available serial ports. It doesn't ask
+	 * the operating system.
+	 *
+	 * @return The last snapshot.
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Enumerates the serial ports right away, instead of waiting for the
+	 * background thread, and notifies the listeners if they have changed.
+	 *
+	 * @return The new snapshot.
+	 */
+	public synchronized Snapshot refresh() {
+		Snapshot old = snapshot;
+		SerialPort[] ports = SerialPort.getCommPorts();
+		Snapshot now = new Snapshot(old.version, ports);
+		if (now.names.equals(old.names) && now.descriptions.equals(old.descriptions)) {
+			return old;
+		}
+		now = new Snapshot(old.version + 1, ports);
+		snapshot = now;
+		for (String name : old.names) {
+			if (!now.names.contains(name)) {
+				for (PortListener listener : listeners) {
+					listener.portDisconnected(name);
+				}
+			}
+		}
+		for (String name : now.names) {
+			if (!old.names.contains(name)) {
+				for (PortListener listener : listeners) {
+					listener.portConnected(name);
+				}
+			}
+		}
+		return now;
+	}
+
+	/**
+	 * Registers a listener to be notified when a serial port appears or
+	 * disappears.
+	 *
+	 * @param listener
+	 *            The listener to be registered.
+	 */
+	public void addPortListener(PortListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener.
+	 *
+	 * @param listener
+	 *            The listener to be unregistered.
+	 */
+	public void removePortListener(PortListener listener) {
+		listeners.remove(listener);
+	}
+}
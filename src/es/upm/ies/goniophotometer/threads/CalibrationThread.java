@@ -2,25 +2,17 @@ package es.upm.ies.goniophotometer.threads;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
-import javax.swing.JOptionPane;
-
 import es.upm.ies.goniophotometer.KNDL;
 import es.upm.ies.goniophotometer.gui.MainWindow;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
-import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
+import es.upm.ies.goniophotometer.serial.KNDLSerialCommRecorder;
+import es.upm.ies.goniophotometer.serial.KNDLTokenizer;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
 
 /**
@@ -41,15 +33,31 @@ import es.upm.ies.goniophotometer.utils.PropsMngr;
 public class CalibrationThread extends Thread {
 
 	private static final String TIME_FORMAT = "HH:mm:ss";
+	private static final int READ_BUFFER_SIZE = 4096;
 	private Thread thread;
 	private String threadName;
-	private MainWindow owner;
+	private MeasureMonitor owner;
 	private KNDLSerialComm serial;
+	private String portName;
 	private boolean eom;// End Of Measure
 	private boolean stopped;// Execution stopped by the user
 	private boolean measureException;// Something went wrong during execution
 	private boolean deadDevice;// If the device doesn't acknowledge a command
 	private String logFileName;
+	// Reused for every reading from the serial port
+	private byte[] readBuffer;
+	// Splits the data received from the serial port into tokens
+	private KNDLTokenizer tokenizer;
+	// Text received from the device that has not been printed on monitor yet
+	private StringBuilder deviceText;
+	// Data received from the device
+	private boolean dataReceived;
+	private boolean offsetExpected;
+	private boolean badFormat;
+	private double offset;
+	// Whether the offset is stored in the properties or just kept here
+	private boolean storeOffset = true;
+	private boolean calibrated;
 
 	/**
 	 * Creates a new <code>MeasureThread</code>.
@@ -57,17 +65,58 @@ public class CalibrationThread extends Thread {
 	 * @param name
 	 *            Name of the thread (ID).
 	 * @param owner
-	 *            The owner <code>MainWindow</code> from where the thread is
-	 *            started.
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 */
+	public CalibrationThread(String name, MeasureMonitor owner) {
+		this(name, owner, KNDL.createSerialComm());
+	}
+
+	/**
+	 * Creates a new <code>CalibrationThread</code> that communicates with the device
+	 * through the specified <code>KNDLSerialComm</code> (e.g. a simulated
+	 * device).
+	 * 
+	 * @param name
+	 *            Name of the thread (ID).
+	 * @param owner
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 * @param serial
+	 *            The object used to communicate with the device.
+	 */
+	public CalibrationThread(String name, MeasureMonitor owner, KNDLSerialComm serial) {
+		this(name, owner, serial, PropsMngr.getInstance().getProperty(KNDL.DEVICE));
+	}
+
+	/**
+	 * Creates a new <code>CalibrationThread</code> that communicates with the device
+	 * connected to the specified serial port (e.g. one of the devices of a
+	 * <code>DeviceSession</code>).
+	 * 
+	 * @param name
+	 *            Name of the thread (ID).
+	 * @param owner
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 * @param serial
+	 *            The object used to communicate with the device.
+	 * @param portName
+	 *            The system-defined name (e.g. COM1, ttyS0,...) of the serial
+	 *            port of the device.
 	 */
-	public CalibrationThread(String name, MainWindow owner) {
+	public CalibrationThread(String name, MeasureMonitor owner, KNDLSerialComm serial, String portName) {
+		this.portName = portName;
 		threadName = name;
 		this.owner = owner;
 		eom = false;
 		stopped = false;
 		measureException = false;
 		deadDevice = false;
-		serial = new KNDLSerialCommImpl();
+		this.serial = serial;
+		readBuffer = new byte[READ_BUFFER_SIZE];
+		tokenizer = new KNDLTokenizer(new ResponseListener());
+		deviceText = new StringBuilder();
 	}
 
 	/**
@@ -80,6 +129,12 @@ public class CalibrationThread extends Thread {
 		} else {
 			logFileName = "";
 		}
+		if (Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.STORECAPTURES))) {
+			KNDLSerialCommRecorder recorder = new KNDLSerialCommRecorder(serial, KNDL.CAPTURESDIRECTORY, threadName);
+			serial = recorder;
+			owner.printlnOnMonitor("[KNDL] Capturing serial communications in " + recorder.getFileName(),
+					logFileName);
+		}
 		printDateOnMonitor();
 		owner.printlnOnMonitor("Starting calibration process...", logFileName);
 		if (thread == null) {
@@ -88,6 +143,50 @@ public class CalibrationThread extends Thread {
 		}
 	}
 
+	/**
+	 * Waits until the main task of the thread ends.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void waitForEnd() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Sets whether the calibration offset is stored in the properties, which
+	 * is the default, or just kept by the thread (e.g. for a
+	 * <code>DeviceSession</code>, see <code>getOffset()</code>). It must be
+	 * called before the thread is started.
+	 * 
+	 * @param storeOffset
+	 *            True to store the calibration offset in the properties. False
+	 *            otherwise.
+	 */
+	public void setStoreOffset(boolean storeOffset) {
+		this.storeOffset = storeOffset;
+	}
+
+	/**
+	 * Returns whether the device sent a calibration offset or not.
+	 * 
+	 * @return True if the calibration offset was received. False otherwise.
+	 */
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	/**
+	 * Returns the calibration offset sent by the device.
+	 * 
+	 * @return The calibration offset (V), if <code>isCalibrated()</code>.
+	 */
+	public double getOffset() {
+		return offset;
+	}
+
 	/**
 	 * Method that activates the flag that stops the main task of the thread.
 	 */
@@ -102,60 +201,37 @@ public class CalibrationThread extends Thread {
 	 * Main task of the thread.
 	 */
 	public void run() {
-		// Stores each reading from the serial port
-		StringBuilder response = new StringBuilder("");
-		// Stores everything received from the serial port
-		ArrayList<String> wholeResponse = new ArrayList<String>();
-
-		/*--- ACK CHECKING RELATED CLASSES ---*/
-		CheckACK checkACK = new CheckACK();
-		ExecutorService checkACKExecutor = Executors.newSingleThreadExecutor();
-		Future<Boolean> futureACK;
-		/*--- ACK CHECKING RELATED CLASSES ---*/
-
 		/*--- START DEVICE ---*/
 		try {
 			/*--- OPEN SERIAL PORT AND SEND CALIBRATION COMMAND AND CONFIGURATION ---*/
+			serial.checkSerialPort(portName);
+			serial.setBaudRate(Integer.parseInt(PropsMngr.getInstance().getProperty(KNDL.BAUDRATE)));
 			serial.openSerialPort();
 			serial.receiveData();// FLUSH
 			printDateOnMonitor();
 			owner.printlnOnMonitor("[KNDL] Starting device...", logFileName);
-			serial.sendData(KNDLSerialComm.CALIBRATE);
+			CompletableFuture<Void> started = serial.sendCommand(KNDLSerialComm.CALIBRATE + KNDLSerialComm.SEPARATOR,
+					KNDLSerialComm.ACK, KNDLSerialComm.SERIAL_COMM_TIMEOUT);
 			/*--- OPEN SERIAL PORT AND SEND START COMMAND AND CONFIGURATION ---*/
 
 			/*--- CHECK FOR ACKNOWLEDGEMENT ---*/
-			try {
+			printDateOnMonitor();
+			owner.printlnOnMonitor("Waiting acknowledgement...", logFileName);
+			if (waitForAnswer(started)) {
 				printDateOnMonitor();
-				// owner.printlnOnMonitor("Waiting for Acknowledgement...");
-				owner.printlnOnMonitor("Waiting acknowledgement...", logFileName);
-				futureACK = checkACKExecutor.submit(checkACK);
-				checkACKExecutor.shutdown(); // no new tasks will be accepted
-				if (!futureACK.get(KNDLSerialComm.SERIAL_COMM_TIMEOUT, TimeUnit.MILLISECONDS)) {
-					eom = true;
-					measureException = true;
-					deadDevice = true;
-					printDateOnMonitor();
-					owner.printlnOnMonitor("Bad response.", logFileName);
-				} else {
-					printDateOnMonitor();
-					owner.printlnOnMonitor("Acknowledgement received.", logFileName);
-				}
-			} catch (TimeoutException e1) {
+				owner.printlnOnMonitor("Acknowledgement received.", logFileName);
+			} else {
 				eom = true;
 				measureException = true;
 				deadDevice = true;
 				printDateOnMonitor();
 				owner.printlnOnMonitor("The device doesn't answer.", logFileName);
-			} finally {
-				if (!checkACKExecutor.isTerminated()) {
-					checkACKExecutor.shutdownNow();
-				}
 			}
 			/*--- CHECK FOR ACKNOWLEDGEMENT ---*/
 		} catch (Exception e2) {
 			measureException = true;
 			String msg = "An error ocurred starting the device: \n";
-			JOptionPane.showMessageDialog(null, msg + e2.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			owner.showError(msg + e2.getMessage());
 		}
 		/*--- START DEVICE ---*/
 
@@ -164,81 +240,42 @@ public class CalibrationThread extends Thread {
 			// the start command was sent.
 			owner.enableStop(true);
 
-			/*--- GET RESPONSE WITHOUT ACK TO PRINT IT ON MONITOR(*) ---*/
-			response.append(checkACK.getResponse());
-			String aux[] = response.toString().split(KNDLSerialComm.SEPARATOR);
-			response.setLength(0);
-			for (int i = 0; i < aux.length; i++) {
-				if (!KNDLSerialComm.ACK.equalsIgnoreCase(aux[i])) {
-					response.append(aux[i]);
-					response.append(KNDLSerialComm.SEPARATOR);
-				}
-			}
-			checkACK.setResponse("");
-			/*--- GET RESPONSE WITHOUT ACK TO PRINT IT ON MONITOR(*) ---*/
-
+			/*--- DECODE EVERY RESPONSE AS IT ARRIVES ---*/
 			/*
-			 * (*) It is printed on monitor during the first iteration of the
-			 * bellow loop
+			 * Whatever was received along with the acknowledgement is printed
+			 * on monitor during the first iteration
 			 */
-
-			/*--- STORE EVERY RESPONSE SPLITTED INTO AN ARRAY ---*/
 			while (!eom & !stopped) {
-				response.append(serial.receiveData());
-				if (!"".equals(response.toString())) {
-					// If the last character is not the serial port separator,
-					// keep reading until it is
-					while (!response.substring(response.length() - 1).equals(KNDLSerialComm.SEPARATOR) & !eom
-							& !stopped) {
-						response.append(serial.receiveData());
-					}
-					String splitted[] = response.toString().split(KNDLSerialComm.SEPARATOR);
-					wholeResponse.addAll(Arrays.asList(splitted));
+				tokenizer.feed(readBuffer, 0, serial.receiveData(readBuffer));
+				// Print only complete tokens
+				if (tokenizer.isAtTokenBoundary() && deviceText.length() > 0) {
 					printDateOnMonitor();
-					owner.printlnOnMonitor("[DEVICE] --------------------> " + response, logFileName);
-					if (KNDLSerialComm.END.equalsIgnoreCase(wholeResponse.get(wholeResponse.size() - 1))) {
-						eom = true;
-					}
-					response.setLength(0);
+					owner.printlnOnMonitor("[DEVICE] --------------------> " + deviceText, logFileName);
+					deviceText.setLength(0);
 				}
 			}
-			/*--- STORE EVERY RESPONSE SPLITTED INTO AN ARRAY ---*/
+			/*--- DECODE EVERY RESPONSE AS IT ARRIVES ---*/
 		} catch (Exception e1) {
 			measureException = true;
 			String msg = "An error ocurred during calibration:\n";
-			JOptionPane.showMessageDialog(null, msg + e1.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			owner.showError(msg + e1.getMessage());
 		} finally {
 
 			if ((stopped || measureException) && !deadDevice) {
 				/*--- STOP DEVICE ---*/
 				try {
-					try {
-						printDateOnMonitor();
-						owner.printlnOnMonitor("[KNDL] Stopping device...", logFileName);
-						serial.sendData(KNDLSerialComm.STOP);
-						checkACKExecutor = Executors.newSingleThreadExecutor();
-						futureACK = checkACKExecutor.submit(checkACK);
-						// no new tasks will be accepted
-						checkACKExecutor.shutdown();
-						if (!futureACK.get(KNDLSerialComm.SERIAL_COMM_TIMEOUT, TimeUnit.MILLISECONDS)) {
-							printDateOnMonitor();
-							owner.printlnOnMonitor(
-									"Bad response. It is possible that you have to restart the device manually.",
-									logFileName);
-						}
-					} catch (TimeoutException e1) {
+					printDateOnMonitor();
+					owner.printlnOnMonitor("[KNDL] Stopping device...", logFileName);
+					if (!waitForAnswer(serial.sendCommand(KNDLSerialComm.STOP + KNDLSerialComm.SEPARATOR,
+							KNDLSerialComm.ACK, KNDLSerialComm.SERIAL_COMM_TIMEOUT))) {
 						String msg = "The device doesn't answer.\n"
 								+ "It is possible that you have to restart it manually.";
-						JOptionPane.showMessageDialog(null, msg, "Error", JOptionPane.WARNING_MESSAGE);
-					} finally {
-						if (!checkACKExecutor.isTerminated()) {
-							checkACKExecutor.shutdownNow();
-						}
+						owner.showError(msg);
 					}
 				} catch (Exception e2) {
 					String msgStop = "An error ocurred sending the stop command.\n"
 							+ "The device must be restarted manually.";
-					JOptionPane.showMessageDialog(null, msgStop, "Error", JOptionPane.WARNING_MESSAGE);
+					owner.showError(msgStop);
 				}
 				/*--- STOP DEVICE ---*/
 			}
@@ -248,10 +285,10 @@ public class CalibrationThread extends Thread {
 			owner.enableStop(false);
 			serial.closeSerialPort();
 
-			if (!wholeResponse.isEmpty()) {
+			if (dataReceived) {
 				printDateOnMonitor();
 				owner.printlnOnMonitor("Storing calibration result...", logFileName);
-				storeOffset(wholeResponse);
+				storeOffset();
 			}
 
 			printDateOnMonitor();
@@ -267,81 +304,75 @@ public class CalibrationThread extends Thread {
 	}
 
 	/*
-	 * Stores the calibration offset
+	 * Stores the calibration offset, unless it is just kept by the thread
 	 */
-	private void storeOffset(ArrayList<String> wholeResponse) {
-		PropsMngr propsMngr = PropsMngr.getInstance();
-		double offset = 0;
-		try {
-			/*--- PARSE RESPONSES FROM MICROPROCESSOR TO OBTAIN THE CALIBRATION OFFSET ---*/
-			Iterator<String> itr = wholeResponse.iterator();
-			while (itr.hasNext()) {
-				String maxwell = itr.next();// AUX variable
-				if (KNDLSerialComm.DATA.equalsIgnoreCase(maxwell)) {
-					offset = Double.parseDouble(itr.next());
-				}
-			}
-			/*--- PARSE RESPONSES FROM MICROPROCESSOR TO OBTAIN THE CALIBRATION OFFSET ---*/
-		} catch (IndexOutOfBoundsException | NumberFormatException e1) {
-			JOptionPane.showMessageDialog(null,
-					"The results couldn't be generated ddue to errors in the measure process.\n"
-							+ "It is possible that the device is using a wrong data format",
-					"Error", JOptionPane.WARNING_MESSAGE);
+	private void storeOffset() {
+		if (badFormat) {
+			owner.showError("The results couldn't be generated ddue to errors in the measure process.\n"
+					+ "It is possible that the device is using a wrong data format");
 			owner.setMeasureState(MainWindow.IDLE);
-		} catch (NoSuchElementException e2) {
+		}
+		calibrated = true;
+		if (!storeOffset) {
+			return;
+		}
+		try {
+			PropsMngr.getInstance().setProperty(KNDL.CALOFFSET, String.valueOf(offset));
+		} catch (IOException e) {
 			/*
-			 * Do nothing. This means you couldnt't recover the whole data after
-			 * a measureException or a stopped
+			 * Do nothing. It doesn't matter if the calibration offset property
+			 * is not written into a file. It is a special property and never
+			 * depends on the user.
 			 */
-		} finally {
-			try {
-				propsMngr.setProperty(KNDL.CALOFFSET, String.valueOf(offset));
-			} catch (IOException e) {
-				/*
-				 * Do nothing. It doesn't matter if the calibration offset
-				 * property is not written into a file. It is a special property
-				 * and never depends on the user.
-				 */
-			}
 		}
 	}
 
 	/*
-	 * Callable object whose task is to receive data from the serial port and
-	 * check if there is any ACK within the data.
+	 * Reads from the serial port until the device answers a command sent with
+	 * sendCommand() or the timeout of the command expires. Whatever is
+	 * received meanwhile is processed as usual. Returns whether the device
+	 * answered or not.
 	 */
-	private class CheckACK implements Callable<Boolean> {
-		private String response = "";
-
-		@Override
-		public Boolean call() throws Exception {
-			boolean ack = false;
-			while (!ack) {
-				response += serial.receiveData();
-				// If the last character is not the serial port separator,
-				// keep reading until it is
-				if (!"".equals(response)) {
-					while (!response.substring(response.length() - 1).equals(KNDLSerialComm.SEPARATOR)) {
-						response += serial.receiveData();
-					}
-					String aux[] = response.split(KNDLSerialComm.SEPARATOR);
-					for (int i = 0; i < aux.length; i++) {
-						if (KNDLSerialComm.ACK.equalsIgnoreCase(aux[i])) {
-							ack = true;
-							break;
-						}
-					}
-				}
-			}
-			return ack;
+	private boolean waitForAnswer(CompletableFuture<Void> answer) throws Exception {
+		while (!answer.isDone()) {
+			tokenizer.feed(readBuffer, 0, serial.receiveData(readBuffer));
 		}
-
-		public void setResponse(String response) {
-			this.response = response;
+		try {
+			answer.get();
+			return true;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				return false;
+			}
+			throw e;
 		}
+	}
 
-		public String getResponse() {
-			return response;
+	/*
+	 * Receives every token from the serial port. Acknowledgements complete
+	 * the commands waiting for them, the calibration offset is parsed when it
+	 * arrives and the rest of the tokens are kept to be printed on monitor.
+	 */
+	private class ResponseListener implements KNDLTokenizer.TokenListener {
+		public void token(KNDLTokenizer token) {
+			if (serial.tokenReceived(token) || token.equalsIgnoreCase(KNDLSerialComm.ACK)) {
+				return;
+			}
+			dataReceived = true;
+			if (offsetExpected) {
+				offsetExpected = false;
+				try {
+					offset = token.parseDouble();
+				} catch (NumberFormatException e) {
+					badFormat = true;
+				}
+			} else if (token.equalsIgnoreCase(KNDLSerialComm.DATA)) {
+				offsetExpected = true;
+			} else if (token.equalsIgnoreCase(KNDLSerialComm.END)) {
+				eom = true;
+			}
+			token.appendTo(deviceText);
+			deviceText.append(KNDLSerialComm.SEPARATOR);
 		}
 	}
 
@@ -0,0 +1,147 @@
+package es.upm.ies.goniophotometer.threads;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import es.upm.ies.goniophotometer.KNDL;
+
+/**
+ * Monitor of the measures of a <code>DeviceSession</code> that don't have a
+ * window of their own. The text printed by the threads is written to a
+ * stream (the standard output by default), a whole line at a time and preceded
+ * by the name of the session, and to the log files as <code>MainWindow</code>
+ * does. Errors are printed too, instead of being shown in dialogs.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class ConsoleMonitor implements MeasureMonitor {
+
+	private String prefix;
+	private PrintStream out;
+	private StringBuilder text = new StringBuilder();
+	// Line being printed, written to the stream once complete
+	private StringBuilder line = new StringBuilder();
+	private volatile boolean measureState;
+
+	/**
+	 * Creates a new <code>ConsoleMonitor</code> that writes to the standard
+	 * output.
+	 *
+	 * @param name
+	 *            Name of the session, printed at the beginning of every line.
+	 */
+	public ConsoleMonitor(String name) {
+		this(name, System.out);
+	}
+
+	/**
+	 * Creates a new <code>ConsoleMonitor</code>.
+	 *
+	 * @param name
+	 *            Name of the session, printed at the beginning of every line.
+	 * @param out
+	 *            Stream where the text is written.
+	 */
+	public ConsoleMonitor(String name, PrintStream out) {
+		this.prefix = "[" + name + "] ";
+		this.out = out;
+	}
+
+	/**
+	 * Returns the measuring state.
+	 *
+	 * @return True if a measure is ongoing. False otherwise.
+	 */
+	public boolean getMeasureState() {
+		return measureState;
+	}
+
+	public void setMeasureState(boolean state) {
+		measureState = state;
+	}
+
+	public void enableStop(boolean enabled) {
+		// Do nothing. Measures are stopped through their DeviceSession
+	}
+
+	public synchronized void printlnOnMonitor(String str, String logFileName) {
+		printOnMonitor(str + "\n", "");
+		if (!"".equals(logFileName)) {
+			appendToLog(str + "\r\n", logFileName);
+		}
+	}
+
+	public synchronized void printOnMonitor(String str, String logFileName) {
+		/*
+		 * Whole lines are written at once, so the lines of the sessions that
+		 * share the stream don't get mixed up
+		 */
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			line.append(c);
+			if (c == '\n') {
+				out.print(prefix + line);
+				line.setLength(0);
+			}
+		}
+		text.append(str);
+		if (!"".equals(logFileName)) {
+			appendToLog(str, logFileName);
+		}
+	}
+
+	/**
+	 * Prints the error message on the monitor, as there is nobody to close a
+	 * dialog.
+	 */
+	public void showError(String message) {
+		printlnOnMonitor("[ERROR] " + message, "");
+	}
+
+	public synchronized void clearMonitor() {
+		text.setLength(0);
+	}
+
+	public synchronized String logMonitor(String threadName) {
+		File logsDir = new File(KNDL.LOGSDIRECTORY);
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH'h'mm");
+		Calendar calendar = new GregorianCalendar();
+		String logName = KNDL.LOGSDIRECTORY + sdf.format(calendar.getTime()) + "_" + threadName + ".log";
+
+		if (!logsDir.exists()) {
+			logsDir.mkdir();
+		}
+
+		try {
+			FileWriter writer = new FileWriter(logName);
+			writer.write(text.toString());
+			writer.close();
+		} catch (IOException e) {
+			printlnOnMonitor("[KNDL] Error generating log file.", "");
+		}
+
+		return logName;
+	}
+
+	/*
+	 * Appends the string to the log file.
+	 */
+	private void appendToLog(String str, String logFileName) {
+		File log = new File(logFileName);
+		try {
+			if (log.exists()) {
+				FileWriter writer = new FileWriter(log, true);
+				writer.append(str);
+				writer.close();
+			}
+		} catch (IOException e) {
+			printOnMonitor("[KNDL] Error appending to file.\n", "");
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package es.upm.ies.goniophotometer.threads;
+
+import es.upm.ies.goniophotometer.KNDL;
+import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
+
+/**
+ * A goniophotometer connected to KNDL. Every session owns its serial port,
+ * the object used to communicate with the device and the thread of the
+ * measure or calibration in progress, so several goniophotometers can be used
+ * at the same time from the same KNDL process.<br>
+ * <br>
+ * The name of the session is prepended to the name of its measures, so the
+ * results and log files of different goniophotometers don't get mixed up.
+ * Every session keeps its own calibration offset, which is the one of the
+ * properties until the session is calibrated. The rest of the configuration
+ * (e.g. resolution) is taken from the properties, which are shared by all the
+ * sessions.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class DeviceSession {
+
+	private String name;
+	private String portName;
+	private KNDLSerialComm serial;
+	private MeasureMonitor monitor;
+	private MeasureThread measure;
+	private CalibrationThread calibration;
+	// Calibration offset (V) of the device, if it has been calibrated
+	private double calibrationOffset;
+	private boolean calibrated;
+
+	/**
+	 * Creates a new <code>DeviceSession</code> whose progress is written to the
+	 * standard output.
+	 *
+	 * @param name
+	 *            Name of the session (e.g. the name of the goniophotometer).
+	 * @param portName
+	 *            The system-defined name (e.g. COM1, ttyS0,...) of the serial
+	 *            port of the device.
+	 */
+	public DeviceSession(String name, String portName) {
+		this(name, portName, KNDL.createSerialComm(), new ConsoleMonitor(name));
+	}
+
+	/**
+	 * Creates a new <code>DeviceSession</code>.
+	 *
+	 * @param name
+	 *            Name of the session (e.g. the name of the goniophotometer).
+	 * @param portName
+	 *            The system-defined name (e.g. COM1, ttyS0,...) of the serial
+	 *            port of the device.
+	 * @param serial
+	 *            The object used to communicate with the device. It must not
+	 *            be shared with other sessions.
+	 * @param monitor
+	 *            The object that follows the progress of the measures.
+	 */
+	public DeviceSession(String name, String portName, KNDLSerialComm serial, MeasureMonitor monitor) {
+		this.name = name;
+		this.portName = portName;
+		this.serial = serial;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Returns the name of the session.
+	 *
+	 * @return The name of the session.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the serial port of the device.
+	 *
+	 * @return The system-defined name of the serial port.
+	 */
+	public String getPortName() {
+		return portName;
+	}
+
+	/**
+	 * Returns the object that follows the progress of the measures.
+	 *
+	 * @return The monitor of the session.
+	 */
+	public MeasureMonitor getMonitor() {
+		return monitor;
+	}
+
+	/**
+	 * Returns whether the session has a calibration offset of its own or not.
+	 *
+	 * @return True if the device has been calibrated, or its calibration
+	 *         offset set. False if the one of the properties is used.
+	 */
+	public synchronized boolean isCalibrated() {
+		return calibrated;
+	}
+
+	/**
+	 * Returns the calibration offset of the session.
+	 *
+	 * @return The calibration offset (V), if <code>isCalibrated()</code>.
+	 */
+	public synchronized double getCalibrationOffset() {
+		return calibrationOffset;
+	}
+
+	/**
+	 * Sets the calibration offset of the session (e.g. one measured before),
+	 * to be used instead of the one of the properties.
+	 *
+	 * @param calibrationOffset
+	 *            The calibration offset (V).
+	 */
+	public synchronized void setCalibrationOffset(double calibrationOffset) {
+		this.calibrationOffset = calibrationOffset;
+		calibrated = true;
+	}
+
+	/**
+	 * Makes a measure and waits until it ends. The results are named after the
+	 * session and the measure.
+	 *
+	 * @param measureName
+	 *            Name of the measure.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting. The measure is
+	 *             stopped.
+	 */
+	public void measure(String measureName) throws InterruptedException {
+		MeasureThread thread = new MeasureThread(name + "_" + measureName, monitor, serial, portName);
+		synchronized (this) {
+			if (calibrated) {
+				thread.setCalibrationOffset(calibrationOffset);
+			}
+			measure = thread;
+		}
+		monitor.setMeasureState(true);
+		thread.start();
+		try {
+			thread.waitForEnd();
+		} catch (InterruptedException e) {
+			thread.setStopped();
+			thread.waitForEnd();
+			throw e;
+		} finally {
+			synchronized (this) {
+				measure = null;
+			}
+		}
+	}
+
+	/**
+	 * Calibrates the measuring system and waits until it ends. The calibration
+	 * offset is kept by the session, instead of being stored in the
+	 * properties.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting. The calibration
+	 *             is stopped.
+	 */
+	public void calibrate() throws InterruptedException {
+		CalibrationThread thread = new CalibrationThread(name + "_calibration", monitor, serial, portName);
+		thread.setStoreOffset(false);
+		synchronized (this) {
+			calibration = thread;
+		}
+		monitor.setMeasureState(true);
+		thread.start();
+		try {
+			thread.waitForEnd();
+		} catch (InterruptedException e) {
+			thread.setStopped();
+			thread.waitForEnd();
+			throw e;
+		} finally {
+			synchronized (this) {
+				calibration = null;
+				if (thread.isCalibrated()) {
+					setCalibrationOffset(thread.getOffset());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the measure or calibration in progress, if any.
+	 */
+	public synchronized void stop() {
+		if (measure != null) {
+			measure.setStopped();
+		}
+		if (calibration != null) {
+			calibration.setStopped();
+		}
+	}
+
+	/**
+	 * Returns whether there is a measure or calibration in progress or not.
+	 *
+	 * @return True if the device is busy. False otherwise.
+	 */
+	public synchronized boolean isBusy() {
+		return measure != null || calibration != null;
+	}
+}
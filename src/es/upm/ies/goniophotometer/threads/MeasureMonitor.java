@@ -0,0 +1,76 @@
+package es.upm.ies.goniophotometer.threads;
+
+/**
+ * Interface of the objects that follow the progress of a
+ * <code>MeasureThread</code> or a <code>CalibrationThread</code>: they show
+ * the text printed by the threads, keep the logs, and enable or disable the
+ * controls of the measure. <code>MainWindow</code> is the monitor of the
+ * measures started from the GUI.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public interface MeasureMonitor {
+
+	/**
+	 * Sets the measuring state.
+	 *
+	 * @param state
+	 *            True if a measure is ongoing. False otherwise.
+	 */
+	public void setMeasureState(boolean state);
+
+	/**
+	 * Enables or disables the possibility of stopping the measure.
+	 *
+	 * @param enabled
+	 *            True if the measure can be stopped. False otherwise.
+	 */
+	public void enableStop(boolean enabled);
+
+	/**
+	 * Prints a string on the monitor and then terminates the line.
+	 *
+	 * @param str
+	 *            The string to be printed.
+	 * @param logFileName
+	 *            Relative path of the log file, or an empty string if the
+	 *            string is not to be logged.
+	 */
+	public void printlnOnMonitor(String str, String logFileName);
+
+	/**
+	 * Prints a string on the monitor.
+	 *
+	 * @param str
+	 *            The string to be printed.
+	 * @param logFileName
+	 *            Relative path of the log file, or an empty string if the
+	 *            string is not to be logged.
+	 */
+	public void printOnMonitor(String str, String logFileName);
+
+	/**
+	 * Tells the user about an error of the measure. Monitors without a window
+	 * (e.g. <code>ConsoleMonitor</code>) must not wait for the user, as the
+	 * thread of the measure doesn't go on until this method returns.
+	 *
+	 * @param message
+	 *            Description of the error.
+	 */
+	public void showError(String message);
+
+	/**
+	 * Clears the monitor.
+	 */
+	public void clearMonitor();
+
+	/**
+	 * Logs the text of the monitor into a file located in the logs directory.
+	 *
+	 * @param threadName
+	 *            Name of the measure that is logging the monitor's text.
+	 * @return The relative path of the log file.
+	 */
+	public String logMonitor(String threadName);
+}
@@ -0,0 +1,112 @@
+package es.upm.ies.goniophotometer.threads;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs measures and calibrations on several goniophotometers at the same
+ * time. Every <code>DeviceSession</code> has a queue of its own: the tasks
+ * scheduled for the same session are run one after the other, in the order
+ * they were scheduled, while the tasks of different sessions are run
+ * concurrently.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class MeasureScheduler {
+
+	private Map<DeviceSession, ExecutorService> queues = new LinkedHashMap<DeviceSession, ExecutorService>();
+
+	/**
+	 * Schedules a measure.
+	 *
+	 * @param session
+	 *            The goniophotometer that makes the measure.
+	 * @param measureName
+	 *            Name of the measure.
+	 * @return A <code>Future</code> that completes when the measure ends.
+	 */
+	public Future<Void> scheduleMeasure(final DeviceSession session, final String measureName) {
+		return queue(session).submit(new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				session.measure(measureName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Schedules a calibration.
+	 *
+	 * @param session
+	 *            The goniophotometer to be calibrated.
+	 * @return A <code>Future</code> that completes when the calibration ends.
+	 */
+	public Future<Void> scheduleCalibration(final DeviceSession session) {
+		return queue(session).submit(new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				session.calibrate();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the sessions that have had any task scheduled.
+	 *
+	 * @return A list with the sessions, in the order they were first used.
+	 */
+	public synchronized ArrayList<DeviceSession> getSessions() {
+		return new ArrayList<DeviceSession>(queues.keySet());
+	}
+
+	/**
+	 * Stops the tasks in progress and discards the ones not started yet.
+	 */
+	public synchronized void stopAll() {
+		for (Map.Entry<DeviceSession, ExecutorService> entry : queues.entrySet()) {
+			entry.getValue().shutdownNow();
+			entry.getKey().stop();
+		}
+		queues.clear();
+	}
+
+	/**
+	 * Waits until all the tasks scheduled so far end. No more tasks can be
+	 * scheduled for the current sessions afterwards.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void awaitAll() throws InterruptedException {
+		ArrayList<ExecutorService> executors;
+		synchronized (this) {
+			executors = new ArrayList<ExecutorService>(queues.values());
+			queues.clear();
+		}
+		for (ExecutorService executor : executors) {
+			executor.shutdown();
+		}
+		for (ExecutorService executor : executors) {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Returns the queue of the session, creating it if necessary.
+	 */
+	private synchronized ExecutorService queue(DeviceSession session) {
+		ExecutorService queue = queues.get(session);
+		if (queue == null) {
+			queue = Executors.newSingleThreadExecutor();
+			queues.put(session, queue);
+		}
+		return queue;
+	}
+}
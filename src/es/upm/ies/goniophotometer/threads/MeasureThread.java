@@ -4,32 +4,33 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
-import javax.swing.JOptionPane;
-
 import es.upm.ies.goniophotometer.KNDL;
 import es.upm.ies.goniophotometer.exceptions.InconsistentMeasureException;
 import es.upm.ies.goniophotometer.gui.MainWindow;
+import es.upm.ies.goniophotometer.photometry.BeamAngles;
 import es.upm.ies.goniophotometer.photometry.HVFWHM;
+import es.upm.ies.goniophotometer.photometry.PhotometricGrid;
 import es.upm.ies.goniophotometer.photometry.PhotometryCalculations;
 import es.upm.ies.goniophotometer.photometry.SphericalCoordinates;
-import es.upm.ies.goniophotometer.photometry.SphericalCoordinatesComparator;
+import es.upm.ies.goniophotometer.photometry.ZonalFlux;
+import es.upm.ies.goniophotometer.serial.KNDLDataDecoder;
 import es.upm.ies.goniophotometer.serial.KNDLSerialComm;
-import es.upm.ies.goniophotometer.serial.KNDLSerialCommImpl;
+import es.upm.ies.goniophotometer.serial.KNDLSerialCommRecorder;
+import es.upm.ies.goniophotometer.serial.KNDLTokenizer;
+import es.upm.ies.goniophotometer.utils.BinaryResultsFile;
+import es.upm.ies.goniophotometer.utils.BinaryResultsSink;
+import es.upm.ies.goniophotometer.utils.CSVSampleSink;
 import es.upm.ies.goniophotometer.utils.CSVWriter;
+import es.upm.ies.goniophotometer.utils.MultiSinkWriter;
 import es.upm.ies.goniophotometer.utils.PropsMngr;
+import es.upm.ies.goniophotometer.utils.SampleSink;
 
 /**
  * This thread does the automatic measure while the main thread maintains the
@@ -44,7 +45,8 @@ import es.upm.ies.goniophotometer.utils.PropsMngr;
  * <br>
  * The results are stored as luminous intensities (Candela) and if the user
  * marked the option of computing luminous flux and horiontal and vertical FWHM,
- * they are also stored in the CSV file.
+ * they are also stored in the CSV file. The results can also be exported as IES
+ * and EULUMDAT files (see <code>PhotometricExporter</code>).
  * 
  * @author Abd&oacute;n Alejandro Vivas Imparato
  *
@@ -52,15 +54,55 @@ import es.upm.ies.goniophotometer.utils.PropsMngr;
 public class MeasureThread extends Thread {
 
 	private static final String TIME_FORMAT = "HH:mm:ss";
+	private static final int READ_BUFFER_SIZE = 4096;
+	// Time given to the device to answer the format negotiation (milliseconds)
+	private static final int FORMAT_TIMEOUT = 1000;
+	/*
+	 * Resuming interrupted measures: attempts to reconnect, time waited before
+	 * every attempt (e.g. for the USB port to come back) and maximum time
+	 * without data once the device is sending samples (milliseconds).
+	 */
+	private static final int RESUME_ATTEMPTS = 5;
+	private static final int RESUME_DELAY = 3000;
+	private static final int DEVICE_SILENCE_TIMEOUT = 120000;
+	// Zonal luminous flux: cones from the polar angle 0 and width of the bands
+	private static final int[] ZONAL_CONES = { 30, 60, 90, 180 };
+	private static final int ZONAL_BAND = 10;
+	// Properties stored with the results in binary format
+	private static final String[] BINARY_CONFIGURATION = { KNDL.DEVICE, KNDL.BAUDRATE, KNDL.BINARYFRAMES,
+			KNDL.DPSTHETA, KNDL.DPSPHI, KNDL.CALOFFSET, KNDL.VOLTS2LUX, KNDL.SENSORDISTANCE, KNDL.PHOTOCALCS };
 	private Thread thread;
 	private String threadName;
-	private MainWindow owner;
+	private MeasureMonitor owner;
 	private KNDLSerialComm serial;
+	private String portName;
 	private boolean eom;// End Of Measure
 	private boolean stopped;// Execution stopped by the user
 	private boolean measureException;// Something went wrong during execution
 	private boolean deadDevice;// If the device doesn't acknowledge a command
 	private String logFileName;
+	// Reused for every reading from the serial port
+	private byte[] readBuffer;
+	// Splits the data received from the serial port into tokens
+	private KNDLTokenizer tokenizer;
+	// Turns every data frame into a luminous intensity as it arrives
+	private KNDLDataDecoder decoder;
+	// Text received from the device that has not been printed on monitor yet
+	private StringBuilder deviceText;
+	// Binary format: volts per unit of the raw value and degrees per step
+	private double rawScale;
+	private boolean rawScaleExpected;
+	private float dpsTheta;
+	private float dpsPhi;
+	// SPS = Steps Per Sample
+	private int spsTheta;
+	private int spsPhi;
+	private int resumes;// Times the measure was resumed
+	// Stores the luminous intensities as they arrive, in case KNDL dies
+	private SampleJournal journal;
+	private boolean recovered;// Results recovered from a journal
+	// Calibration offset (V) used instead of the one of the properties
+	private String calOffset;
 
 	/**
 	 * Creates a new <code>MeasureThread</code>.
@@ -68,17 +110,58 @@ public class MeasureThread extends Thread {
 	 * @param name
 	 *            Name of the thread (ID).
 	 * @param owner
-	 *            The owner <code>MainWindow</code> from where the thread is
-	 *            started.
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 */
+	public MeasureThread(String name, MeasureMonitor owner) {
+		this(name, owner, KNDL.createSerialComm());
+	}
+
+	/**
+	 * Creates a new <code>MeasureThread</code> that communicates with the device
+	 * through the specified <code>KNDLSerialComm</code> (e.g. a simulated
+	 * device).
+	 * 
+	 * @param name
+	 *            Name of the thread (ID).
+	 * @param owner
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 * @param serial
+	 *            The object used to communicate with the device.
+	 */
+	public MeasureThread(String name, MeasureMonitor owner, KNDLSerialComm serial) {
+		this(name, owner, serial, PropsMngr.getInstance().getProperty(KNDL.DEVICE));
+	}
+
+	/**
+	 * Creates a new <code>MeasureThread</code> that communicates with the device
+	 * connected to the specified serial port (e.g. one of the devices of a
+	 * <code>DeviceSession</code>).
+	 * 
+	 * @param name
+	 *            Name of the thread (ID).
+	 * @param owner
+	 *            The owner <code>MeasureMonitor</code> (e.g. the
+	 *            <code>MainWindow</code> from where the thread is started).
+	 * @param serial
+	 *            The object used to communicate with the device.
+	 * @param portName
+	 *            The system-defined name (e.g. COM1, ttyS0,...) of the serial
+	 *            port of the device.
 	 */
-	public MeasureThread(String name, MainWindow owner) {
+	public MeasureThread(String name, MeasureMonitor owner, KNDLSerialComm serial, String portName) {
+		this.portName = portName;
 		threadName = name;
 		this.owner = owner;
 		eom = false;
 		stopped = false;
 		measureException = false;
 		deadDevice = false;
-		serial = new KNDLSerialCommImpl();
+		this.serial = serial;
+		readBuffer = new byte[READ_BUFFER_SIZE];
+		tokenizer = new KNDLTokenizer(new ResponseListener());
+		deviceText = new StringBuilder();
 	}
 
 	/**
@@ -91,6 +174,12 @@ public class MeasureThread extends Thread {
 		} else {
 			logFileName = "";
 		}
+		if (Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.STORECAPTURES))) {
+			KNDLSerialCommRecorder recorder = new KNDLSerialCommRecorder(serial, KNDL.CAPTURESDIRECTORY, threadName);
+			serial = recorder;
+			owner.printlnOnMonitor("[KNDL] Capturing serial communications in " + recorder.getFileName(),
+					logFileName);
+		}
 		printDateOnMonitor();
 		owner.printlnOnMonitor("Starting measure " + threadName + "... ", logFileName);
 		if (thread == null) {
@@ -99,6 +188,30 @@ public class MeasureThread extends Thread {
 		}
 	}
 
+	/**
+	 * Waits until the main task of the thread ends.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void waitForEnd() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Sets the calibration offset of the measure, instead of the one of the
+	 * properties (e.g. the one of a <code>DeviceSession</code>). It must be
+	 * called before the thread is started.
+	 * 
+	 * @param offset
+	 *            The calibration offset (V).
+	 */
+	public void setCalibrationOffset(double offset) {
+		calOffset = String.valueOf(offset);
+	}
+
 	/**
 	 * Method that activates the flag that stops the main task of the thread.
 	 */
@@ -113,80 +226,66 @@ public class MeasureThread extends Thread {
 	 * Main task of the thread.
 	 */
 	public void run() {
-		// Stores each reading from the serial port
-		StringBuilder response = new StringBuilder("");
-		// Stores everything received from the serial port
-		ArrayList<String> wholeResponse = new ArrayList<String>();
-
-		/*--- ACK CHECKING RELATED CLASSES ---*/
-		CheckACK checkACK = new CheckACK();
-		ExecutorService checkACKExecutor = Executors.newSingleThreadExecutor();
-		Future<Boolean> futureACK;
-		/*--- ACK CHECKING RELATED CLASSES ---*/
-
 		/*--- READ PROPERTIES AND COMPUTE SPS ---*/
 		PropsMngr propsMngr = PropsMngr.getInstance();
 		float resTheta = Float.parseFloat(propsMngr.getProperty(KNDL.RESTHETA));
-		float dpsTheta = Float.parseFloat(propsMngr.getProperty(KNDL.DPSTHETA));
-		// SPS = Steps Per Sample
-		int spsTheta = (short) (resTheta / dpsTheta);
+		dpsTheta = Float.parseFloat(propsMngr.getProperty(KNDL.DPSTHETA));
+		spsTheta = (short) (resTheta / dpsTheta);
 		float resPhi = Float.parseFloat(propsMngr.getProperty(KNDL.RESPHI));
-		float dpsPhi = Float.parseFloat(propsMngr.getProperty(KNDL.DPSPHI));
-		int spsPhi = (short) (resPhi / dpsPhi);
+		dpsPhi = Float.parseFloat(propsMngr.getProperty(KNDL.DPSPHI));
+		spsPhi = (short) (resPhi / dpsPhi);
 		/*--- READ PROPERTIES AND COMPUTE SPS ---*/
 
+		decoder = new KNDLDataDecoder(Double.parseDouble(calibrationOffset()),
+				Double.parseDouble(propsMngr.getProperty(KNDL.VOLTS2LUX)),
+				Double.parseDouble(propsMngr.getProperty(KNDL.SENSORDISTANCE)));
+
+		if (Boolean.valueOf(propsMngr.getProperty(KNDL.JOURNALSAMPLES))) {
+			journal = new SampleJournal(KNDL.JOURNALSDIRECTORY, threadName);
+			try {
+				journal.create(resTheta, resPhi);
+			} catch (IOException e) {
+				deleteJournal(journal);
+				journal = null;
+				owner.printlnOnMonitor("[KNDL] The measure can't be journaled: " + e.getMessage(), logFileName);
+			}
+		}
+
 		/*--- START DEVICE ---*/
 		try {
 			/*--- OPEN SERIAL PORT AND SEND START COMMAND AND CONFIGURATION ---*/
+			serial.checkSerialPort(portName);
+			serial.setBaudRate(Integer.parseInt(PropsMngr.getInstance().getProperty(KNDL.BAUDRATE)));
 			serial.openSerialPort();
 			serial.receiveData();// FLUSH
 			printDateOnMonitor();
 			owner.printlnOnMonitor("[KNDL] Starting device...", logFileName);
-			serial.sendData(KNDLSerialComm.START);
-			owner.printlnOnMonitor("[KNDL] Sending configuration... (1/4)", logFileName);
-			serial.sendData(String.valueOf(dpsTheta));
-			owner.printlnOnMonitor("[KNDL] Sending configuration... (2/4)", logFileName);
-			serial.sendData(String.valueOf(dpsPhi));
-			owner.printlnOnMonitor("[KNDL] Sending configuration... (3/4)", logFileName);
-			serial.sendData(String.valueOf(spsTheta));
-			owner.printlnOnMonitor("[KNDL] Sending configuration... (4/4)", logFileName);
-			serial.sendData(String.valueOf(spsPhi));
+			negotiateFormat();
+			owner.printlnOnMonitor("[KNDL] Sending configuration...", logFileName);
+			// The start command and the configuration go in a single message
+			CompletableFuture<Void> started = serial.sendCommand(
+					KNDLSerialComm.START + KNDLSerialComm.SEPARATOR + configuration(), KNDLSerialComm.ACK,
+					KNDLSerialComm.SERIAL_COMM_TIMEOUT);
 			/*--- OPEN SERIAL PORT AND SEND START COMMAND AND CONFIGURATION ---*/
 
 			/*--- CHECK FOR ACKNOWLEDGEMENT ---*/
-			try {
+			printDateOnMonitor();
+			owner.printlnOnMonitor("Waiting acknowledgement...", logFileName);
+			if (waitForAnswer(started)) {
 				printDateOnMonitor();
-				// owner.printlnOnMonitor("Waiting for Acknowledgement...");
-				owner.printlnOnMonitor("Waiting acknowledgement...", logFileName);
-				futureACK = checkACKExecutor.submit(checkACK);
-				checkACKExecutor.shutdown(); // no new tasks will be accepted
-				if (!futureACK.get(KNDLSerialComm.SERIAL_COMM_TIMEOUT, TimeUnit.MILLISECONDS)) {
-					eom = true;
-					measureException = true;
-					deadDevice = true;
-					printDateOnMonitor();
-					// owner.printlnOnMonitor("Bad response.");
-					owner.printlnOnMonitor("Bad response", logFileName);
-				} else {
-					printDateOnMonitor();
-					owner.printlnOnMonitor("Acknowledgement received.", logFileName);
-				}
-			} catch (TimeoutException e1) {
+				owner.printlnOnMonitor("Acknowledgement received.", logFileName);
+			} else {
 				eom = true;
 				measureException = true;
 				deadDevice = true;
 				printDateOnMonitor();
 				owner.printlnOnMonitor("The device doesn't answer.", logFileName);
-			} finally {
-				if (!checkACKExecutor.isTerminated()) {
-					checkACKExecutor.shutdownNow();
-				}
 			}
 			/*--- CHECK FOR ACKNOWLEDGEMENT ---*/
 		} catch (Exception e2) {
 			measureException = true;
 			String msg = "An error ocurred starting the device: \n";
-			JOptionPane.showMessageDialog(null, msg + e2.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			owner.showError(msg + e2.getMessage());
 		}
 		/*--- START DEVICE ---*/
 
@@ -195,81 +294,43 @@ public class MeasureThread extends Thread {
 			// the start command was sent.
 			owner.enableStop(true);
 
-			/*--- GET RESPONSE WITHOUT ACK TO PRINT IT ON MONITOR(*) ---*/
-			response.append(checkACK.getResponse());
-			String aux[] = response.toString().split(KNDLSerialComm.SEPARATOR);
-			response.setLength(0);
-			for (int i = 0; i < aux.length; i++) {
-				if (!KNDLSerialComm.ACK.equalsIgnoreCase(aux[i])) {
-					response.append(aux[i]);
-					response.append(KNDLSerialComm.SEPARATOR);
-				}
-			}
-			checkACK.setResponse("");
-			/*--- GET RESPONSE WITHOUT ACK TO PRINT IT ON MONITOR(*) ---*/
-
+			/*--- DECODE EVERY RESPONSE AS IT ARRIVES ---*/
 			/*
-			 * (*) It is printed on monitor during the first iteration of the
-			 * bellow loop
+			 * Whatever was received along with the acknowledgement is printed
+			 * on monitor during the first iteration
 			 */
-
-			/*--- STORE EVERY RESPONSE SPLITTED INTO AN ARRAY ---*/
 			while (!eom & !stopped) {
-				response.append(serial.receiveData());
-				if (!"".equals(response.toString())) {
-					// If the last character is not the serial port separator,
-					// keep reading until it is
-					while (!response.substring(response.length() - 1).equals(KNDLSerialComm.SEPARATOR) & !eom
-							& !stopped) {
-						response.append(serial.receiveData());
-					}
-					String splitted[] = response.toString().split(KNDLSerialComm.SEPARATOR);
-					wholeResponse.addAll(Arrays.asList(splitted));
-					printDateOnMonitor();
-					owner.printlnOnMonitor("[DEVICE] --------------------> " + response, logFileName);
-					if (KNDLSerialComm.END.equalsIgnoreCase(wholeResponse.get(wholeResponse.size() - 1))) {
-						eom = true;
+				try {
+					receiveMeasure();
+				} catch (IOException e) {
+					// The communication was lost in the middle of the measure
+					if (stopped || !resumeMeasure(e)) {
+						throw e;
 					}
-					response.setLength(0);
 				}
 			}
-			/*--- STORE EVERY RESPONSE SPLITTED INTO AN ARRAY ---*/
+			/*--- DECODE EVERY RESPONSE AS IT ARRIVES ---*/
 		} catch (Exception e1) {
 			measureException = true;
 			String msg = "An error ocurred during the measuring process:\n";
-			JOptionPane.showMessageDialog(null, msg + e1.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			owner.showError(msg + e1.getMessage());
 		} finally {
 
 			if ((stopped || measureException) && !deadDevice) {
 				/*--- STOP DEVICE ---*/
 				try {
-					try {
-						printDateOnMonitor();
-						owner.printlnOnMonitor("[KNDL] Stopping device...", logFileName);
-						serial.sendData(KNDLSerialComm.STOP);
-						checkACKExecutor = Executors.newSingleThreadExecutor();
-						futureACK = checkACKExecutor.submit(checkACK);
-						// no new tasks will be accepted
-						checkACKExecutor.shutdown();
-						if (!futureACK.get(KNDLSerialComm.SERIAL_COMM_TIMEOUT, TimeUnit.MILLISECONDS)) {
-							printDateOnMonitor();
-							owner.printlnOnMonitor(
-									"Bad response. It is possible that you have to restart the device manually.",
-									logFileName);
-						}
-					} catch (TimeoutException e1) {
+					printDateOnMonitor();
+					owner.printlnOnMonitor("[KNDL] Stopping device...", logFileName);
+					if (!waitForAnswer(serial.sendCommand(KNDLSerialComm.STOP + KNDLSerialComm.SEPARATOR,
+							KNDLSerialComm.ACK, KNDLSerialComm.SERIAL_COMM_TIMEOUT))) {
 						String msg = "The device doesn't answer.\n"
 								+ "It is possible that you have to restart it manually.";
-						JOptionPane.showMessageDialog(null, msg, "Error", JOptionPane.WARNING_MESSAGE);
-					} finally {
-						if (!checkACKExecutor.isTerminated()) {
-							checkACKExecutor.shutdownNow();
-						}
+						owner.showError(msg);
 					}
 				} catch (Exception e2) {
 					String msgStop = "An error ocurred sending the stop command.\n"
 							+ "The device must be restarted manually.";
-					JOptionPane.showMessageDialog(null, msgStop, "Error", JOptionPane.WARNING_MESSAGE);
+					owner.showError(msgStop);
 				}
 				/*--- STOP DEVICE ---*/
 			}
@@ -281,10 +342,14 @@ public class MeasureThread extends Thread {
 			printDateOnMonitor();
 			owner.printlnOnMonitor("Stopped measure: " + threadName + ".", logFileName);
 
-			if (!wholeResponse.isEmpty()) {
+			boolean resultsWritten = true;
+			if (decoder.hasReceivedData()) {
 				printDateOnMonitor();
 				owner.printlnOnMonitor("Storing results: " + threadName + "...", logFileName);
-				writeResults(wholeResponse);
+				resultsWritten = writeResults(decoder, resTheta, resPhi);
+			}
+			if (journal != null) {
+				closeJournal(resultsWritten);
 			}
 			printDateOnMonitor();
 			owner.printlnOnMonitor("KNDL at rest", logFileName);
@@ -294,94 +359,311 @@ public class MeasureThread extends Thread {
 	}
 
 	/*
-	 * Callable object whose task is to receive data from the serial port and
-	 * check if there is any ACK within the data.
+	 * Decodes every response as it arrives until the end of the measure or a
+	 * stop request. Throws an IOException if the device stops sending data
+	 * once the samples have started to arrive.
 	 */
-	private class CheckACK implements Callable<Boolean> {
-		private String response = "";
-
-		@Override
-		public Boolean call() throws Exception {
-			boolean ack = false;
-			while (!ack) {
-				response += serial.receiveData();
-				// If the last character is not the serial port separator,
-				// keep reading until it is
-				if (!"".equals(response)) {
-					while (!response.substring(response.length() - 1).equals(KNDLSerialComm.SEPARATOR)) {
-						response += serial.receiveData();
-					}
-					String aux[] = response.split(KNDLSerialComm.SEPARATOR);
-					for (int i = 0; i < aux.length; i++) {
-						if (KNDLSerialComm.ACK.equalsIgnoreCase(aux[i])) {
-							ack = true;
-							break;
-						}
-					}
-				}
+	private void receiveMeasure() throws Exception {
+		int samples = decoder.getSamples().size();
+		long lastReception = System.currentTimeMillis();
+		while (!eom & !stopped) {
+			int n = serial.receiveData(readBuffer);
+			tokenizer.feed(readBuffer, 0, n);
+			if (n == 0) {
+				// Don't wait for the rest of a frame that may not exist
+				tokenizer.flush();
+			}
+			journalSamples();
+			// Print only complete tokens
+			if (tokenizer.isAtTokenBoundary() && deviceText.length() > 0) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("[DEVICE] --------------------> " + deviceText, logFileName);
+				deviceText.setLength(0);
+			}
+			eom = decoder.isEndOfMeasure();
+			if (n > 0) {
+				lastReception = System.currentTimeMillis();
+			} else if (decoder.getSamples().size() > samples
+					&& System.currentTimeMillis() - lastReception > DEVICE_SILENCE_TIMEOUT) {
+				// The reference search before the first sample may take longer
+				throw new IOException("The device stopped sending data.");
 			}
-			return ack;
 		}
+	}
 
-		public void setResponse(String response) {
-			this.response = response;
+	/*
+	 * Reconnects to the device and asks it to resume the measure from the
+	 * position that follows the last sample received. The samples received
+	 * so far stay in the decoder, so the results are the same as if the
+	 * measure hadn't been interrupted. Returns whether the measure was
+	 * resumed or not.
+	 */
+	private boolean resumeMeasure(IOException cause) throws InterruptedException {
+		printDateOnMonitor();
+		owner.printlnOnMonitor("[KNDL] Communication lost: " + cause.getMessage(), logFileName);
+		ArrayList<SphericalCoordinates> samples = decoder.getSamples();
+		if (!Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.RESUMEMEASURES)) || samples.isEmpty()) {
+			return false;
 		}
+		// Position of the last sample, in steps of the motors
+		SphericalCoordinates last = samples.get(samples.size() - 1);
+		int thetaSteps = Math.round(last.getTheta() / dpsTheta);
+		int phiSteps = Math.round(last.getPhi() / dpsPhi);
 
-		public String getResponse() {
-			return response;
+		for (int attempt = 1; attempt <= RESUME_ATTEMPTS && !stopped; attempt++) {
+			serial.closeSerialPort();
+			Thread.sleep(RESUME_DELAY);
+			printDateOnMonitor();
+			owner.printlnOnMonitor("[KNDL] Reconnecting to the device (attempt " + attempt + " of "
+					+ RESUME_ATTEMPTS + ")...", logFileName);
+			try {
+				if (!serial.checkSerialPort(portName)) {
+					owner.printlnOnMonitor("[KNDL] The device is not connected.", logFileName);
+					continue;
+				}
+				serial.openSerialPort();
+				// Whatever was received of the last data frame is lost
+				tokenizer.reset();
+				decoder.discardPartialFrame();
+				negotiateFormat();
+				CompletableFuture<Void> resumed = serial.sendCommand(KNDLSerialComm.RESUME + KNDLSerialComm.SEPARATOR
+						+ configuration() + thetaSteps + KNDLSerialComm.SEPARATOR + phiSteps
+						+ KNDLSerialComm.SEPARATOR, KNDLSerialComm.ACK, KNDLSerialComm.SERIAL_COMM_TIMEOUT);
+				if (waitForAnswer(resumed)) {
+					resumes++;
+					printDateOnMonitor();
+					owner.printlnOnMonitor("[KNDL] Measure resumed after polar angle " + last.getTheta()
+							+ " and azimuth angle " + last.getPhi() + ".", logFileName);
+					return true;
+				}
+				// The device doesn't support it
+				printDateOnMonitor();
+				owner.printlnOnMonitor("The device doesn't answer.", logFileName);
+				return false;
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("[KNDL] Reconnection failed: " + e.getMessage(), logFileName);
+			}
 		}
+		return false;
 	}
 
 	/*
-	 * Writes results into a CSV file. If applicable, it also computes the
-	 * luminous flux and writes it in the CSV file as well.
+	 * Configuration sent along with the start and resume commands.
 	 */
-	private void writeResults(ArrayList<String> wholeResponse) {
-		PropsMngr propsMngr = PropsMngr.getInstance();
+	private String configuration() {
+		return dpsTheta + KNDLSerialComm.SEPARATOR + dpsPhi + KNDLSerialComm.SEPARATOR + spsTheta
+				+ KNDLSerialComm.SEPARATOR + spsPhi + KNDLSerialComm.SEPARATOR;
+	}
 
-		ArrayList<SphericalCoordinates> lumints = new ArrayList<SphericalCoordinates>();
+	/*
+	 * Reads from the serial port until the device answers a command sent with
+	 * sendCommand() or the timeout of the command expires. Whatever is
+	 * received meanwhile is decoded as usual. Returns whether the device
+	 * answered or not.
+	 */
+	private boolean waitForAnswer(CompletableFuture<Void> answer) throws Exception {
+		while (!answer.isDone()) {
+			tokenizer.feed(readBuffer, 0, serial.receiveData(readBuffer));
+		}
+		try {
+			answer.get();
+			return true;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				return false;
+			}
+			throw e;
+		}
+	}
 
-		// Square distance from the source to the sensor
-		double sqd = Double.parseDouble(propsMngr.getProperty(KNDL.SENSORDISTANCE));
-		sqd = sqd * sqd;
+	/*
+	 * Asks the device to send the data frames in binary format, or in ASCII
+	 * format if the binary one isn't enabled. The format is always sent, as
+	 * the device keeps the one of the previous measure. Devices that don't
+	 * support the binary format don't answer, in which case the ASCII format
+	 * is used.
+	 */
+	private void negotiateFormat() throws Exception {
+		boolean binary = Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.BINARYFRAMES));
+		rawScale = 0;
+		// If it times out, the device doesn't support the binary format
+		waitForAnswer(serial.sendCommand(KNDLSerialComm.FORMAT + KNDLSerialComm.SEPARATOR
+				+ (binary ? KNDLSerialComm.BINARY : KNDLSerialComm.ASCII) + KNDLSerialComm.SEPARATOR,
+				KNDLSerialComm.ACK, FORMAT_TIMEOUT));
+		if (binary && rawScale > 0) {
+			decoder.setBinaryFormat(dpsTheta, dpsPhi, rawScale);
+			tokenizer.setFrameListener(new BinaryFrameListener());
+			owner.printlnOnMonitor("[KNDL] Using binary data frames.", logFileName);
+		} else {
+			tokenizer.setFrameListener(null);
+			owner.printlnOnMonitor("[KNDL] Using ASCII data frames.", logFileName);
+		}
+	}
 
-		double offset = Double.parseDouble(propsMngr.getProperty(KNDL.CALOFFSET));
+	/*
+	 * Receives every token from the serial port. Acknowledgements complete
+	 * the commands waiting for them, the answer to the format negotiation is
+	 * stored and the rest of the tokens are decoded and kept to be printed on
+	 * monitor.
+	 */
+	private class ResponseListener implements KNDLTokenizer.TokenListener {
+		public void token(KNDLTokenizer token) {
+			if (serial.tokenReceived(token) || token.equalsIgnoreCase(KNDLSerialComm.ACK)
+					|| token.equalsIgnoreCase(KNDLSerialComm.ASCII)) {
+				// Acknowledgements and the ASCII format selected are not printed
+			} else if (rawScaleExpected) {
+				rawScaleExpected = false;
+				try {
+					rawScale = token.parseDouble();
+				} catch (NumberFormatException e) {
+					rawScale = 0;
+				}
+			} else if (token.equalsIgnoreCase(KNDLSerialComm.BINARY)) {
+				rawScaleExpected = true;
+			} else {
+				decoder.decode(token);
+				token.appendTo(deviceText);
+				deviceText.append(KNDLSerialComm.SEPARATOR);
+			}
+		}
+	}
 
-		float resTheta = Float.parseFloat(PropsMngr.getInstance().getProperty(KNDL.RESTHETA));
-		float resPhi = Float.parseFloat(PropsMngr.getInstance().getProperty(KNDL.RESPHI));
+	/*
+	 * Receives every binary data frame from the serial port. The frames are
+	 * decoded and kept to be printed on monitor as if they were ASCII.
+	 */
+	private class BinaryFrameListener implements KNDLTokenizer.FrameListener {
+		public void frame(int thetaSteps, int phiSteps, int raw) {
+			decoder.decodeFrame(thetaSteps, phiSteps, raw);
+			deviceText.append(KNDLSerialComm.DATA).append(KNDLSerialComm.SEPARATOR);
+			deviceText.append(thetaSteps * dpsTheta).append(KNDLSerialComm.SEPARATOR);
+			deviceText.append(phiSteps * dpsPhi).append(KNDLSerialComm.SEPARATOR);
+			deviceText.append(raw * rawScale).append(KNDLSerialComm.SEPARATOR);
+		}
+	}
 
-		try {
-			owner.printlnOnMonitor("[KNDL] Analyzing data...", logFileName);
-			/*--- PARSE RESPONSES FROM MICROPROCESSOR TO OBTAIN LUMINOUS INTENSITY CLASSES ---*/
-			double v2lux = Double.parseDouble(propsMngr.getProperty(KNDL.VOLTS2LUX));
-			Iterator<String> itr = wholeResponse.iterator();
-			float theta;
-			float phi;
-			double value;
-			while (itr.hasNext()) {
-				String maxwell = itr.next();// AUX variable
-				if (KNDLSerialComm.DATA.equalsIgnoreCase(maxwell)) {
-					theta = Float.parseFloat(itr.next());
-					phi = Float.parseFloat(itr.next());
-					value = Double.parseDouble(itr.next()) - offset;
-					value = value < 0 ? 0 : value;
-					value *= v2lux;
-					value *= sqd;
-					lumints.add(new SphericalCoordinates(theta, phi, value));
+	/*
+	 * Journals the luminous intensities received since the last call, and the
+	 * end of the measure once it arrives. If the journal fails, the measure
+	 * goes on without it.
+	 */
+	private void journalSamples() {
+		if (journal != null) {
+			try {
+				journal.append(decoder.getSamples());
+				if (decoder.isEndOfMeasure()) {
+					journal.end();
 				}
+			} catch (IOException e) {
+				deleteJournal(journal);
+				journal = null;
+				printDateOnMonitor();
+				owner.printlnOnMonitor("[KNDL] The measure is no longer journaled: " + e.getMessage(), logFileName);
 			}
-			/*--- PARSE RESPONSES FROM MICROPROCESSOR TO OBTAIN LUMINOUS INTENSITY CLASSES ---*/
-		} catch (IndexOutOfBoundsException | NumberFormatException e1) {
-			JOptionPane.showMessageDialog(null,
-					"The results couldn't be generated due to errors in the measure process.\n"
-							+ "It is possible that the device is using a wrong data format",
-					"Error", JOptionPane.WARNING_MESSAGE);
-			owner.setMeasureState(MainWindow.IDLE);
-		} catch (NoSuchElementException e2) {
-			/*
-			 * Do nothing. This means you couldnt't recover the whole data after
-			 * a measureException or a stopped
-			 */
+		}
+	}
+
+	/*
+	 * Deletes the journal once the results are written. Otherwise, it is kept
+	 * so that they can be recovered the next time KNDL starts.
+	 */
+	private void closeJournal(boolean resultsWritten) {
+		if (resultsWritten) {
+			deleteJournal(journal);
+		} else {
+			try {
+				journal.close();
+				printDateOnMonitor();
+				owner.printlnOnMonitor("[KNDL] The luminous intensities are kept in " + journal.getFile().getPath()
+						+ ". The results will be recovered from it the next time KNDL starts.", logFileName);
+			} catch (IOException e) {
+				deleteJournal(journal);
+			}
+		}
+		journal = null;
+	}
+
+	/*
+	 * Deletes a journal, warning if it can't be deleted: it would be recovered
+	 * again the next time KNDL starts.
+	 */
+	private void deleteJournal(SampleJournal journal) {
+		if (!journal.delete()) {
+			printDateOnMonitor();
+			owner.printlnOnMonitor("[KNDL] The journal " + journal.getFile().getPath()
+					+ " couldn't be deleted. Delete it, or its results will be written again the next time KNDL starts.",
+					logFileName);
+		}
+	}
+
+	/**
+	 * Writes the results of a measure that were not written because KNDL was
+	 * closed unexpectedly (e.g. a crash or a power failure), from the journal
+	 * of the measure. The journal is deleted once the results are written.
+	 * Instead of starting the thread, this method is called directly.
+	 * 
+	 * @param journal
+	 *            The journal of the measure, already read.
+	 */
+	public void recoverResults(SampleJournal journal) {
+		logFileName = "";
+		recovered = true;
+		// The measure was interrupted unless its end was journaled
+		measureException = !journal.isEnded();
+		decoder = new KNDLDataDecoder(0, 1, 1);
+		decoder.getSamples().addAll(journal.getSamples());
+		printDateOnMonitor();
+		owner.printlnOnMonitor("Recovering measure " + threadName + " from " + journal.getFile().getPath() + "...",
+				logFileName);
+		if (journal.getSamples().isEmpty() || writeResults(decoder, journal.getResTheta(), journal.getResPhi())) {
+			deleteJournal(journal);
+		}
+	}
+
+	/**
+	 * Writes the results of the measures left in the journals by previous
+	 * executions of KNDL (see <code>recoverResults()</code>).
+	 * 
+	 * @param owner
+	 *            The <code>MeasureMonitor</code> where the recovery is
+	 *            reported.
+	 */
+	public static void recoverJournals(MeasureMonitor owner) {
+		for (File file : SampleJournal.findUnfinished(KNDL.JOURNALSDIRECTORY)) {
+			try {
+				SampleJournal journal = SampleJournal.read(file);
+				new MeasureThread(journal.getName(), owner).recoverResults(journal);
+			} catch (IOException e) {
+				owner.printlnOnMonitor("[KNDL] The measure of " + file.getPath() + " can't be recovered: "
+						+ e.getMessage(), "");
+			}
+		}
+	}
+
+	/*
+	 * Writes results into a CSV file. If applicable, it also computes the
+	 * luminous flux and writes it in the CSV file as well. Returns false if
+	 * the results file couldn't be written (it may be written later from the
+	 * journal). True otherwise.
+	 */
+	private boolean writeResults(KNDLDataDecoder decoder, float resTheta, float resPhi) {
+		PropsMngr propsMngr = PropsMngr.getInstance();
+
+		// Luminous intensities, already decoded and calibrated
+		ArrayList<SphericalCoordinates> lumints = decoder.getSamples();
+
+		owner.printlnOnMonitor("[KNDL] Analyzing data...", logFileName);
+		if (decoder.getMalformedFrames() > 0 || tokenizer.getRejectedFrames() > 0) {
+			printDateOnMonitor();
+			owner.printlnOnMonitor("Discarded malformed data frames: " + decoder.getMalformedFrames(), logFileName);
+			printDateOnMonitor();
+			owner.printlnOnMonitor("Discarded corrupted binary frames: " + tokenizer.getRejectedFrames(),
+					logFileName);
+			owner.showError("Some results couldn't be generated due to errors in the measure process.\n"
+					+ "It is possible that the device is using a wrong data format");
 		}
 
 		// Number of Measures
@@ -394,17 +676,26 @@ public class MeasureThread extends Thread {
 				logFileName);
 		printDateOnMonitor();
 		owner.printlnOnMonitor("Actual number of measures: " + lumints.size(), logFileName);
-
-		/*--- SORT VALUES ---*/
-		Collections.sort(lumints, new SphericalCoordinatesComparator());
-		/*--- SORT VALUES ---*/
+		if (resumes > 0) {
+			printDateOnMonitor();
+			owner.printlnOnMonitor("Times the measure was resumed: " + resumes, logFileName);
+		}
 
 		SimpleDateFormat sdf = new SimpleDateFormat(propsMngr.getProperty(KNDL.RESULTSPREFIX));
 		Calendar calendar = new GregorianCalendar();
 		String filename = sdf.format(calendar.getTime()) + "_" + threadName;
 		CSVWriter csvWriter = new CSVWriter(propsMngr.getProperty(KNDL.RESULTSPATH) + "//" + filename,
 				propsMngr.getProperty(KNDL.SEPARATOR));
+		try {
+			csvWriter.setPrecision(Integer.parseInt(propsMngr.getProperty(KNDL.CSVDECIMALS)));
+		} catch (IllegalArgumentException e) {
+			// Not a valid number of decimals. The numbers are written in full
+		}
 
+		// Every luminous intensity goes straight to its position, in order
+		PhotometricGrid grid = PhotometricGrid.fromSamples(lumints, resTheta, resPhi);
+		// The results sink closes the CSV file once it is handed to it
+		boolean csvHandedOut = false;
 		try {
 			printDateOnMonitor();
 			owner.printlnOnMonitor("Writing CSV file...", logFileName);
@@ -423,32 +714,83 @@ public class MeasureThread extends Thread {
 				csvWriter.nextLine();
 				csvWriter.writeField("Results based on available data.");
 			}
+			if (recovered) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("[KNDL] RESULTS RECOVERED FROM THE JOURNAL OF THE MEASURE", logFileName);
+				if (stopped || measureException) {
+					csvWriter.nextLine();
+				}
+				csvWriter.writeField("RESULTS RECOVERED FROM THE JOURNAL OF THE MEASURE");
+			}
+
+			/*--- PLACE VALUES ---*/
+			if (grid.getOutOfGrid() > 0) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("Measures out of the measuring grid, not used in the calculations: "
+						+ grid.getOutOfGrid(), logFileName);
+				csvWriter.nextLine();
+				csvWriter.writeField("Measures out of the measuring grid (not used in the calculations): ");
+				csvWriter.writeField(String.valueOf(grid.getOutOfGrid()));
+			}
+			if (grid.getDuplicates() > 0) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("Repeated measures, only the last one used in the calculations: "
+						+ grid.getDuplicates(), logFileName);
+				csvWriter.nextLine();
+				csvWriter.writeField("Repeated measures (only the last one used in the calculations): ");
+				csvWriter.writeField(String.valueOf(grid.getDuplicates()));
+			}
+			if (grid.getMissing() > 0 && !stopped) {
+				printDateOnMonitor();
+				owner.printlnOnMonitor("Missing measures: " + grid.getMissing(), logFileName);
+				csvWriter.nextLine();
+				csvWriter.writeField("Missing measures: ");
+				csvWriter.writeField(String.valueOf(grid.getMissing()));
+			}
+			/*--- PLACE VALUES ---*/
 
 			/*--- WRITE LUMFLUX, H AND V FWHM AND DISTANCE ---*/
-			if (Boolean.valueOf(propsMngr.getProperty(KNDL.PHOTOCALCS))) {
+			BeamAngles beamAngles = null;
+			ZonalFlux zonalFlux = null;
+			double lumFlux = Double.NaN;
+			HVFWHM hvFWHM = null;
+			boolean photoCalcs = Boolean.valueOf(propsMngr.getProperty(KNDL.PHOTOCALCS));
+			if (photoCalcs && lumints.size() > nMeasuresFullSphere) {
+				// The results are written anyway, but nothing is computed
+				photoCalcs = false;
+				String message = new InconsistentMeasureException().getMessage();
+				printDateOnMonitor();
+				owner.printlnOnMonitor("Too many measures. The luminous flux wasn't computed.", logFileName);
+				csvWriter.nextLine();
+				csvWriter.writeField("Too many measures. The luminous flux wasn't computed.");
+				owner.showError(message);
+			}
+			if (photoCalcs) {
 				printDateOnMonitor();
 				owner.printlnOnMonitor("Computing luminous flux...", logFileName);
-				double lumFlux = PhotometryCalculations.computeLumFlux(lumints, resTheta, resPhi);
+				lumFlux = PhotometryCalculations.computeLumFlux(grid);
+				zonalFlux = PhotometryCalculations.computeZonalFlux(grid);
 				owner.printOnMonitor("Luminous flux (lm): ", logFileName);
 				owner.printlnOnMonitor(String.format("%.2f", lumFlux), logFileName);
 
 				printDateOnMonitor();
-				owner.printlnOnMonitor("Computing horizontal and vertical FWHM...", logFileName);
-				HVFWHM hvFWHM = PhotometryCalculations.computeHVFWHM(lumints, resTheta, resPhi);
+				owner.printlnOnMonitor("Computing beam and field angles...", logFileName);
+				beamAngles = PhotometryCalculations.computeBeamAngles(grid);
+				hvFWHM = PhotometryCalculations.computeHVFWHM(grid, beamAngles);
 				owner.printOnMonitor("Vertical FWHM (degrees): ", logFileName);
-				owner.printlnOnMonitor(String.format("%.2f", hvFWHM.getVFWHM()), logFileName);
+				owner.printlnOnMonitor(formatAngle(hvFWHM.getVFWHM()), logFileName);
 				owner.printOnMonitor("Horizontal FWHM (degrees): ", logFileName);
-				owner.printlnOnMonitor(String.format("%.2f", hvFWHM.getHFWHM()), logFileName);
+				owner.printlnOnMonitor(formatAngle(hvFWHM.getHFWHM()), logFileName);
 
 				csvWriter.nextLine();
 				csvWriter.writeField("Luminous flux (lm): ");
 				csvWriter.writeField(String.format("%.2f", lumFlux));
 				csvWriter.nextLine();
 				csvWriter.writeField("Horizontal FWHM (degrees): ");
-				csvWriter.writeField(String.format("%.2f", hvFWHM.getHFWHM()));
+				csvWriter.writeField(formatAngle(hvFWHM.getHFWHM()));
 				csvWriter.nextLine();
 				csvWriter.writeField("Vertical FWHM (degrees): ");
-				csvWriter.writeField(String.format("%.2f", hvFWHM.getVFWHM()));
+				csvWriter.writeField(formatAngle(hvFWHM.getVFWHM()));
 			}
 
 			csvWriter.nextLine();
@@ -456,77 +798,236 @@ public class MeasureThread extends Thread {
 			csvWriter.writeField(propsMngr.getProperty(KNDL.SENSORDISTANCE));
 			csvWriter.nextLine();
 			csvWriter.writeField("Calibration offset (V)");
-			csvWriter.writeField(propsMngr.getProperty(KNDL.CALOFFSET));
+			csvWriter.writeField(calibrationOffset());
 			/*--- WRITE LUMFLUX, H AND V FWHM AND DISTANCE ---*/
 
+			/*--- WRITE BEAM AND FIELD ANGLES ---*/
+			if (beamAngles != null) {
+				csvWriter.nextLine();
+				csvWriter.nextLine();
+				csvWriter.writeField("C-plane ()");
+				csvWriter.writeField("Beam angle ()");
+				csvWriter.writeField("Field angle ()");
+				for (int plane = 0; plane < beamAngles.getPlanes(); plane++) {
+					// Every C-plane once, from its half-plane below 180 degrees
+					if (beamAngles.getPhi(plane) < 180 && beamAngles.getOpposite(plane) >= 0) {
+						csvWriter.nextLine();
+						csvWriter.writeField(String.valueOf(beamAngles.getPhi(plane)));
+						csvWriter.writeField(formatAngle(beamAngles.getBeamAngle(plane)));
+						csvWriter.writeField(formatAngle(beamAngles.getFieldAngle(plane)));
+					}
+				}
+			}
+			/*--- WRITE BEAM AND FIELD ANGLES ---*/
+
+			/*--- WRITE ZONAL LUMFLUX ---*/
+			if (zonalFlux != null) {
+				csvWriter.nextLine();
+				csvWriter.nextLine();
+				csvWriter.writeField("Zone ()");
+				csvWriter.writeField("Luminous flux (lm)");
+				csvWriter.writeField("Luminous flux (%)");
+				int maxTheta = (int) zonalFlux.getMaxTheta();
+				for (int zone : ZONAL_CONES) {
+					if (zone <= maxTheta) {
+						writeZone(csvWriter, zonalFlux, 0, zone);
+					}
+				}
+				if (maxTheta > 90) {
+					writeZone(csvWriter, zonalFlux, 90, maxTheta);
+				}
+				for (int zone = 0; zone < maxTheta; zone += ZONAL_BAND) {
+					writeZone(csvWriter, zonalFlux, zone, zone + ZONAL_BAND);
+				}
+			}
+			/*--- WRITE ZONAL LUMFLUX ---*/
+
 			csvWriter.nextLine();
 			csvWriter.nextLine();
 			csvWriter.writeField("Polar angle ()");
 			csvWriter.writeField("Azimuth angle ()");
 			csvWriter.writeField("Luminous intensity (cd)");
 
-			for (SphericalCoordinates lumint : lumints) {
-				csvWriter.nextLine();
-				csvWriter.writeField(String.valueOf(lumint.getTheta()));
-				csvWriter.writeField(String.valueOf(lumint.getPhi()));
-				csvWriter.writeField(String.valueOf(lumint.getR()));
+			/*--- WRITE LUMINOUS INTENSITIES ---*/
+			/*
+			 * The results file and the raw file are written at the same time.
+			 * The results file has every luminous intensity, with the angles
+			 * reported by the device, ordered by the grid. The raw file has
+			 * them as they arrived.
+			 */
+			ArrayList<SphericalCoordinates> sortedLumints = grid.sort(lumints);
+			MultiSinkWriter sinksWriter = new MultiSinkWriter();
+			SampleSink resultsSink = new CSVSampleSink(csvWriter, true);
+			sinksWriter.add(resultsSink, sortedLumints);
+			SampleSink rawSink = null;
+			if (Boolean.valueOf(propsMngr.getProperty(KNDL.STORERAWS))) {
+				if (!stopped && !measureException) {
+					rawSink = createRawSink(filename, csvWriter);
+					if (rawSink != null) {
+						sinksWriter.add(rawSink, lumints);
+						printDateOnMonitor();
+						owner.printlnOnMonitor("Writing raw file...", logFileName);
+					}
+				} else {
+					printDateOnMonitor();
+					owner.printlnOnMonitor("The raw file wasn't stored because the measure didn't end normally.",
+							logFileName);
+				}
 			}
-
-			csvWriter.closeCSV();
+			SampleSink binarySink = null;
+			if (Boolean.valueOf(propsMngr.getProperty(KNDL.STOREBINARY))) {
+				binarySink = createBinarySink(filename, grid, lumFlux, hvFWHM);
+				if (binarySink != null) {
+					sinksWriter.add(binarySink, sortedLumints);
+					printDateOnMonitor();
+					owner.printlnOnMonitor("Writing binary results file...", logFileName);
+				}
+			}
+			csvHandedOut = true;
+			sinksWriter.write();
+			if (rawSink != null && sinksWriter.getError(rawSink) != null) {
+				owner.showError("Error generating raw files.");
+				owner.setMeasureState(MainWindow.IDLE);
+			}
+			if (binarySink != null && sinksWriter.getError(binarySink) != null) {
+				owner.showError("Error generating the binary results file.");
+				owner.setMeasureState(MainWindow.IDLE);
+			}
+			if (sinksWriter.getError(resultsSink) != null) {
+				throw sinksWriter.getError(resultsSink);
+			}
+			/*--- WRITE LUMINOUS INTENSITIES ---*/
 			/*--- WRITE CSV FILE ---*/
-		} catch (IOException e) {
-			JOptionPane.showMessageDialog(null, "Error generating the CSV file.", "Error", JOptionPane.WARNING_MESSAGE);
-			owner.setMeasureState(MainWindow.IDLE);
-		} catch (InconsistentMeasureException e1) {
-			JOptionPane.showMessageDialog(null, e1.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
-			owner.setMeasureState(MainWindow.IDLE);
-		}
 
-		/*--- WRITE RAW FILE ---*/
-		if (Boolean.valueOf(propsMngr.getProperty(KNDL.STORERAWS))) {
-			if (!stopped && !measureException) {
-				String rawName = filename + "_RAW";
-				csvWriter.setFileName(propsMngr.getProperty(KNDL.RESULTSPATH) + KNDL.RAWSDIRECTORY + rawName);
+			/*--- EXPORT IES AND EULUMDAT FILES ---*/
+			PhotometricExporter exporter = new PhotometricExporter();
+			if (exporter.isEnabled()) {
 				printDateOnMonitor();
-				owner.printlnOnMonitor("Writing raw file...", logFileName);
-				writeRawFile(csvWriter, lumints);
-			} else {
-				printDateOnMonitor();
-				owner.printlnOnMonitor("The raw file wasn't stored because the measure didn't end normally.",
-						logFileName);
+				if (stopped || measureException || grid.getMissing() > 0) {
+					owner.printlnOnMonitor(
+							"The IES and EULUMDAT files weren't exported because the measure is incomplete.",
+							logFileName);
+				} else {
+					owner.printlnOnMonitor("Exporting IES and EULUMDAT files...", logFileName);
+					try {
+						exporter.export(grid, propsMngr.getProperty(KNDL.RESULTSPATH) + "//" + filename, threadName,
+								calendar.getTime());
+						printDateOnMonitor();
+						owner.printlnOnMonitor("Symmetry of the luminous intensity distribution: "
+								+ exporter.getDistribution().getTypeName(), logFileName);
+					} catch (IOException e) {
+						owner.showError("Error exporting the IES and EULUMDAT files.");
+						owner.setMeasureState(MainWindow.IDLE);
+					}
+				}
+			}
+			/*--- EXPORT IES AND EULUMDAT FILES ---*/
+		} catch (IOException e) {
+			owner.showError("Error generating the CSV file.");
+			owner.setMeasureState(MainWindow.IDLE);
+			return false;
+		} finally {
+			if (!csvHandedOut) {
+				try {
+					csvWriter.closeCSV();
+				} catch (IOException e) {
+					// Already reported
+				}
 			}
 		}
-		/*--- WRITE RAW FILE ---*/
+		return true;
+	}
+
+	/*
+	 * Writes the luminous flux of a zone and its percentage of the total.
+	 */
+	private void writeZone(CSVWriter csvWriter, ZonalFlux zonalFlux, int fromTheta, int toTheta)
+			throws IOException {
+		double flux = zonalFlux.getBandFlux(fromTheta, toTheta);
+		double total = zonalFlux.getTotalFlux();
+		csvWriter.nextLine();
+		csvWriter.writeField(fromTheta + "-" + toTheta);
+		csvWriter.writeField(String.format("%.2f", flux));
+		csvWriter.writeField(String.format("%.2f", total == 0 ? 0 : 100 * flux / total));
 	}
 
 	/*
-	 * Writes the raw file.
+	 * Creates the raw file, with the same separator and precision as the
+	 * results file. Returns null if it can't be created.
 	 */
-	private void writeRawFile(CSVWriter csvWriter, ArrayList<SphericalCoordinates> lumints) {
+	private SampleSink createRawSink(String filename, CSVWriter csvWriter) {
 		try {
 			File rawsDir = new File(PropsMngr.getInstance().getProperty(KNDL.RESULTSPATH) + KNDL.RAWSDIRECTORY);
 			if (!rawsDir.exists()) {
 				rawsDir.mkdir();
 			}
 
-			/*--- WRITE CSV FILE ---*/
-			csvWriter.createCSV();
+			CSVWriter rawWriter = new CSVWriter(
+					PropsMngr.getInstance().getProperty(KNDL.RESULTSPATH) + KNDL.RAWSDIRECTORY + filename + "_RAW",
+					String.valueOf(csvWriter.getSeparator()));
+			rawWriter.setPrecision(csvWriter.getPrecision());
+			rawWriter.createCSV();
+			return new CSVSampleSink(rawWriter, false);
+		} catch (IOException e) {
+			owner.showError("Error generating raw files.");
+			owner.setMeasureState(MainWindow.IDLE);
+			return null;
+		}
+	}
 
-			for (SphericalCoordinates lumint : lumints) {
-				csvWriter.writeField(String.valueOf(lumint.getTheta()));
-				csvWriter.writeField(String.valueOf(lumint.getPhi()));
-				csvWriter.writeField(String.valueOf(lumint.getR()));
-				csvWriter.nextLine();
-			}
+	/*
+	 * Creates the binary results file, next to the CSV file, with the
+	 * configuration of the measure and the results computed. Returns null if
+	 * it can't be created.
+	 */
+	private SampleSink createBinarySink(String filename, PhotometricGrid grid, double lumFlux, HVFWHM hvFWHM) {
+		PropsMngr propsMngr = PropsMngr.getInstance();
+		HashMap<String, String> configuration = new HashMap<String, String>();
+		for (String key : BINARY_CONFIGURATION) {
+			configuration.put(key, propsMngr.getProperty(key));
+		}
+		// The resolutions of the measure, which may come from a journal
+		configuration.put(KNDL.RESTHETA, String.valueOf(grid.getResTheta()));
+		configuration.put(KNDL.CALOFFSET, calibrationOffset());
+		configuration.put(KNDL.RESPHI, String.valueOf(grid.getResPhi()));
 
-			csvWriter.closeCSV();
-			/*--- WRITE CSV FILE ---*/
+		int flags = 0;
+		if (stopped) {
+			flags |= BinaryResultsFile.STOPPED;
+		}
+		if (measureException) {
+			flags |= BinaryResultsFile.ERRORS;
+		}
+		if (recovered) {
+			flags |= BinaryResultsFile.RECOVERED;
+		}
+		try {
+			File file = new File(propsMngr.getProperty(KNDL.RESULTSPATH) + "//" + filename
+					+ BinaryResultsFile.EXTENSION);
+			return new BinaryResultsSink(file, grid, flags, lumFlux,
+					hvFWHM == null ? Float.NaN : hvFWHM.getHFWHM(), hvFWHM == null ? Float.NaN : hvFWHM.getVFWHM(),
+					configuration);
 		} catch (IOException e) {
-			JOptionPane.showMessageDialog(null, "Error generating raw files.", "Error", JOptionPane.WARNING_MESSAGE);
+			owner.showError("Error generating the binary results file.");
 			owner.setMeasureState(MainWindow.IDLE);
+			return null;
 		}
 	}
 
+	/*
+	 * The calibration offset of the measure (V).
+	 */
+	private String calibrationOffset() {
+		return calOffset != null ? calOffset : PropsMngr.getInstance().getProperty(KNDL.CALOFFSET);
+	}
+
+	/*
+	 * An angle with two decimals, or "n/a" if it couldn't be computed (NaN).
+	 */
+	private static String formatAngle(float angle) {
+		return Float.isNaN(angle) ? "n/a" : String.format("%.2f", angle);
+	}
+
 	/*
 	 * Prints the date on the main window monitor.
 	 */
@@ -0,0 +1,272 @@
+package es.upm.ies.goniophotometer.threads;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import es.upm.ies.goniophotometer.KNDL;
+import es.upm.ies.goniophotometer.photometry.PhotometricGrid;
+import es.upm.ies.goniophotometer.photometry.PhotometricSymmetry;
+import es.upm.ies.goniophotometer.photometry.PhotometryCalculations;
+import es.upm.ies.goniophotometer.photometry.SphericalCoordinates;
+import es.upm.ies.goniophotometer.utils.BinaryResultsFile;
+import es.upm.ies.goniophotometer.utils.EulumdatWriter;
+import es.upm.ies.goniophotometer.utils.IESWriter;
+import es.upm.ies.goniophotometer.utils.PhotometricHeader;
+import es.upm.ies.goniophotometer.utils.PropsMngr;
+
+/**
+ * Exports the results of the measures as IES (LM-63) and EULUMDAT files, for
+ * lighting design tools. The files are written next to the results, with the
+ * same name, and the luminous intensity distribution is reduced to its
+ * symmetry (see <code>PhotometricSymmetry</code>). Their descriptive fields
+ * (manufacturer, laboratory, lamp and input power) are taken from the
+ * properties of KNDL.<br>
+ * <br>
+ * The results of a measure are exported when they are written (see
+ * <code>MeasureThread</code>), and the results already in a directory can be
+ * exported at once (see <code>exportDirectory()</code>). Only complete
+ * measures are exported.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class PhotometricExporter {
+
+	private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+	private boolean ies;
+	private boolean ldt;
+	private PhotometricSymmetry distribution;
+
+	/**
+	 * Creates a new <code>PhotometricExporter</code> instance.
+	 *
+	 * @param ies
+	 *            True to export IES files.
+	 * @param ldt
+	 *            True to export EULUMDAT files.
+	 */
+	public PhotometricExporter(boolean ies, boolean ldt) {
+		this.ies = ies;
+		this.ldt = ldt;
+	}
+
+	/**
+	 * Creates a new <code>PhotometricExporter</code> instance that exports the
+	 * formats selected in the properties of KNDL.
+	 */
+	public PhotometricExporter() {
+		this(Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.EXPORTIES)),
+				Boolean.valueOf(PropsMngr.getInstance().getProperty(KNDL.EXPORTLDT)));
+	}
+
+	/**
+	 * Returns whether any format is to be exported or not.
+	 *
+	 * @return True if IES or EULUMDAT files are exported. False otherwise.
+	 */
+	public boolean isEnabled() {
+		return ies || ldt;
+	}
+
+	/**
+	 * Exports the luminous intensities of a complete measure.
+	 *
+	 * @param grid
+	 *            <code>PhotometricGrid</code> with the luminous intensities.
+	 * @param filename
+	 *            Filename of the exported files, without extension.
+	 * @param name
+	 *            Name of the measure.
+	 * @param date
+	 *            Date of the measure.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void export(PhotometricGrid grid, String filename, String name, Date date) throws IOException {
+		distribution = PhotometryCalculations.computeSymmetry(grid);
+		PhotometricHeader header = createHeader(name, date);
+		if (ies) {
+			new IESWriter(filename).write(distribution, header);
+		}
+		if (ldt) {
+			new EulumdatWriter(filename).write(distribution, PhotometryCalculations.computeZonalFlux(grid), header);
+		}
+	}
+
+	/**
+	 * Returns the luminous intensity distribution of the last measure
+	 * exported.
+	 *
+	 * @return The distribution, reduced to its symmetry, or <code>null</code>
+	 *         if nothing has been exported.
+	 */
+	public PhotometricSymmetry getDistribution() {
+		return distribution;
+	}
+
+	/**
+	 * Exports the results of every complete measure of a directory, as both
+	 * IES and EULUMDAT files. The results are read from the binary results
+	 * files (see <code>BinaryResultsFile</code>) or, if a measure doesn't have
+	 * one, from its CSV file.
+	 *
+	 * @param directory
+	 *            Directory with the results.
+	 * @param owner
+	 *            The <code>MeasureMonitor</code> where the export is
+	 *            reported.
+	 */
+	public static void exportDirectory(File directory, MeasureMonitor owner) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(BinaryResultsFile.EXTENSION) || name.endsWith(".csv");
+			}
+		});
+		if (files == null) {
+			owner.printlnOnMonitor("[KNDL] " + directory.getPath() + " can't be read.", "");
+			return;
+		}
+		Arrays.sort(files);
+		owner.printlnOnMonitor("[KNDL] Exporting the results of " + directory.getPath() + "...", "");
+
+		PhotometricExporter exporter = new PhotometricExporter(true, true);
+		int exported = 0;
+		int skipped = 0;
+		for (File file : files) {
+			String fileName = file.getName();
+			boolean binary = fileName.endsWith(BinaryResultsFile.EXTENSION);
+			String name = fileName.substring(0, fileName.lastIndexOf('.'));
+			String filename = new File(directory, name).getPath();
+			if (!binary && new File(filename + BinaryResultsFile.EXTENSION).exists()) {
+				// Read from the binary results file instead
+				continue;
+			}
+			try {
+				PhotometricGrid grid = binary ? readBinaryResults(file) : readCSV(file);
+				if (grid == null || grid.getMissing() > 0) {
+					owner.printlnOnMonitor(
+							"[KNDL] " + fileName + " wasn't exported because the measure is incomplete.", "");
+					skipped++;
+				} else {
+					exporter.export(grid, filename, name, new Date(file.lastModified()));
+					exported++;
+				}
+			} catch (IOException e) {
+				owner.printlnOnMonitor("[KNDL] " + fileName + " can't be exported: " + e.getMessage(), "");
+				skipped++;
+			}
+		}
+		owner.printlnOnMonitor("[KNDL] Measures exported: " + exported + ". Measures not exported: " + skipped + ".",
+				"");
+	}
+
+	private PhotometricHeader createHeader(String name, Date date) {
+		PropsMngr propsMngr = PropsMngr.getInstance();
+		PhotometricHeader header = new PhotometricHeader();
+		header.setName(name);
+		header.setDate(new SimpleDateFormat(DATE_FORMAT).format(date));
+		header.setManufacturer(propsMngr.getProperty(KNDL.MANUFACTURER));
+		header.setLaboratory(propsMngr.getProperty(KNDL.TESTLAB));
+		header.setLamp(propsMngr.getProperty(KNDL.LAMP));
+		try {
+			header.setWatts(Double.parseDouble(propsMngr.getProperty(KNDL.LAMPWATTS)));
+		} catch (NumberFormatException e) {
+			// Not a valid power. It is written as unknown
+		}
+		header.setComments("Measured with " + KNDL.SOFTWARENAME + " " + KNDL.SOFTWAREVERSION);
+		return header;
+	}
+
+	/*
+	 * Reads the grid of a binary results file. Returns null if the measure
+	 * didn't end normally.
+	 */
+	private static PhotometricGrid readBinaryResults(File file) throws IOException {
+		BinaryResultsFile results = BinaryResultsFile.open(file);
+		if ((results.getFlags() & (BinaryResultsFile.STOPPED | BinaryResultsFile.ERRORS)) != 0) {
+			return null;
+		}
+		PhotometricGrid grid = new PhotometricGrid(results.getResTheta(), results.getResPhi(),
+				results.isFullSphere());
+		if (grid.getRings() != results.getRings() || grid.getPlanes() != results.getPlanes()) {
+			throw new IOException("The size of the grid doesn't match its resolution.");
+		}
+		DoubleBuffer intensities = results.getIntensities();
+		for (int ring = 0; ring < grid.getRings(); ring++) {
+			for (int plane = 0; plane < grid.getPlanes(); plane++) {
+				double intensity = intensities.get();
+				if (!Double.isNaN(intensity)) {
+					grid.set(ring, plane, intensity);
+				}
+			}
+		}
+		return grid;
+	}
+
+	/*
+	 * Reads the luminous intensities of a results file written by
+	 * MeasureThread. The resolutions are the smallest angles other than 0.
+	 * Returns null if the measure didn't end normally.
+	 */
+	private static PhotometricGrid readCSV(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1));
+		try {
+			String line = reader.readLine();
+			if (line == null || line.startsWith("MEASURE STOPPED")) {
+				return null;
+			}
+			while (line != null && !line.startsWith("Polar angle")) {
+				line = reader.readLine();
+			}
+			if (line == null || line.indexOf(')') < 0 || line.indexOf(')') == line.length() - 1) {
+				throw new IOException("It isn't a results file.");
+			}
+			char separator = line.charAt(line.indexOf(')') + 1);
+
+			ArrayList<SphericalCoordinates> lumints = new ArrayList<SphericalCoordinates>();
+			float resTheta = Float.MAX_VALUE;
+			float resPhi = Float.MAX_VALUE;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				int first = line.indexOf(separator);
+				int second = line.indexOf(separator, first + 1);
+				int third = line.indexOf(separator, second + 1);
+				try {
+					float theta = Float.parseFloat(line.substring(0, first));
+					float phi = Float.parseFloat(line.substring(first + 1, second));
+					double intensity = Double.parseDouble(line.substring(second + 1, third < 0 ? line.length() : third));
+					lumints.add(new SphericalCoordinates(theta, phi, intensity));
+					if (theta > 0 && theta < resTheta) {
+						resTheta = theta;
+					}
+					if (phi > 0 && phi < resPhi) {
+						resPhi = phi;
+					}
+				} catch (RuntimeException e) {
+					// Not a number, or a missing field
+					throw new IOException("Malformed luminous intensity: " + line);
+				}
+			}
+			if (resTheta == Float.MAX_VALUE || resPhi == Float.MAX_VALUE) {
+				return null;
+			}
+			return PhotometricGrid.fromSamples(lumints, resTheta, resPhi);
+		} finally {
+			reader.close();
+		}
+	}
+}
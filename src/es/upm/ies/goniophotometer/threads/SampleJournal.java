@@ -0,0 +1,360 @@
+package es.upm.ies.goniophotometer.threads;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+
+import es.upm.ies.goniophotometer.photometry.SphericalCoordinates;
+
+/**
+ * File where the luminous intensities of a measure are stored as they arrive,
+ * so they aren't lost if KNDL is closed unexpectedly (e.g. a crash or a power
+ * failure) before the results are written. The journal is deleted once the
+ * results are written, so any journal found when KNDL starts belongs to a
+ * measure whose results can be recovered from it.<br>
+ * <br>
+ * The journal starts with <code>MAGIC</code>, followed by the resolution of
+ * the polar angle and the resolution of the azimuth angle (4 bytes each). Then
+ * there is a record for every luminous intensity: polar angle (4 bytes),
+ * azimuth angle (4 bytes) and luminous intensity (8 bytes). A record whose
+ * values are all <code>NaN</code> marks the end of the measure. All numbers
+ * are little-endian.<br>
+ * <br>
+ * The records are gathered in a buffer and written at once, and the journal
+ * is forced to the storage device at most once every
+ * <code>FORCE_INTERVAL</code>, so journaling takes almost no time per
+ * luminous intensity. An incomplete record at the end of the journal is
+ * ignored.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class SampleJournal {
+
+	/**
+	 * First bytes of every journal.
+	 */
+	public static final String MAGIC = "KNDLJRN1";
+	/**
+	 * Extension of the journals.
+	 */
+	public static final String EXTENSION = ".jrn";
+	/**
+	 * Maximum time the records written can wait before being forced to the
+	 * storage device (milliseconds).
+	 */
+	public static final long FORCE_INTERVAL = 1000;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 16;
+	// Records gathered before writing them
+	private static final int BUFFER_RECORDS = 4096;
+
+	private File file;
+	private String name;
+	private float resTheta;
+	private float resPhi;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private long lastForce;
+	private boolean unforced;
+	// Luminous intensities of the measure already journaled
+	private int journaled;
+	private boolean ended;
+	private ArrayList<SphericalCoordinates> samples;
+
+	/**
+	 * Creates a new <code>SampleJournal</code> instance. The journal is
+	 * created with <code>create()</code>.
+	 *
+	 * @param directory
+	 *            Directory where the journal is to be located. It is created
+	 *            if it doesn't exist.
+	 * @param name
+	 *            Name of the measure, to be used in the name of the journal
+	 *            after the current date.
+	 */
+	public SampleJournal(String directory, String name) {
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH'h'mm");
+		Calendar calendar = new GregorianCalendar();
+		this.name = name;
+		file = new File(directory + sdf.format(calendar.getTime()) + "_" + name + EXTENSION);
+	}
+
+	private SampleJournal(File file) {
+		this.file = file;
+		String fileName = file.getName();
+		name = fileName.substring(fileName.indexOf('_') + 1, fileName.length() - EXTENSION.length());
+	}
+
+	/**
+	 * Returns the journals left by the measures whose results weren't written.
+	 *
+	 * @param directory
+	 *            Directory where the journals are located.
+	 * @return The journals, oldest first. Empty if there are none.
+	 */
+	public static ArrayList<File> findUnfinished(String directory) {
+		ArrayList<File> journals = new ArrayList<File>();
+		File[] files = new File(directory).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION) && name.indexOf('_') > 0;
+			}
+		});
+		if (files != null) {
+			for (File file : files) {
+				journals.add(file);
+			}
+			Collections.sort(journals);
+		}
+		return journals;
+	}
+
+	/**
+	 * Reads a journal.
+	 *
+	 * @param file
+	 *            The journal.
+	 * @return The <code>SampleJournal</code>, with the luminous intensities of
+	 *         the journal (see <code>getSamples()</code>).
+	 * @throws IOException
+	 *             If the journal can't be read or it isn't a journal.
+	 */
+	public static SampleJournal read(File file) throws IOException {
+		SampleJournal journal = new SampleJournal(file);
+		journal.samples = new ArrayList<SphericalCoordinates>();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException(file.getName() + " isn't a journal.");
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file.getName() + " is too large to be a journal.");
+			}
+			/*
+			 * Read into the heap rather than mapped: a mapped file can't be
+			 * deleted on Windows while the mapping is alive.
+			 */
+			ByteBuffer data = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+			while (data.hasRemaining() && channel.read(data) >= 0) {
+				// Keep reading until the whole journal is in the buffer
+			}
+			data.flip();
+			byte[] magic = new byte[MAGIC.length()];
+			data.get(magic);
+			if (!MAGIC.equals(new String(magic, StandardCharsets.ISO_8859_1))) {
+				throw new IOException(file.getName() + " isn't a journal.");
+			}
+			journal.resTheta = data.getFloat();
+			journal.resPhi = data.getFloat();
+			while (data.remaining() >= RECORD_SIZE) {
+				float theta = data.getFloat();
+				float phi = data.getFloat();
+				double intensity = data.getDouble();
+				if (Float.isNaN(theta)) {
+					journal.ended = true;
+					break;
+				}
+				journal.samples.add(new SphericalCoordinates(theta, phi, intensity));
+			}
+		} finally {
+			channel.close();
+		}
+		journal.journaled = journal.samples.size();
+		return journal;
+	}
+
+	/**
+	 * Creates the journal.
+	 *
+	 * @param resTheta
+	 *            The resolution of the polar angle of the measure.
+	 * @param resPhi
+	 *            The resolution of the azimuth angle of the measure.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void create(float resTheta, float resPhi) throws IOException {
+		this.resTheta = resTheta;
+		this.resPhi = resPhi;
+		File directory = file.getParentFile();
+		if (directory != null && !directory.exists()) {
+			directory.mkdirs();
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC.getBytes(StandardCharsets.ISO_8859_1));
+		buffer.putFloat(resTheta);
+		buffer.putFloat(resPhi);
+		force();
+	}
+
+	/**
+	 * Journals the luminous intensities received since the last call.
+	 *
+	 * @param samples
+	 *            All the luminous intensities received so far, in the order
+	 *            they were received (see
+	 *            <code>KNDLDataDecoder.getSamples()</code>).
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void append(ArrayList<SphericalCoordinates> samples) throws IOException {
+		for (; journaled < samples.size(); journaled++) {
+			if (!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+			SphericalCoordinates sample = samples.get(journaled);
+			buffer.putFloat(sample.getTheta());
+			buffer.putFloat(sample.getPhi());
+			buffer.putDouble(sample.getR());
+		}
+		if (System.currentTimeMillis() - lastForce >= FORCE_INTERVAL) {
+			force();
+		}
+	}
+
+	/**
+	 * Marks the end of the measure and forces the journal to the storage
+	 * device.
+	 *
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void end() throws IOException {
+		if (!ended) {
+			if (!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+			buffer.putFloat(Float.NaN);
+			buffer.putFloat(Float.NaN);
+			buffer.putDouble(Double.NaN);
+			ended = true;
+		}
+		force();
+	}
+
+	/**
+	 * Forces everything journaled so far to the storage device and closes the
+	 * journal, which is kept so that the results can be recovered.
+	 *
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void close() throws IOException {
+		if (channel != null) {
+			try {
+				force();
+			} finally {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Closes and deletes the journal (e.g. because the results have been
+	 * written).
+	 *
+	 * @return True if the journal was deleted or didn't exist. False if it
+	 *         couldn't be deleted.
+	 */
+	public boolean delete() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// It is deleted anyway
+			}
+			channel = null;
+		}
+		return file.delete() || !file.exists();
+	}
+
+	/**
+	 * Returns the name of the measure.
+	 *
+	 * @return The name of the measure.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the journal file.
+	 *
+	 * @return The journal file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the resolution of the polar angle of the measure.
+	 *
+	 * @return The resolution of the polar angle, in degrees per sample.
+	 */
+	public float getResTheta() {
+		return resTheta;
+	}
+
+	/**
+	 * Returns the resolution of the azimuth angle of the measure.
+	 *
+	 * @return The resolution of the azimuth angle, in degrees per sample.
+	 */
+	public float getResPhi() {
+		return resPhi;
+	}
+
+	/**
+	 * Returns whether the end of the measure was journaled or not.
+	 *
+	 * @return True if the measure ended. False if it was interrupted.
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Returns the luminous intensities of a journal that has been read.
+	 *
+	 * @return <code>ArrayList&#60;SphericalCoordinates&#62;</code> with the
+	 *         luminous intensities, in the order they were received.
+	 */
+	public ArrayList<SphericalCoordinates> getSamples() {
+		return samples;
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		if (buffer.hasRemaining()) {
+			unforced = true;
+		}
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void force() throws IOException {
+		writeBuffer();
+		if (unforced) {
+			channel.force(false);
+			unforced = false;
+		}
+		lastForce = System.currentTimeMillis();
+	}
+}
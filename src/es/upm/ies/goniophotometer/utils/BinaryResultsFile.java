@@ -0,0 +1,294 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Results of a measure in binary format (see <code>BinaryResultsSink</code>),
+ * read from a file. The file is mapped in memory and nothing is read until it
+ * is asked for, so opening it takes the same time whatever the resolution of
+ * the measure, and the luminous intensities are read straight from the
+ * file.<br>
+ * <br>
+ * The file is made of a header and the luminous intensities of the measuring
+ * grid. All numbers are little-endian. The header is made of:
+ * <ul>
+ * <li><code>MAGIC</code> (8 bytes).</li>
+ * <li>The size of the header, i.e. the position of the luminous intensities
+ * (4 bytes). It is a multiple of 8.</li>
+ * <li>The number of rings (polar angles) and the number of planes (azimuth
+ * angles) of the grid (4 bytes each).</li>
+ * <li>The resolution of the polar angle and the resolution of the azimuth
+ * angle, in degrees (4 bytes each).</li>
+ * <li>Flags (4 bytes): <code>FULL_SPHERE</code>, <code>STOPPED</code>,
+ * <code>ERRORS</code> and <code>RECOVERED</code>.</li>
+ * <li>The time the results were written, in milliseconds since the epoch (8
+ * bytes).</li>
+ * <li>The luminous flux (8 bytes) and the horizontal and vertical FWHM (4
+ * bytes each). They are <code>NaN</code> if they weren't computed.</li>
+ * <li>The length of the configuration (4 bytes) and the configuration of the
+ * measure, as lines <code>key=value</code> in UTF-8.</li>
+ * </ul>
+ * The luminous intensities (8 bytes each) go ring after ring, and they are
+ * <code>NaN</code> for the positions not measured.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class BinaryResultsFile {
+
+	/**
+	 * First bytes of every binary results file.
+	 */
+	public static final String MAGIC = "KNDLRES1";
+	/**
+	 * Extension of the binary results files.
+	 */
+	public static final String EXTENSION = ".kres";
+	/**
+	 * Flag of a measure of the full sphere.
+	 */
+	public static final int FULL_SPHERE = 1;
+	/**
+	 * Flag of a measure stopped by the user.
+	 */
+	public static final int STOPPED = 2;
+	/**
+	 * Flag of a measure stopped due to errors.
+	 */
+	public static final int ERRORS = 4;
+	/**
+	 * Flag of results recovered from the journal of the measure.
+	 */
+	public static final int RECOVERED = 8;
+
+	// Position of the fields of the header
+	static final int HEADER_SIZE = 8;
+	static final int RINGS = 12;
+	static final int PLANES = 16;
+	static final int RES_THETA = 20;
+	static final int RES_PHI = 24;
+	static final int FLAGS = 28;
+	static final int TIME = 32;
+	static final int LUM_FLUX = 40;
+	static final int H_FWHM = 48;
+	static final int V_FWHM = 52;
+	static final int CONFIGURATION = 56;
+
+	private ByteBuffer header;
+	private DoubleBuffer intensities;
+	private int rings;
+	private int planes;
+	private float resTheta;
+	private float resPhi;
+
+	private BinaryResultsFile(MappedByteBuffer data) throws IOException {
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		header = data;
+		int headerSize = data.getInt(HEADER_SIZE);
+		rings = data.getInt(RINGS);
+		planes = data.getInt(PLANES);
+		resTheta = data.getFloat(RES_THETA);
+		resPhi = data.getFloat(RES_PHI);
+		if (headerSize < CONFIGURATION || (long) headerSize + 8L * rings * planes > data.capacity()) {
+			throw new IOException("The binary results file is truncated.");
+		}
+		data.position(headerSize);
+		intensities = data.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		intensities.limit(rings * planes);
+	}
+
+	/**
+	 * Opens a binary results file.
+	 *
+	 * @param file
+	 *            The binary results file.
+	 * @return The results of the file.
+	 * @throws IOException
+	 *             If the file can't be read or it isn't a binary results file.
+	 */
+	public static BinaryResultsFile open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() < CONFIGURATION) {
+				throw new IOException(file.getName() + " isn't a binary results file.");
+			}
+			// The mapping remains valid once the channel is closed
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] magic = new byte[MAGIC.length()];
+			data.get(magic);
+			if (!MAGIC.equals(new String(magic, StandardCharsets.ISO_8859_1))) {
+				throw new IOException(file.getName() + " isn't a binary results file.");
+			}
+			return new BinaryResultsFile(data);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the luminous intensity of the specified position.
+	 *
+	 * @param ring
+	 *            Index of the polar angle.
+	 * @param plane
+	 *            Index of the azimuth angle.
+	 * @return The luminous intensity, or <code>NaN</code> if the position
+	 *         wasn't measured.
+	 */
+	public double intensity(int ring, int plane) {
+		return intensities.get(ring * planes + plane);
+	}
+
+	/**
+	 * Returns the luminous intensities of the grid, ring after ring, as they
+	 * are in the file (nothing is copied).
+	 *
+	 * @return A read-only <code>DoubleBuffer</code> with the luminous
+	 *         intensities.
+	 */
+	public DoubleBuffer getIntensities() {
+		return intensities.duplicate();
+	}
+
+	/**
+	 * Returns the polar angle of a ring.
+	 *
+	 * @param ring
+	 *            Index of the ring.
+	 * @return The polar angle, in degrees.
+	 */
+	public float getTheta(int ring) {
+		return ring * resTheta;
+	}
+
+	/**
+	 * Returns the azimuth angle of a plane.
+	 *
+	 * @param plane
+	 *            Index of the plane.
+	 * @return The azimuth angle, in degrees.
+	 */
+	public float getPhi(int plane) {
+		return plane * resPhi;
+	}
+
+	/**
+	 * Returns the number of rings.
+	 *
+	 * @return The number of polar angles, poles included.
+	 */
+	public int getRings() {
+		return rings;
+	}
+
+	/**
+	 * Returns the number of planes.
+	 *
+	 * @return The number of azimuth angles.
+	 */
+	public int getPlanes() {
+		return planes;
+	}
+
+	/**
+	 * Returns the resolution of the polar angle.
+	 *
+	 * @return The resolution of the polar angle, in degrees per sample.
+	 */
+	public float getResTheta() {
+		return resTheta;
+	}
+
+	/**
+	 * Returns the resolution of the azimuth angle.
+	 *
+	 * @return The resolution of the azimuth angle, in degrees per sample.
+	 */
+	public float getResPhi() {
+		return resPhi;
+	}
+
+	/**
+	 * Returns the flags of the results.
+	 *
+	 * @return The flags: <code>FULL_SPHERE</code>, <code>STOPPED</code>,
+	 *         <code>ERRORS</code> and <code>RECOVERED</code>.
+	 */
+	public int getFlags() {
+		return header.getInt(FLAGS);
+	}
+
+	/**
+	 * Returns whether the measure covers the full sphere or a semi-sphere.
+	 *
+	 * @return True for the full sphere. False for a semi-sphere.
+	 */
+	public boolean isFullSphere() {
+		return (getFlags() & FULL_SPHERE) != 0;
+	}
+
+	/**
+	 * Returns the time the results were written.
+	 *
+	 * @return The time, in milliseconds since the epoch.
+	 */
+	public long getTime() {
+		return header.getLong(TIME);
+	}
+
+	/**
+	 * Returns the luminous flux.
+	 *
+	 * @return The luminous flux, or <code>NaN</code> if it wasn't computed.
+	 */
+	public double getLumFlux() {
+		return header.getDouble(LUM_FLUX);
+	}
+
+	/**
+	 * Returns the horizontal FWHM.
+	 *
+	 * @return The horizontal FWHM, or <code>NaN</code> if it wasn't computed.
+	 */
+	public float getHFWHM() {
+		return header.getFloat(H_FWHM);
+	}
+
+	/**
+	 * Returns the vertical FWHM.
+	 *
+	 * @return The vertical FWHM, or <code>NaN</code> if it wasn't computed.
+	 */
+	public float getVFWHM() {
+		return header.getFloat(V_FWHM);
+	}
+
+	/**
+	 * Returns the configuration of the measure (e.g. the resolutions, the
+	 * calibration offset or the source-to-sensor distance).
+	 *
+	 * @return The configuration, with the names of the properties of KNDL as
+	 *         keys.
+	 * @throws IOException
+	 *             If the configuration can't be read.
+	 */
+	public Properties getConfiguration() throws IOException {
+		byte[] bytes = new byte[header.getInt(CONFIGURATION)];
+		ByteBuffer configuration = header.duplicate();
+		configuration.position(CONFIGURATION + 4);
+		configuration.get(bytes);
+		Properties properties = new Properties();
+		properties.load(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+		return properties;
+	}
+}
@@ -0,0 +1,149 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import es.upm.ies.goniophotometer.photometry.PhotometricGrid;
+
+/**
+ * <code>SampleSink</code> that writes the results of a measure in binary
+ * format (see <code>BinaryResultsFile</code>). The file is created with its
+ * final size and mapped in memory, every luminous intensity is put in its
+ * position of the grid, and the file is forced to the storage device when the
+ * sink is closed.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class BinaryResultsSink implements SampleSink {
+
+	private PhotometricGrid grid;
+	private FileChannel channel;
+	private MappedByteBuffer data;
+	private DoubleBuffer intensities;
+
+	/**
+	 * Creates a new <code>BinaryResultsSink</code> instance and writes the
+	 * header of the file.
+	 *
+	 * @param file
+	 *            The binary results file. It is overwritten if it exists.
+	 * @param grid
+	 *            <code>PhotometricGrid</code> whose luminous intensities are
+	 *            to be written.
+	 * @param flags
+	 *            Flags of the results (see <code>BinaryResultsFile</code>).
+	 *            <code>FULL_SPHERE</code> is taken from the grid.
+	 * @param lumFlux
+	 *            The luminous flux, or <code>NaN</code> if it wasn't computed.
+	 * @param hFWHM
+	 *            The horizontal FWHM, or <code>NaN</code> if it wasn't
+	 *            computed.
+	 * @param vFWHM
+	 *            The vertical FWHM, or <code>NaN</code> if it wasn't computed.
+	 * @param configuration
+	 *            The configuration of the measure, with the names of the
+	 *            properties of KNDL as keys.
+	 * @throws IOException
+	 *             If the file can't be created.
+	 */
+	public BinaryResultsSink(File file, PhotometricGrid grid, int flags, double lumFlux, float hFWHM, float vFWHM,
+			Map<String, String> configuration) throws IOException {
+		this.grid = grid;
+		byte[] config = formatConfiguration(configuration);
+		// The luminous intensities are aligned to 8 bytes
+		int headerSize = (BinaryResultsFile.CONFIGURATION + 4 + config.length + 7) & ~7;
+		int size = grid.getRings() * grid.getPlanes();
+		if (grid.isFullSphere()) {
+			flags |= BinaryResultsFile.FULL_SPHERE;
+		} else {
+			flags &= ~BinaryResultsFile.FULL_SPHERE;
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			data = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize + 8L * size);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		data.put(BinaryResultsFile.MAGIC.getBytes(StandardCharsets.ISO_8859_1));
+		data.putInt(BinaryResultsFile.HEADER_SIZE, headerSize);
+		data.putInt(BinaryResultsFile.RINGS, grid.getRings());
+		data.putInt(BinaryResultsFile.PLANES, grid.getPlanes());
+		data.putFloat(BinaryResultsFile.RES_THETA, grid.getResTheta());
+		data.putFloat(BinaryResultsFile.RES_PHI, grid.getResPhi());
+		data.putInt(BinaryResultsFile.FLAGS, flags);
+		data.putLong(BinaryResultsFile.TIME, System.currentTimeMillis());
+		data.putDouble(BinaryResultsFile.LUM_FLUX, lumFlux);
+		data.putFloat(BinaryResultsFile.H_FWHM, hFWHM);
+		data.putFloat(BinaryResultsFile.V_FWHM, vFWHM);
+		data.putInt(BinaryResultsFile.CONFIGURATION, config.length);
+		data.position(BinaryResultsFile.CONFIGURATION + 4);
+		data.put(config);
+
+		// The positions not measured are left as NaN
+		data.position(headerSize);
+		intensities = data.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		for (int i = 0; i < size; i++) {
+			intensities.put(i, Double.NaN);
+		}
+	}
+
+	public void writeSample(float theta, float phi, double intensity) throws IOException {
+		int ring = grid.ringOf(theta);
+		int plane = grid.planeOf(phi);
+		if (ring >= 0 && plane >= 0) {
+			intensities.put(ring * grid.getPlanes() + plane, intensity);
+		}
+	}
+
+	public void close() throws IOException {
+		if (channel != null) {
+			try {
+				data.force();
+			} finally {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/*
+	 * Lines "key=value", sorted by key, in the format of Properties files.
+	 */
+	private static byte[] formatConfiguration(Map<String, String> configuration) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : new TreeMap<String, String>(configuration).entrySet()) {
+			sb.append(escape(entry.getKey(), true)).append('=').append(escape(entry.getValue(), false)).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String escape(String text, boolean key) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\' || c == '=' || c == ':' || c == '#' || c == '!' || (c == ' ' && (key || i == 0))) {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '\r') {
+				sb.append("\\r");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,48 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.IOException;
+
+/**
+ * <code>SampleSink</code> that writes every luminous intensity as a row of a
+ * CSV file: polar angle, azimuth angle and luminous intensity.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class CSVSampleSink implements SampleSink {
+
+	private CSVWriter csvWriter;
+	private boolean newLineFirst;
+
+	/**
+	 * Creates a new <code>CSVSampleSink</code> instance.
+	 *
+	 * @param csvWriter
+	 *            <code>CSVWriter</code> of a CSV file already created. It is
+	 *            closed with the sink.
+	 * @param newLineFirst
+	 *            True to start every row with a new line (e.g. after a header
+	 *            that doesn't end with one). False to end every row with a
+	 *            new line.
+	 */
+	public CSVSampleSink(CSVWriter csvWriter, boolean newLineFirst) {
+		this.csvWriter = csvWriter;
+		this.newLineFirst = newLineFirst;
+	}
+
+	public void writeSample(float theta, float phi, double intensity) throws IOException {
+		if (newLineFirst) {
+			csvWriter.nextLine();
+		}
+		csvWriter.writeField(theta);
+		csvWriter.writeField(phi);
+		csvWriter.writeField(intensity);
+		if (!newLineFirst) {
+			csvWriter.nextLine();
+		}
+	}
+
+	public void close() throws IOException {
+		csvWriter.closeCSV();
+	}
+}
@@ -5,7 +5,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 
 /**
- * Class used to write CSV (Comma-Separated Values) files.
+ * Class used to write CSV (Comma-Separated Values) files.<br>
+ * <br>
+ * The fields are gathered in a buffer that is reused for every file written
+ * by the instance, and they are written to the file when the buffer is full.
+ * Numbers can be written with a fixed number of decimals (see
+ * <code>setPrecision()</code>), in which case their digits are put straight
+ * into the buffer, without creating any <code>String</code>.
  * 
  * @author Abd&oacute;n Alejandro Vivas Imparato
  *
@@ -23,10 +29,29 @@ public class CSVWriter {
 	 * Carriage return (&#92;r) followed by a newline (&#92;n).
 	 */
 	public static final String NEW_LINE = "\r\n";
+	/**
+	 * Precision of the numbers written as <code>String.valueOf()</code> does.
+	 */
+	public static final int FULL_PRECISION = -1;
+
+	// Size of the buffer (characters)
+	private static final int BUFFER_SIZE = 65536;
+	// Maximum number of decimals of the fixed precision
+	private static final int MAX_PRECISION = 9;
+	/*
+	 * Numbers whose digits don't fit in a long once scaled are written as
+	 * String.valueOf() does.
+	 */
+	private static final double MAX_FIXED = 1e15;
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+			100000000L, 1000000000L };
 
 	private char separator;
 	private String filename;
 	private FileWriter writer;
+	private int precision = FULL_PRECISION;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int count;
 
 	/**
 	 * Creates a new <code>CSVWriter</code> instance with the specified filename
@@ -54,6 +79,7 @@ public class CSVWriter {
 		file = new File(filename + ".csv");
 		file.createNewFile();
 		writer = new FileWriter(file);
+		count = 0;
 	}
 
 	/**
@@ -66,8 +92,67 @@ public class CSVWriter {
 	 *             If an I/O error occurs.
 	 */
 	public void writeField(String value) throws IOException {
-		writer.append(value);
-		writer.append(separator);
+		int length = value.length();
+		if (length >= BUFFER_SIZE) {
+			flushBuffer();
+			writer.write(value);
+		} else {
+			ensureRoom(length);
+			value.getChars(0, length, buffer, count);
+			count += length;
+		}
+		append(separator);
+	}
+
+	/**
+	 * Writes a new field with a number. If the precision is
+	 * <code>FULL_PRECISION</code>, it is written as
+	 * <code>String.valueOf(value)</code>. Otherwise, it is rounded to the
+	 * number of decimals of the precision.
+	 * 
+	 * @param value
+	 *            Value of the new field.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void writeField(double value) throws IOException {
+		if (precision == FULL_PRECISION || Double.isNaN(value) || Double.isInfinite(value)
+				|| Math.abs(value) * POWERS_OF_TEN[precision] >= MAX_FIXED) {
+			writeField(String.valueOf(value));
+			return;
+		}
+		// Sign, 15 digits, point and separator at most
+		ensureRoom(18);
+		long scale = POWERS_OF_TEN[precision];
+		long units = Math.round(Math.abs(value) * scale);
+		if (value < 0 && units != 0) {
+			buffer[count++] = '-';
+		}
+		appendDigits(units / scale, 1);
+		if (precision > 0) {
+			buffer[count++] = '.';
+			appendDigits(units % scale, precision);
+		}
+		buffer[count++] = separator;
+	}
+
+	/**
+	 * Writes a new field with a number. If the precision is
+	 * <code>FULL_PRECISION</code>, it is written as
+	 * <code>String.valueOf(value)</code>. Otherwise, it is rounded to the
+	 * number of decimals of the precision.
+	 * 
+	 * @param value
+	 *            Value of the new field.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void writeField(float value) throws IOException {
+		if (precision == FULL_PRECISION) {
+			writeField(String.valueOf(value));
+		} else {
+			writeField((double) value);
+		}
 	}
 
 	/**
@@ -77,18 +162,29 @@ public class CSVWriter {
 	 *             If an I/O error occurs.
 	 */
 	public void nextLine() throws IOException {
-		writer.append(NEW_LINE);
+		ensureRoom(2);
+		buffer[count++] = '\r';
+		buffer[count++] = '\n';
 	}
 
 	/**
-	 * Closes the CSV file.
+	 * Closes the CSV file. The file is closed even if the fields still in the
+	 * buffer can't be written, and closing it again has no effect.
 	 * 
 	 * @throws IOException
 	 *             If an I/O error occurs.
 	 */
 	public void closeCSV() throws IOException {
-		writer.flush();
-		writer.close();
+		if (writer == null) {
+			return;
+		}
+		try {
+			flushBuffer();
+			writer.flush();
+		} finally {
+			writer.close();
+			writer = null;
+		}
 	}
 
 	/**
@@ -109,6 +205,34 @@ public class CSVWriter {
 		this.separator = separator;
 	}
 
+	/**
+	 * Returns the number of decimals of the numbers written by this instance
+	 * of the class.
+	 * 
+	 * @return The number of decimals, or <code>FULL_PRECISION</code>.
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Sets the number of decimals of the numbers written by this instance of
+	 * the class. Numbers are rounded to the nearest value with that number of
+	 * decimals (a value halfway between two may be rounded to either of them,
+	 * because of the binary representation of the number).
+	 * 
+	 * @param precision
+	 *            The number of decimals (from 0 to 9), or
+	 *            <code>FULL_PRECISION</code> to write them as
+	 *            <code>String.valueOf()</code> does.
+	 */
+	public void setPrecision(int precision) {
+		if (precision != FULL_PRECISION && (precision < 0 || precision > MAX_PRECISION)) {
+			throw new IllegalArgumentException("The precision must be between 0 and " + MAX_PRECISION + ".");
+		}
+		this.precision = precision;
+	}
+
 	/**
 	 * Returns the filename of the CSV file, omitting the extension.
 	 * 
@@ -126,4 +250,39 @@ public class CSVWriter {
 	public void setFileName(String filename) {
 		this.filename = filename;
 	}
+
+	private void append(char c) throws IOException {
+		ensureRoom(1);
+		buffer[count++] = c;
+	}
+
+	/*
+	 * Puts the digits of a non-negative number in the buffer, with leading
+	 * zeros up to the specified number of digits.
+	 */
+	private void appendDigits(long value, int minDigits) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		digits = Math.max(digits, minDigits);
+		for (int i = count + digits - 1; i >= count; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	private void ensureRoom(int length) throws IOException {
+		if (count + length > BUFFER_SIZE) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			writer.write(buffer, 0, count);
+			count = 0;
+		}
+	}
 }
@@ -0,0 +1,183 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import es.upm.ies.goniophotometer.photometry.PhotometricSymmetry;
+import es.upm.ies.goniophotometer.photometry.ZonalFlux;
+
+/**
+ * Class used to write EULUMDAT files (.ldt) with the luminous intensity
+ * distribution of a measure: the polar angle is the angle G and the azimuth
+ * angle is the angle C. Only the C-planes needed by the symmetry of the
+ * distribution are written (e.g. from 0 to 90 degrees if it is symmetric with
+ * respect to the planes C0-C180 and C90-C270), and the luminous intensities
+ * are written straight from the distribution.<br>
+ * <br>
+ * The luminous intensities are written in cd/klm of the measured luminous
+ * flux, with a single set of lamps whose flux is the measured one. The angles
+ * G always go from 0 to 180 degrees: those of a semi-sphere measure above 90
+ * degrees are written as 0. The direct ratios aren't computed (they are
+ * written as 0).
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class EulumdatWriter {
+	/**
+	 * Extension of the EULUMDAT files.
+	 */
+	public static final String EXTENSION = ".ldt";
+
+	// Maximum length of the text lines
+	private static final int MAX_LINE = 78;
+	private static final int MAX_LAMP = 24;
+	// Room indices of the direct ratios
+	private static final int DIRECT_RATIOS = 10;
+
+	private String filename;
+	private Writer writer;
+	private DecimalFormat format = new DecimalFormat("0.##", DecimalFormatSymbols.getInstance(Locale.ROOT));
+
+	/**
+	 * Creates a new <code>EulumdatWriter</code> instance with the specified
+	 * filename. The filename <b>must not</b> contain the extension.
+	 *
+	 * @param filename
+	 *            Filename of the EULUMDAT file.
+	 */
+	public EulumdatWriter(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Writes the EULUMDAT file.
+	 *
+	 * @param distribution
+	 *            The luminous intensity distribution, reduced to its symmetry.
+	 *            Every position must have been measured.
+	 * @param zonalFlux
+	 *            The zonal luminous flux of the distribution, for the
+	 *            luminous flux and the downward flux fraction.
+	 * @param header
+	 *            The descriptive fields of the file.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void write(PhotometricSymmetry distribution, ZonalFlux zonalFlux, PhotometricHeader header)
+			throws IOException {
+		// C-planes written (indices modulo the number of planes)
+		int planes = distribution.getPlanes();
+		int firstPlane;
+		int lastPlane;
+		switch (distribution.getType()) {
+		case PhotometricSymmetry.ROTATIONAL:
+			firstPlane = 0;
+			lastPlane = 0;
+			break;
+		case PhotometricSymmetry.QUADRANT:
+			firstPlane = 0;
+			lastPlane = planes / 4;
+			break;
+		case PhotometricSymmetry.C0_C180:
+			firstPlane = 0;
+			lastPlane = planes / 2;
+			break;
+		case PhotometricSymmetry.C90_C270:
+			firstPlane = 3 * planes / 4;
+			lastPlane = firstPlane + planes / 2;
+			break;
+		default:
+			firstPlane = 0;
+			lastPlane = planes - 1;
+			break;
+		}
+		int rings = distribution.getRings();
+		int angles = (int) (180 / distribution.getResTheta() + 1);
+		double flux = zonalFlux.getTotalFlux();
+		double toCdPerKlm = flux > 0 ? 1000 / flux : 0;
+		double downwardFraction = flux > 0 ? 100 * zonalFlux.getConeFlux(90) / flux : 0;
+
+		writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(filename + EXTENSION), StandardCharsets.ISO_8859_1));
+		try {
+			writeText(header.getManufacturer(), MAX_LINE);
+			writeLine(distribution.getType() == PhotometricSymmetry.ROTATIONAL ? "1" : "3");
+			writeLine(String.valueOf(distribution.getType()));
+			writeLine(String.valueOf(planes));
+			writeNumber(distribution.getResPhi());
+			writeLine(String.valueOf(angles));
+			writeNumber(distribution.getResTheta());
+			// Report, luminaire name and number, file name and date/user
+			writeText(header.getName(), MAX_LINE);
+			writeText(header.getName(), MAX_LINE);
+			writeText("", MAX_LINE);
+			writeText(new File(filename).getName() + EXTENSION, MAX_LINE);
+			writeText(header.getDate() + " " + header.getLaboratory(), MAX_LINE);
+			// Size of the luminaire and of the luminous area (a point source)
+			for (int i = 0; i < 9; i++) {
+				writeLine("0");
+			}
+			writeNumber(downwardFraction);
+			// Light output ratio, conversion factor and tilt
+			writeLine("100");
+			writeLine("1");
+			writeLine("0");
+			// A set of lamps: number, type, flux, color, rendering and watts
+			writeLine("1");
+			writeLine("1");
+			writeText(header.getLamp(), MAX_LAMP);
+			writeNumber(flux);
+			writeLine("");
+			writeLine("");
+			writeNumber(header.getWatts());
+			for (int i = 0; i < DIRECT_RATIOS; i++) {
+				writeLine("0");
+			}
+
+			for (int plane = 0; plane < planes; plane++) {
+				writeNumber(distribution.getPhi(plane));
+			}
+			for (int ring = 0; ring < angles; ring++) {
+				writeNumber(ring * distribution.getResTheta());
+			}
+			for (int plane = firstPlane; plane <= lastPlane; plane++) {
+				for (int ring = 0; ring < angles; ring++) {
+					writeNumber(ring < rings ? distribution.intensity(ring, plane % planes) * toCdPerKlm : 0);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the filename of the EULUMDAT file, omitting the extension.
+	 *
+	 * @return The filename of the EULUMDAT file.
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	private void writeText(String text, int maxLength) throws IOException {
+		writeLine(PhotometricHeader.line(text, maxLength));
+	}
+
+	private void writeNumber(double value) throws IOException {
+		writeLine(format.format(value));
+	}
+
+	private void writeLine(String line) throws IOException {
+		writer.write(line);
+		writer.write(CSVWriter.NEW_LINE);
+	}
+}
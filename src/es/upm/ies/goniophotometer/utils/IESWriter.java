@@ -0,0 +1,179 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import es.upm.ies.goniophotometer.photometry.PhotometricSymmetry;
+
+/**
+ * Class used to write IES files (IESNA LM-63-2002) with the luminous intensity
+ * distribution of a measure, as type C photometry: the polar angle is the
+ * vertical angle and the azimuth angle is the horizontal angle. Only the
+ * horizontal angles needed by the symmetry of the distribution are written
+ * (e.g. from 0 to 180 degrees if it is symmetric with respect to the plane
+ * C0-C180), and the luminous intensities are written straight from the
+ * distribution, a line at a time.<br>
+ * <br>
+ * The photometry is absolute (the lumens per lamp are -1) and the luminaire
+ * is written as a point source.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class IESWriter {
+	/**
+	 * Extension of the IES files.
+	 */
+	public static final String EXTENSION = ".ies";
+
+	// Numbers per line, far below the limit of 256 characters
+	private static final int VALUES_PER_LINE = 10;
+	// Maximum length of the keyword lines
+	private static final int MAX_LINE = 256;
+
+	private String filename;
+	private Writer writer;
+	private DecimalFormat format = new DecimalFormat("0.###", DecimalFormatSymbols.getInstance(Locale.ROOT));
+
+	/**
+	 * Creates a new <code>IESWriter</code> instance with the specified
+	 * filename. The filename <b>must not</b> contain the extension.
+	 *
+	 * @param filename
+	 *            Filename of the IES file.
+	 */
+	public IESWriter(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Writes the IES file.
+	 *
+	 * @param distribution
+	 *            The luminous intensity distribution, reduced to its symmetry.
+	 *            Every position must have been measured.
+	 * @param header
+	 *            The descriptive fields of the file.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void write(PhotometricSymmetry distribution, PhotometricHeader header) throws IOException {
+		/*
+		 * Planes written, the last one included. Without symmetry, the plane 0
+		 * is written again as 360 degrees.
+		 */
+		int planes = distribution.getPlanes();
+		int firstPlane;
+		int lastPlane;
+		switch (distribution.getType()) {
+		case PhotometricSymmetry.ROTATIONAL:
+			firstPlane = 0;
+			lastPlane = 0;
+			break;
+		case PhotometricSymmetry.QUADRANT:
+			firstPlane = 0;
+			lastPlane = planes / 4;
+			break;
+		case PhotometricSymmetry.C0_C180:
+			firstPlane = 0;
+			lastPlane = planes / 2;
+			break;
+		case PhotometricSymmetry.C90_C270:
+			firstPlane = planes / 4;
+			lastPlane = 3 * planes / 4;
+			break;
+		default:
+			firstPlane = 0;
+			lastPlane = planes;
+			break;
+		}
+		int rings = distribution.getRings();
+
+		writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(filename + EXTENSION), StandardCharsets.ISO_8859_1));
+		try {
+			writeLine("IESNA:LM-63-2002");
+			writeKeyword("TEST", header.getName());
+			writeKeyword("TESTLAB", header.getLaboratory());
+			writeKeyword("ISSUEDATE", header.getDate());
+			writeKeyword("MANUFAC", header.getManufacturer());
+			writeKeyword("LUMINAIRE", header.getName());
+			writeKeyword("LAMP", header.getLamp());
+			if (!header.getComments().isEmpty()) {
+				writeKeyword("OTHER", header.getComments());
+			}
+			writeLine("TILT=NONE");
+			// Lamps, lumens per lamp, multiplier, angles, type C, meters, size
+			writeLine("1 -1 1 " + rings + " " + (lastPlane - firstPlane + 1) + " 1 2 0 0 0");
+			// Ballast factor, future use and input watts
+			writeLine("1 1 " + format.format(header.getWatts()));
+
+			int count = 0;
+			for (int ring = 0; ring < rings; ring++) {
+				count = writeValue(distribution.getTheta(ring), count);
+			}
+			endValues(count);
+			count = 0;
+			for (int plane = firstPlane; plane <= lastPlane; plane++) {
+				count = writeValue(distribution.getPhi(plane), count);
+			}
+			endValues(count);
+			for (int plane = firstPlane; plane <= lastPlane; plane++) {
+				count = 0;
+				for (int ring = 0; ring < rings; ring++) {
+					count = writeValue(distribution.intensity(ring, plane % planes), count);
+				}
+				endValues(count);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the filename of the IES file, omitting the extension.
+	 *
+	 * @return The filename of the IES file.
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	private void writeKeyword(String keyword, String value) throws IOException {
+		writeLine(PhotometricHeader.line("[" + keyword + "] " + value, MAX_LINE));
+	}
+
+	private void writeLine(String line) throws IOException {
+		writer.write(line);
+		writer.write(CSVWriter.NEW_LINE);
+	}
+
+	/*
+	 * Writes a number of a list, starting a new line when the line is full.
+	 * Returns the numbers already in the line.
+	 */
+	private int writeValue(double value, int count) throws IOException {
+		if (count == VALUES_PER_LINE) {
+			writer.write(CSVWriter.NEW_LINE);
+			count = 0;
+		}
+		if (count > 0) {
+			writer.write(' ');
+		}
+		writer.write(format.format(value));
+		return count + 1;
+	}
+
+	private void endValues(int count) throws IOException {
+		if (count > 0) {
+			writer.write(CSVWriter.NEW_LINE);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import es.upm.ies.goniophotometer.photometry.SphericalCoordinates;
+
+/**
+ * Writes luminous intensities to several outputs at the same time. Every
+ * <code>SampleSink</code> is given the luminous intensities it must write, in
+ * the order it must write them (e.g. ordered by angles for the results file,
+ * or as they arrived for the raw file), and has a thread of its own, so the
+ * time needed to write all the outputs is the time of the slowest one instead
+ * of the sum of all of them.<br>
+ * <br>
+ * The luminous intensities are only read, so several sinks can share the same
+ * list. An error in a sink doesn't stop the others (see
+ * <code>getError()</code>). Every sink is closed when <code>write()</code>
+ * returns, even if it is interrupted before all of them are written.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class MultiSinkWriter {
+
+	private List<SampleSink> sinks = new ArrayList<SampleSink>();
+	private List<List<SphericalCoordinates>> lumints = new ArrayList<List<SphericalCoordinates>>();
+	private List<IOException> errors = new ArrayList<IOException>();
+	private List<Boolean> closed = new ArrayList<Boolean>();
+
+	/**
+	 * Adds an output.
+	 *
+	 * @param sink
+	 *            The output.
+	 * @param lumints
+	 *            <code>List&#60;SphericalCoordinates&#62;</code> with the
+	 *            luminous intensities to write to the output, in order. It
+	 *            must not be modified until they are written.
+	 */
+	public synchronized void add(SampleSink sink, List<SphericalCoordinates> lumints) {
+		sinks.add(sink);
+		this.lumints.add(lumints);
+		errors.add(null);
+		closed.add(false);
+	}
+
+	/**
+	 * Writes the luminous intensities of every sink and closes the sinks. It
+	 * returns when every sink has been closed. If the calling thread is
+	 * interrupted, the sinks that haven't been completely written are closed
+	 * by the calling thread, and their error is an
+	 * <code>InterruptedIOException</code>.
+	 */
+	public void write() {
+		ExecutorService[] threads = new ExecutorService[sinks.size()];
+		boolean finished = false;
+		try {
+			for (int i = 0; i < threads.length; i++) {
+				final String name = "KNDL results writer " + (i + 1);
+				threads[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, name);
+					}
+				});
+				threads[i].execute(new Writing(i));
+				threads[i].shutdown();
+			}
+
+			for (ExecutorService thread : threads) {
+				thread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			finished = true;
+		} catch (InterruptedException e) {
+			for (ExecutorService thread : threads) {
+				if (thread != null) {
+					thread.shutdownNow();
+				}
+			}
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!finished) {
+				// The writers that didn't start won't close their sinks
+				for (int i = 0; i < threads.length; i++) {
+					close(i, new InterruptedIOException("The results weren't completely written."));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the error that stopped a sink, if any.
+	 *
+	 * @param sink
+	 *            One of the sinks of this instance.
+	 * @return The error, or <code>null</code> if the sink wrote every
+	 *         luminous intensity and was closed normally.
+	 */
+	public synchronized IOException getError(SampleSink sink) {
+		return errors.get(sinks.indexOf(sink));
+	}
+
+	/*
+	 * Writes the luminous intensities of a sink and closes it, even after an
+	 * error, so that its file is released. It stops if write() closes the
+	 * sink first.
+	 */
+	private class Writing implements Runnable {
+		private int index;
+
+		private Writing(int index) {
+			this.index = index;
+		}
+
+		public void run() {
+			SampleSink sink = sinks.get(index);
+			try {
+				for (SphericalCoordinates lumint : lumints.get(index)) {
+					synchronized (sink) {
+						if (closed.get(index)) {
+							return;
+						}
+						sink.writeSample(lumint.getTheta(), lumint.getPhi(), lumint.getR());
+					}
+				}
+			} catch (IOException e) {
+				setError(index, e);
+			} finally {
+				close(index, null);
+			}
+		}
+	}
+
+	/*
+	 * Closes a sink unless it is already closed, keeping cause (if any) as its
+	 * error. A sample is never written while the sink is being closed.
+	 */
+	private void close(int index, IOException cause) {
+		SampleSink sink = sinks.get(index);
+		synchronized (sink) {
+			if (closed.get(index)) {
+				return;
+			}
+			closed.set(index, true);
+			if (cause != null) {
+				setError(index, cause);
+			}
+			try {
+				sink.close();
+			} catch (IOException e) {
+				setError(index, e);
+			}
+		}
+	}
+
+	/*
+	 * Keeps the first error of a sink.
+	 */
+	private synchronized void setError(int index, IOException e) {
+		if (errors.get(index) == null) {
+			errors.set(index, e);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package es.upm.ies.goniophotometer.utils;
+
+/**
+ * Descriptive fields of the photometric files (IES and EULUMDAT) of a
+ * measure: the luminaire, its manufacturer, the lamp and the laboratory that
+ * measured it. Fields not set are left empty.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class PhotometricHeader {
+
+	private String name = "";
+	private String manufacturer = "";
+	private String laboratory = "";
+	private String lamp = "";
+	private double watts;
+	private String date = "";
+	private String comments = "";
+
+	/**
+	 * Returns the name of the measure, used as name of the luminaire.
+	 *
+	 * @return The name of the measure.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Sets the name of the measure, used as name of the luminaire.
+	 *
+	 * @param name
+	 *            The name of the measure.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the manufacturer of the luminaire.
+	 *
+	 * @return The manufacturer of the luminaire.
+	 */
+	public String getManufacturer() {
+		return manufacturer;
+	}
+
+	/**
+	 * Sets the manufacturer of the luminaire.
+	 *
+	 * @param manufacturer
+	 *            The manufacturer of the luminaire.
+	 */
+	public void setManufacturer(String manufacturer) {
+		this.manufacturer = manufacturer;
+	}
+
+	/**
+	 * Returns the laboratory that measured the luminaire.
+	 *
+	 * @return The laboratory.
+	 */
+	public String getLaboratory() {
+		return laboratory;
+	}
+
+	/**
+	 * Sets the laboratory that measured the luminaire.
+	 *
+	 * @param laboratory
+	 *            The laboratory.
+	 */
+	public void setLaboratory(String laboratory) {
+		this.laboratory = laboratory;
+	}
+
+	/**
+	 * Returns the description of the lamp of the luminaire.
+	 *
+	 * @return The description of the lamp.
+	 */
+	public String getLamp() {
+		return lamp;
+	}
+
+	/**
+	 * Sets the description of the lamp of the luminaire.
+	 *
+	 * @param lamp
+	 *            The description of the lamp.
+	 */
+	public void setLamp(String lamp) {
+		this.lamp = lamp;
+	}
+
+	/**
+	 * Returns the input power of the luminaire.
+	 *
+	 * @return The input power (W), or 0 if it isn't known.
+	 */
+	public double getWatts() {
+		return watts;
+	}
+
+	/**
+	 * Sets the input power of the luminaire.
+	 *
+	 * @param watts
+	 *            The input power (W), or 0 if it isn't known.
+	 */
+	public void setWatts(double watts) {
+		this.watts = watts;
+	}
+
+	/**
+	 * Returns the date of the measure.
+	 *
+	 * @return The date of the measure.
+	 */
+	public String getDate() {
+		return date;
+	}
+
+	/**
+	 * Sets the date of the measure.
+	 *
+	 * @param date
+	 *            The date of the measure.
+	 */
+	public void setDate(String date) {
+		this.date = date;
+	}
+
+	/**
+	 * Returns other information about the measure (e.g. the source-to-sensor
+	 * distance).
+	 *
+	 * @return Other information about the measure.
+	 */
+	public String getComments() {
+		return comments;
+	}
+
+	/**
+	 * Sets other information about the measure (e.g. the source-to-sensor
+	 * distance).
+	 *
+	 * @param comments
+	 *            Other information about the measure.
+	 */
+	public void setComments(String comments) {
+		this.comments = comments;
+	}
+
+	/*
+	 * A field as a single line of at most the specified length.
+	 */
+	static String line(String field, int maxLength) {
+		String line = field.replace('\r', ' ').replace('\n', ' ').trim();
+		return line.length() > maxLength ? line.substring(0, maxLength) : line;
+	}
+}
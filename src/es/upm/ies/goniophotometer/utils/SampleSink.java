@@ -0,0 +1,35 @@
+package es.upm.ies.goniophotometer.utils;
+
+import java.io.IOException;
+
+/**
+ * Output that the luminous intensities of a measure are written to (e.g. the
+ * results file or the raw file). See <code>MultiSinkWriter</code>.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public interface SampleSink {
+
+	/**
+	 * Writes a luminous intensity.
+	 *
+	 * @param theta
+	 *            The polar angle.
+	 * @param phi
+	 *            The azimuth angle.
+	 * @param intensity
+	 *            The luminous intensity.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void writeSample(float theta, float phi, double intensity) throws IOException;
+
+	/**
+	 * Ends the output, once every luminous intensity has been written.
+	 *
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,152 @@
+package es.upm.ies.goniophotometer.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that <code>KNDLTokenizer</code> recovers from corrupted binary data
+ * frames. It needs no test framework: run it with the classes of KNDL in the
+ * classpath, and it throws an <code>AssertionError</code> if a check fails.
+ *
+ * @author Abd&oacute;n Alejandro Vivas Imparato
+ *
+ */
+public class KNDLTokenizerTest {
+
+	private List<String> tokens = new ArrayList<String>();
+	private List<int[]> frames = new ArrayList<int[]>();
+	private KNDLTokenizer tokenizer;
+
+	private KNDLTokenizerTest() {
+		tokenizer = new KNDLTokenizer(new KNDLTokenizer.TokenListener() {
+			public void token(KNDLTokenizer tokenizer) {
+				tokens.add(tokenizer.toString());
+			}
+		});
+		tokenizer.setFrameListener(new KNDLTokenizer.FrameListener() {
+			public void frame(int thetaSteps, int phiSteps, int raw) {
+				frames.add(new int[] { thetaSteps, phiSteps, raw });
+			}
+		});
+	}
+
+	/**
+	 * Runs the checks.
+	 *
+	 * @param args
+	 *            Not used.
+	 */
+	public static void main(String[] args) {
+		corruptedFrameInTheMiddle();
+		syncByteInACorruptedFrame();
+		corruptedLastFrame();
+		System.out.println("KNDLTokenizerTest: OK");
+	}
+
+	/*
+	 * A frame with a wrong CRC among frames sent back-to-back: only that frame
+	 * is lost.
+	 */
+	private static void corruptedFrameInTheMiddle() {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		write(stream, "ACK;".getBytes());
+		for (int i = 0; i < 200; i++) {
+			byte[] frame = frame(i, 2 * i, 1000 * i - 50000);
+			if (i == 100) {
+				frame[KNDLTokenizer.FRAME_LENGTH - 1] ^= 0x10;
+			}
+			write(stream, frame);
+		}
+		write(stream, "END;".getBytes());
+
+		KNDLTokenizerTest test = new KNDLTokenizerTest();
+		test.feed(stream.toByteArray(), 64);
+		check(test.frames.size() == 199, "199 frames expected, " + test.frames.size() + " received");
+		check(test.frames.get(100)[0] == 101, "The frame after the corrupted one was lost");
+		check(test.frames.get(150)[2] == 1000 * 151 - 50000, "Wrong raw value");
+		check(test.tokenizer.getRejectedFrames() == 1, "1 rejected frame expected");
+		check(test.tokens.size() == 2 && test.tokens.get(0).equals("ACK") && test.tokens.get(1).equals("END"),
+				"ACK and END expected, " + test.tokens + " received");
+	}
+
+	/*
+	 * A corrupted frame with a synchronization byte in the middle.
+	 */
+	private static void syncByteInACorruptedFrame() {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < 200; i++) {
+			byte[] frame = frame(i, i, i);
+			if (i == 50) {
+				frame[4] = (byte) KNDLTokenizer.FRAME_SYNC;
+			}
+			write(stream, frame);
+		}
+		write(stream, "END;".getBytes());
+
+		KNDLTokenizerTest test = new KNDLTokenizerTest();
+		test.feed(stream.toByteArray(), 7);
+		check(test.frames.size() == 199, "199 frames expected, " + test.frames.size() + " received");
+		check(test.tokens.size() == 1 && test.tokens.get(0).equals("END"),
+				"END expected, " + test.tokens + " received");
+	}
+
+	/*
+	 * The END token right after a corrupted frame, whatever the position of a
+	 * synchronization byte in it.
+	 */
+	private static void corruptedLastFrame() {
+		for (int position = 1; position < KNDLTokenizer.FRAME_LENGTH - 1; position++) {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			for (int i = 0; i < 10; i++) {
+				byte[] frame = frame(i, i, i);
+				if (i == 9) {
+					frame[position] = (byte) KNDLTokenizer.FRAME_SYNC;
+				}
+				write(stream, frame);
+			}
+			write(stream, "END;".getBytes());
+
+			KNDLTokenizerTest test = new KNDLTokenizerTest();
+			test.feed(stream.toByteArray(), 3);
+			// The device stops sending data after END
+			test.tokenizer.flush();
+			check(test.frames.size() == 9, "9 frames expected, " + test.frames.size() + " received");
+			check(test.tokens.size() == 1 && test.tokens.get(0).equals("END"),
+					"END expected with the synchronization byte at " + position + ", " + test.tokens + " received");
+		}
+	}
+
+	/*
+	 * Feeds the data in chunks, as it is received from the serial port.
+	 */
+	private void feed(byte[] data, int chunk) {
+		for (int i = 0; i < data.length; i += chunk) {
+			tokenizer.feed(data, i, Math.min(chunk, data.length - i));
+		}
+	}
+
+	private static byte[] frame(int thetaSteps, int phiSteps, int raw) {
+		byte[] frame = new byte[KNDLTokenizer.FRAME_LENGTH];
+		frame[0] = (byte) KNDLTokenizer.FRAME_SYNC;
+		frame[1] = (byte) thetaSteps;
+		frame[2] = (byte) (thetaSteps >> 8);
+		frame[3] = (byte) phiSteps;
+		frame[4] = (byte) (phiSteps >> 8);
+		frame[5] = (byte) raw;
+		frame[6] = (byte) (raw >> 8);
+		frame[7] = (byte) (raw >> 16);
+		frame[8] = (byte) KNDLTokenizer.crc8(frame, KNDLTokenizer.FRAME_LENGTH - 1);
+		return frame;
+	}
+
+	private static void write(ByteArrayOutputStream stream, byte[] data) {
+		stream.write(data, 0, data.length);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}